@@ -32,6 +32,7 @@ SOFTWARE.
 
 import * as d3 from 'd3';
 import Topology from './topology';
+import {fetch_text} from '../utils/fetch_text.js'
 
 let data = new Map();
 let timeSteps = [];
@@ -210,18 +211,17 @@ function fix() {
 
 // -------------------------------------
 
-function load(tstamp, filename) {
+function load(tstamp, filename, encoding) {
 
   //logger.log(' Counters.load(', tstamp, ',', filename, ')');
-  return fetch(filename)
-          .then(response => response.text())
+  return fetch_text(filename, encoding)
           .then(parse)
           .then(counters => data.set(tstamp, counters));
 }
 
 export default {
 
-  load(tstamp, filename) {  return load(tstamp, filename);  },
+  load(tstamp, filename, encoding) {  return load(tstamp, filename, encoding);  },
   data() {                  return data;                    },
 
   fix() {                   return fix(); },
@@ -49,10 +49,18 @@ function get_timestamp(filename) {
 function parse_filename(filename) {
 
   let toks = filename.split(".");
+
+  // compressed files (--compress) end with .gz
+  let encoding = null;
+  if (toks[toks.length-1] == 'gz') {
+    toks.pop();
+    encoding = 'gzip';
+  }
   return {
-    fname:  filename,
-    extn:   toks[toks.length-1],
-    tstamp: dateFormat_filename(toks[toks.length-2])
+    fname:    filename,
+    extn:     toks[toks.length-1],
+    tstamp:   dateFormat_filename(toks[toks.length-2]),
+    encoding: encoding
   };
 }
 
@@ -93,7 +101,7 @@ function load(url){
       readPromises.push( Topology.load(topofile) );
       logger.log(' Reading', countfiles.length, 'counter files')
       countfiles.forEach(function(f, i) {
-        readPromises.push(Counters.load(f.tstamp, url+'/'+f.fname));
+        readPromises.push(Counters.load(f.tstamp, url+'/'+f.fname, f.encoding));
       });
 
       Promise.all(readPromises)
@@ -104,7 +112,9 @@ function load(url){
           //window.astatus('read', countfiles.length, 'counter files')
 
           //console.log(Topology.nodes())
-          Counters.fix();
+          if (Topology.mdata().counters != 'delta') {
+            Counters.fix();
+          }
 
           publish('jobs_toberead', {url: jobsfile});
           publish('routes_toberead', {url: url, files: rtablefiles});
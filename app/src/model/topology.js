@@ -56,6 +56,7 @@ function save_topology(data) {
     num_L2L1: data.num_L2L1,
     num_L2L3: data.num_L2L3,
     num_L3L2: data.num_L3L2,
+    counters: data.counters,      // 'delta' if the counters are already per-interval
     nums: [0,0,0,0],
     corenames: new Map(),
   };
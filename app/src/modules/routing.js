@@ -33,6 +33,7 @@ SOFTWARE.
  import * as d3 from 'd3';
  import Topology from '../model/topology.js'
  import {publish,subscribe} from '../utils/pubsub.js'
+ import {fetch_text} from '../utils/fetch_text.js'
 
 
 /* -------------------------------------------------------------------------- */
@@ -87,11 +88,10 @@ function parse(text) {
   return rtable;
 }
 
-function load(tstamp, filename) {
+function load(tstamp, filename, encoding) {
 
   //logger.log(' Routing.load(', filename, ')');
-  return fetch(filename)
-          .then(response => response.text())
+  return fetch_text(filename, encoding)
           .then(parse)
           .then((rtable) => { data.set(date2string_fileTable(tstamp), rtable);  });
 }
@@ -383,7 +383,7 @@ function init(){
     window.astatus('reading', data.files.length, 'rtable files')
     logger.log(' Reading', data.files.length, 'rtable files')
     data.files.forEach(function(f, i){
-      readPromises.push(load(f.tstamp, data.url+'/'+f.fname));
+      readPromises.push(load(f.tstamp, data.url+'/'+f.fname, f.encoding));
     })
 
     Promise.all(readPromises)
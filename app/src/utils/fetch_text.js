@@ -0,0 +1,79 @@
+/*
+TreeScope, Version 1.0
+Author Harsh Bhatia
+LLNL-CODE-743437
+
+Copyright (c) 2017, Lawrence Livermore National Security, LLC.
+Produced at the Lawrence Livermore National Laboratory.
+Written by Harsh Bhatia, hbhatia@llnl.gov. LLNL-CODE-743437.
+
+All rights reserved.
+
+This file is part of TreeScope. For details, see https://github.com/LLNL/TreeScope.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+/* -------------------------------------------------------------------------- */
+// fetches a text file, decompressing it if it is gzip-encoded (*.count.gz, *.rtable.gz)
+//   block-compressed files (OSMHistoryParser --compress bgzf) are a series of
+//   gzip members whose sizes are given in their headers: each is decompressed on its own.
+//   plain gzip files are a single member.
+
+function gunzip(bytes) {
+  let stream = new Blob([bytes]).stream().pipeThrough(new DecompressionStream('gzip'));
+  return new Response(stream).arrayBuffer();
+}
+
+function gzip_members(buffer) {
+
+  let view = new DataView(buffer);
+  let members = [];
+  let offset = 0;
+  while (offset < buffer.byteLength) {
+
+    // a bgzf block: FEXTRA flag, with the 'BC' subfield holding the block size - 1
+    let bgzf = offset + 18 <= buffer.byteLength &&
+               (view.getUint8(offset+3) & 4) != 0 &&
+               view.getUint8(offset+12) == 66 && view.getUint8(offset+13) == 67;
+    if (!bgzf) {
+      members.push(new Uint8Array(buffer, offset));
+      break;
+    }
+    let bsize = view.getUint16(offset+16, true) + 1;
+    members.push(new Uint8Array(buffer, offset, bsize));
+    offset += bsize;
+  }
+  return members;
+}
+
+export function fetch_text(filename, encoding) {
+
+  if (encoding != 'gzip') {
+    return fetch(filename).then(response => response.text());
+  }
+  return fetch(filename)
+          .then(response => response.arrayBuffer())
+          .then(buffer => Promise.all(gzip_members(buffer).map(gunzip)))
+          .then(blocks => {
+            let decoder = new TextDecoder();
+            return blocks.map(b => decoder.decode(b, {stream: true})).join('') + decoder.decode();
+          });
+}
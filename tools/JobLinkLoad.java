@@ -0,0 +1,1057 @@
+/*
+TreeScope, Version 0.1
+Author Harsh Bhatia
+LLNL-CODE-743437
+
+Copyright (c) 2017, Lawrence Livermore National Security, LLC.
+Produced at the Lawrence Livermore National Laboratory.
+Written by Harsh Bhatia, hbhatia@llnl.gov. LLNL-CODE-743437.
+
+All rights reserved.
+
+This file is part of TreeScope. For details, see https://github.com/LLNL/TreeScope.
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// -----------------------------------------------------------------------------
+// Attributes the traffic of the links to the jobs of the job queue
+//   reads a directory converted by OSMHistoryParser (network.ports, listing.txt, and the
+//   '.rindex' and '.count' files) together with its job queue (slurmqlog/sqlog.txt),
+//   finds the links crossed by the routes between the nodes of every job, and splits
+//   the traffic measured on every link among the jobs running at the time, in proportion
+//   to the number of their routes that cross it.
+//
+//   writes jobs.links, the links of every job and the jobs of every link (JobLinkIndex),
+//   and jobs.load, the traffic attributed to every job in every interval.
+// -----------------------------------------------------------------------------
+public class JobLinkLoad {
+
+  // number of threads used to route and attribute the jobs
+  private static int numThreads = 1;
+
+  // the year of the jobs, which sqlog.txt does not give (default: for every job, the year that puts it
+  // closest to the snapshots, so that a history over new year's day takes the jobs of both years)
+  private static int jobYear = -1;
+
+  // sum the intervals over windows of n seconds (0 = every interval between two snapshots)
+  private static long windowSpan = 0;
+
+  // routes longer than this are broken (a loop in the routing table)
+  private static final int MAX_HOPS = 16;
+
+  public static void main(String[] args) throws Exception {
+
+      String dataPath = null;
+      for (int i = 0; i < args.length; i++) {
+
+          if (args[i].equals("help")) {                           showUsage();    System.exit(1); }
+          else if (args[i].equals("--threads") && i+1 < args.length) {  numThreads = Integer.parseInt(args[++i]);  }
+          else if (args[i].equals("--year") && i+1 < args.length) {     jobYear = Integer.parseInt(args[++i]);  }
+          else if (args[i].equals("--window") && i+1 < args.length) {   windowSpan = Long.parseLong(args[++i]);  }
+          else if (dataPath == null) {                            dataPath = args[i];  }
+          else {                                                  showUsage();    System.exit(1); }
+      }
+      if (dataPath == null || numThreads < 1 || windowSpan < 0) {    showUsage();    System.exit(1); }
+
+      File dir = new File(dataPath);
+      if (!dir.isDirectory()) {
+          System.err.println(" Data directory not found: " + dataPath);
+          System.exit(1);
+      }
+      if (!new File(dir, "network.ports").isFile()) {
+          System.err.println(" network.ports not found in " + dataPath + ": convert the directory again with this version of OSMHistoryParser");
+          System.exit(1);
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+      try {
+          new JobLinkLoad(dir, pool).run();
+      } finally {
+          pool.shutdown();
+      }
+      System.out.println("- Complete");
+  }
+  private static void showUsage(){
+      System.out.println(" --- JobLinkLoad : attributes the traffic of the links to the jobs of the job queue ---");
+      System.out.println(" JobLinkLoad [options] /path/to/dataDir");
+      System.out.println("");
+      System.out.println(" dataDir is a directory converted by OSMHistoryParser, with the job queue in slurmqlog/sqlog.txt.");
+      System.out.println(" Writes jobs.links (the links of every job, and the jobs of every link) and jobs.load into it.");
+      System.out.println("");
+      System.out.println("Options:");
+      System.out.println(" --threads <n>                           - Route and attribute the jobs using n threads (default 1).");
+      System.out.println(" --year <y>                              - Year of the jobs in sqlog.txt (default: for every job, the year closest to the snapshots).");
+      System.out.println(" --window <s>                            - Sum the traffic over windows of s seconds (default: every snapshot).");
+  }
+
+  // ---------------------------------------------------------------------------
+  // the network of network.ports, with a directed link for every connected port
+  // ---------------------------------------------------------------------------
+  private final HashMap<String, Integer> nodeByGuid = new HashMap<String, Integer>();
+  private final HashMap<String, Integer> nodeByName = new HashMap<String, Integer>();
+  private final ArrayList<String> guids = new ArrayList<String>();
+  private final ArrayList<Integer> lids = new ArrayList<Integer>();
+  private final ArrayList<Boolean> switches = new ArrayList<Boolean>();
+
+  // links by ordinal: sending node and port, receiving node and port
+  private int numLinks = 0;
+  private int[] linkFrom = new int[1024], linkPort = new int[1024], linkTo = new int[1024], linkToPort = new int[1024];
+
+  // the link sending from "guid,port", and the link received at "guid,port" (keys of the '.count' files)
+  private final HashMap<String, Integer> linkBySender = new HashMap<String, Integer>();
+  private final HashMap<String, Integer> linkByReceiver = new HashMap<String, Integer>();
+  private boolean deltaCounters = false;
+
+  // the routing tables (the '.rindex' files), and the index of every node in each of them
+  private final ArrayList<Long> epochTimes = new ArrayList<Long>();
+  private final ArrayList<OSMHistoryParser.RoutingIndex> epochs = new ArrayList<OSMHistoryParser.RoutingIndex>();
+  private final ArrayList<int[]> epochSwitches = new ArrayList<int[]>();
+
+  // the counter files, in time order
+  private final ArrayList<Long> countTimes = new ArrayList<Long>();
+  private final ArrayList<String> countFiles = new ArrayList<String>();
+
+  private final ArrayList<Job> jobs = new ArrayList<Job>();
+
+  private final File dir;
+  private final ExecutorService pool;
+
+  private JobLinkLoad(File dir, ExecutorService pool) {
+      this.dir = dir;
+      this.pool = pool;
+  }
+
+  private void run() throws Exception {
+
+      read_topology(new File(dir, "network.ports"));
+      read_listing(new File(dir, "listing.txt"));
+      read_jobs(new File(dir, "slurmqlog/sqlog.txt"));
+
+      route_jobs();
+      write_index(new File(dir, "jobs.links"));
+      attribute_load(new File(dir, "jobs.load"));
+
+      for (OSMHistoryParser.RoutingIndex index : epochs) {
+          index.close();
+      }
+  }
+
+  private static long parseGuid(String guid) {
+      return Long.parseUnsignedLong(guid.replace(":", ""), 16);
+  }
+
+  // a time in the format of the names of the output files (yyyyMMdd-HHmmss), in seconds
+  private static long parseTime(String time) throws ParseException {
+      return new SimpleDateFormat("yyyyMMdd-HHmmss").parse(time).getTime() / 1000;
+  }
+
+  private static String formatTime(long seconds) {
+      return new SimpleDateFormat("yyyyMMdd-HHmmss").format(new java.util.Date(seconds * 1000));
+  }
+
+  // ---------------------------------------------------------------------------
+  // network.ports, as written by OSMHistoryParser next to network.topo: every node, then every port
+  // ---------------------------------------------------------------------------
+  private void read_topology(File file) throws IOException {
+
+      System.out.print("Reading " + file.getPath() + "...");
+      OSMHistoryParser.MNetwork.PortTable table = OSMHistoryParser.MNetwork.PortTable.read(file);
+
+      for (int n = 0; n < table.numNodes; n++) {
+          guids.add(table.guids[n]);
+          lids.add(table.lids[n]);
+          switches.add(table.switches[n]);
+          nodeByGuid.put(table.guids[n], n);
+          nodeByName.put(table.names[n].split(" ")[0], n);
+      }
+      deltaCounters = table.delta;
+
+      for (int p = 0; p < table.numPorts; p++) {
+
+          int to = table.peerNode[p];
+          if (to == -1) {
+              continue;
+          }
+          if (numLinks == linkFrom.length) {
+              linkFrom = Arrays.copyOf(linkFrom, 2*numLinks);
+              linkPort = Arrays.copyOf(linkPort, 2*numLinks);
+              linkTo = Arrays.copyOf(linkTo, 2*numLinks);
+              linkToPort = Arrays.copyOf(linkToPort, 2*numLinks);
+          }
+          linkFrom[numLinks] = table.node[p];
+          linkPort[numLinks] = table.port[p];
+          linkTo[numLinks] = to;
+          linkToPort[numLinks] = table.peerPort[p];
+          linkBySender.put(table.guids[table.node[p]] + "," + table.port[p], numLinks);
+          linkByReceiver.put(table.guids[to] + "," + table.peerPort[p], numLinks);
+          numLinks++;
+      }
+      System.out.println(" " + guids.size() + " nodes, " + numLinks + " links" + (deltaCounters ? ", delta counters" : ""));
+  }
+
+  private int link(int node, int port) {
+      Integer l = linkBySender.get(guids.get(node) + "," + port);
+      return (l == null) ? -1 : l;
+  }
+
+  // ---------------------------------------------------------------------------
+  // listing.txt: the routing indices and counter files, by time-stamp
+  // ---------------------------------------------------------------------------
+  private void read_listing(File file) throws Exception {
+
+      ArrayList<String> names = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+              if (!line.trim().isEmpty()) {
+                  names.add(line.trim());
+              }
+          }
+      } finally {
+          reader.close();
+      }
+      java.util.Collections.sort(names);
+
+      for (String name : names) {
+
+          String tstamp = name.substring(0, name.indexOf('.'));
+          if (name.endsWith(".rindex")) {
+
+              OSMHistoryParser.RoutingIndex index = OSMHistoryParser.RoutingIndex.open(new File(dir, name));
+              int[] switchIdx = new int[guids.size()];
+              for (int n = 0; n < guids.size(); n++) {
+                  switchIdx[n] = switches.get(n) ? index.find(parseGuid(guids.get(n))) : -1;
+              }
+              epochTimes.add(parseTime(tstamp));
+              epochs.add(index);
+              epochSwitches.add(switchIdx);
+          }
+          else if (name.endsWith(".count") || name.endsWith(".count.gz")) {
+              countTimes.add(parseTime(tstamp));
+              countFiles.add(name);
+          }
+      }
+      if (epochs.isEmpty() || countFiles.isEmpty()) {
+          throw new IOException("No routing index or counter file listed in " + file.getPath());
+      }
+      System.out.println("Found " + epochs.size() + " routing tables and " + countFiles.size() + " counter files");
+  }
+
+  // the routing table in effect at a time (the first one before it was written)
+  private int epoch(long time) {
+      int e = 0;
+      while (e+1 < epochTimes.size() && epochTimes.get(e+1) <= time) {
+          e++;
+      }
+      return e;
+  }
+
+  // ---------------------------------------------------------------------------
+  // slurmqlog/sqlog.txt (see app/src/modules/jobs.js)
+  //   JOBID PART NAME USER ST START(mm/dd-HH:MM:SS) TIME([d-]HH:MM:SS) N NODELIST
+  // ---------------------------------------------------------------------------
+  private static final Pattern JOB = Pattern.compile(
+      "\\b(\\d+) +(\\w+) +([\\w.-]+) +(\\w+) +(\\w+) ([\\d/\\-:]+) +([\\d:\\-]+) +(\\d+) +(\\S+?)(\\[?[\\d,\\-]+\\]?)\\s*$");
+
+  private static class Job {
+
+    long id;
+    long start, end;            // seconds
+    int[] nodes;                // node ordinals
+
+    // for every routing table in effect during the job, the links crossed by its
+    // routes (ascending) and the number of routes over each (null if not in effect)
+    int[][] links;
+    int[][] routes;
+  }
+
+  private void read_jobs(File file) throws Exception {
+
+      // the years the snapshots span
+      long first = countTimes.get(0), last = countTimes.get(countTimes.size()-1);
+      Calendar cal = Calendar.getInstance();
+      cal.setTimeInMillis(first * 1000);
+      int firstYear = cal.get(Calendar.YEAR);
+      cal.setTimeInMillis(last * 1000);
+      int lastYear = cal.get(Calendar.YEAR);
+      SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd-HH:mm:ss");
+
+      int unmatched = 0, outside = 0;
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+
+              Matcher m = JOB.matcher(line);
+              if (!m.find()) {
+                  continue;
+              }
+              Job job = new Job();
+              job.id = Long.parseLong(m.group(1));
+              long duration = parseDuration(m.group(7));
+              if (jobYear >= 0) {
+                  job.start = format.parse(jobYear + "/" + m.group(6)).getTime() / 1000;
+              } else {
+                  // the year from before the first snapshot to after the last one that is closest to them
+                  long distance = Long.MAX_VALUE;
+                  for (int y = firstYear - 1; y <= lastYear + 1; y++) {
+                      long start = format.parse(y + "/" + m.group(6)).getTime() / 1000;
+                      long d = Math.max(0, Math.max(first - (start + duration), start - last));
+                      if (d < distance) {
+                          job.start = start;
+                          distance = d;
+                      }
+                  }
+              }
+              job.end = job.start + duration;
+
+              ArrayList<Integer> nodes = new ArrayList<Integer>();
+              for (String name : expandNodes(m.group(9), m.group(10))) {
+                  Integer n = nodeByName.get(name);
+                  if (n != null) {
+                      nodes.add(n);
+                  }
+              }
+              if (nodes.isEmpty()) {
+                  unmatched++;
+                  continue;
+              }
+              job.nodes = new int[nodes.size()];
+              for (int i = 0; i < job.nodes.length; i++) {
+                  job.nodes[i] = nodes.get(i);
+              }
+              if (job.end < first || job.start > last) {
+                  outside++;
+              }
+              jobs.add(job);
+          }
+      } finally {
+          reader.close();
+      }
+      System.out.println("Read " + jobs.size() + " jobs from " + file.getPath() +
+                         (jobYear >= 0 ? " (year " + jobYear + ")" : "") +
+                         (unmatched > 0 ? ", skipped " + unmatched + " jobs on nodes not in the network" : ""));
+      if (outside > 0) {
+          System.out.println(" Warning: " + outside + " jobs ran outside the snapshots (" + formatTime(first) + " to " +
+                             formatTime(last) + ")" + (jobYear >= 0 ? ", check --year" : ""));
+      }
+  }
+
+  // [d-]HH:MM:SS, or MM:SS
+  private static long parseDuration(String time) {
+
+      long days = 0;
+      int dash = time.indexOf('-');
+      if (dash >= 0) {
+          days = Long.parseLong(time.substring(0, dash));
+          time = time.substring(dash+1);
+      }
+      long secs = 0;
+      for (String tok : time.split(":")) {
+          secs = secs*60 + Long.parseLong(tok);
+      }
+      return days*86400 + secs;
+  }
+
+  // prefix[a-b,c,...] -> prefix<a>, ..., prefix<b>, prefix<c>, ... (zero-padded as given)
+  private static ArrayList<String> expandNodes(String prefix, String list) {
+
+      ArrayList<String> names = new ArrayList<String>();
+      if (list.startsWith("[") && list.endsWith("]")) {
+          list = list.substring(1, list.length()-1);
+      }
+      for (String range : list.split(",")) {
+          if (range.isEmpty()) {
+              continue;
+          }
+          String[] ends = range.split("-");
+          int width = (ends[0].startsWith("0")) ? ends[0].length() : 0;
+          long first = Long.parseLong(ends[0]);
+          long last = (ends.length > 1) ? Long.parseLong(ends[1]) : first;
+          for (long i = first; i <= last; i++) {
+              String num = Long.toString(i);
+              while (num.length() < width) {
+                  num = "0" + num;
+              }
+              names.add(prefix + num);
+          }
+      }
+      return names;
+  }
+
+  // ---------------------------------------------------------------------------
+  // Routes of the jobs
+  //   every node of a job sends to every other node: the traffic goes up its link to
+  //   its leaf switch, and from there follows the routing table to the destination lid.
+  //   the routes from the nodes of a leaf are therefore walked once, and counted
+  //   as many times as the leaf has nodes of the job.
+  // ---------------------------------------------------------------------------
+  private void route_jobs() throws Exception {
+
+      long t0 = System.currentTimeMillis();
+      ArrayList<Future<Integer>> pending = new ArrayList<Future<Integer>>();
+      for (final Job job : jobs) {
+          pending.add(pool.submit(new Callable<Integer>() {
+              public Integer call() {
+                  job.links = new int[epochs.size()][];
+                  job.routes = new int[epochs.size()][];
+                  int broken = 0;
+                  for (int e = epoch(job.start); e <= epoch(job.end); e++) {
+                      broken += route(job, e);
+                  }
+                  return broken;
+              }
+          }));
+      }
+      long broken = 0;
+      for (Future<Integer> f : pending) {
+          broken += f.get();
+      }
+      System.out.println("Routed " + jobs.size() + " jobs in " + (System.currentTimeMillis() - t0) + " ms" +
+                         (broken > 0 ? " (" + broken + " routes not found)" : ""));
+  }
+
+  // returns the number of routes that could not be followed
+  private int route(Job job, int e) {
+
+      OSMHistoryParser.RoutingIndex index = epochs.get(e);
+      int[] switchIdx = epochSwitches.get(e);
+      HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+
+      // the link of every node to its leaf, and the number of nodes of the job on every leaf
+      int[] leafOf = new int[job.nodes.length];
+      HashMap<Integer, Integer> leaves = new HashMap<Integer, Integer>();
+      for (int i = 0; i < job.nodes.length; i++) {
+          int up = first_link(job.nodes[i]);
+          leafOf[i] = (up < 0) ? -1 : linkTo[up];
+          if (up < 0 || job.nodes.length == 1) {
+              continue;
+          }
+          add(counts, up, job.nodes.length - 1);
+          Integer c = leaves.get(leafOf[i]);
+          leaves.put(leafOf[i], (c == null) ? 1 : c+1);
+      }
+
+      int broken = 0;
+      for (Map.Entry<Integer, Integer> leaf : leaves.entrySet()) {
+          for (int i = 0; i < job.nodes.length; i++) {
+
+              int sources = leaf.getValue() - (leafOf[i] == leaf.getKey() ? 1 : 0);
+              if (sources == 0) {
+                  continue;
+              }
+              int dlid = lids.get(job.nodes[i]);
+              int node = leaf.getKey();
+              boolean found = false;
+              for (int hop = 0; hop < MAX_HOPS && switchIdx[node] >= 0; hop++) {
+
+                  int port = index.port(switchIdx[node], dlid);
+                  int l = (port == OSMHistoryParser.RoutingIndex.NO_ROUTE) ? -1 : link(node, port);
+                  if (l < 0) {
+                      break;
+                  }
+                  add(counts, l, sources);
+                  node = linkTo[l];
+                  if (node == job.nodes[i]) {
+                      found = true;
+                      break;
+                  }
+              }
+              if (!found) {
+                  broken += sources;
+              }
+          }
+      }
+
+      int[] links = new int[counts.size()];
+      int k = 0;
+      for (int l : counts.keySet()) {
+          links[k++] = l;
+      }
+      Arrays.sort(links);
+      int[] routes = new int[links.length];
+      for (int i = 0; i < links.length; i++) {
+          routes[i] = counts.get(links[i]);
+      }
+      job.links[e] = links;
+      job.routes[e] = routes;
+      return broken;
+  }
+
+  // the link of the first connected port of a node (-1 if none)
+  private int first_link(int node) {
+      for (int port = 1; port < 256; port++) {
+          int l = link(node, port);
+          if (l >= 0) {
+              return l;
+          }
+      }
+      return -1;
+  }
+
+  private static void add(HashMap<Integer, Integer> counts, int key, int value) {
+      Integer c = counts.get(key);
+      counts.put(key, (c == null) ? value : c + value);
+  }
+
+  // the links of a job over all the routing tables in effect during it,
+  // with the largest number of routes over each
+  private static int[][] union(Job job) {
+
+      HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+      for (int e = 0; e < job.links.length; e++) {
+          if (job.links[e] == null) {
+              continue;
+          }
+          for (int i = 0; i < job.links[e].length; i++) {
+              Integer c = counts.get(job.links[e][i]);
+              counts.put(job.links[e][i], (c == null) ? job.routes[e][i] : Math.max(c, job.routes[e][i]));
+          }
+      }
+      int[] links = new int[counts.size()];
+      int k = 0;
+      for (int l : counts.keySet()) {
+          links[k++] = l;
+      }
+      Arrays.sort(links);
+      int[] routes = new int[links.length];
+      for (int i = 0; i < links.length; i++) {
+          routes[i] = counts.get(links[i]);
+      }
+      return new int[][] { links, routes };
+  }
+
+  private void write_index(File file) throws IOException {
+
+      long[] jobIds = new long[jobs.size()];
+      long[] starts = new long[jobs.size()];
+      long[] ends = new long[jobs.size()];
+      int[][] links = new int[jobs.size()][];
+      int[][] routes = new int[jobs.size()][];
+      for (int j = 0; j < jobs.size(); j++) {
+          Job job = jobs.get(j);
+          int[][] u = union(job);
+          jobIds[j] = job.id;
+          starts[j] = job.start;
+          ends[j] = job.end;
+          links[j] = u[0];
+          routes[j] = u[1];
+      }
+      long[] linkGuids = new long[numLinks];
+      int[] linkPorts = new int[numLinks];
+      for (int l = 0; l < numLinks; l++) {
+          linkGuids[l] = parseGuid(guids.get(linkFrom[l]));
+          linkPorts[l] = linkPort[l];
+      }
+
+      System.out.print("Writing " + file.getPath() + "...");
+      JobLinkIndex.write(file, linkGuids, linkPorts, jobIds, starts, ends, links, routes);
+      System.out.println(" Done!");
+  }
+
+  // ---------------------------------------------------------------------------
+  // Load of the jobs
+  //   the traffic of a link A -> B in an interval is the rcv_data counter of the port of B.
+  //   it is split among the jobs running during the interval whose routes cross the link,
+  //   in proportion to their number of routes over it (with the routing table in effect
+  //   at the end of the interval, or at the end of the job if it ended before). the first
+  //   snapshot only starts the first interval.
+  // ---------------------------------------------------------------------------
+  private void attribute_load(File file) throws Exception {
+
+      System.out.print("Writing " + file.getPath() + "...");
+      long t0 = System.currentTimeMillis();
+
+      BufferedWriter bwriter = new BufferedWriter(new FileWriter(file), 1 << 16);
+      bwriter.write("job_id,timestamp,bytes,max_node,max_port,max_bytes");
+      bwriter.newLine();
+
+      long[] prev = null;
+      long[] load = new long[numLinks];
+      long windowStart = -1, windowEnd = -1;
+      int rows = 0;
+
+      for (int c = 0; c < countFiles.size(); c++) {
+
+          long[] curr = read_counters(countFiles.get(c));
+          long time = countTimes.get(c);
+          if (c > 0) {
+
+              // a new window starts when the interval ends in the next span
+              if (windowEnd >= 0 && windowSpan > 0 && Math.floorDiv(time - 1, windowSpan) != Math.floorDiv(windowEnd - 1, windowSpan)) {
+                  rows += attribute_window(windowStart, windowEnd, load, bwriter);
+                  Arrays.fill(load, 0);
+                  windowEnd = -1;
+              }
+              if (windowEnd < 0) {
+                  windowStart = countTimes.get(c-1);
+              }
+              for (int l = 0; l < numLinks; l++) {
+                  if (curr[l] < 0) {
+                      continue;
+                  }
+                  if (deltaCounters) {
+                      load[l] += curr[l];
+                  } else if (prev[l] >= 0) {
+                      // as the parser (the values are bytes, 4 times the counter), without link_downed
+                      load[l] += 4*OSMHistoryParser.MNetwork.get_counterDelta(prev[l] >>> 2, curr[l] >>> 2, 0, 0);
+                  }
+              }
+              windowEnd = time;
+              if (windowSpan == 0) {
+                  rows += attribute_window(windowStart, windowEnd, load, bwriter);
+                  Arrays.fill(load, 0);
+                  windowEnd = -1;
+              }
+          }
+          prev = curr;
+      }
+      if (windowEnd >= 0) {
+          rows += attribute_window(windowStart, windowEnd, load, bwriter);
+      }
+      bwriter.close();
+      System.out.println(" " + rows + " rows in " + (System.currentTimeMillis() - t0) + " ms");
+  }
+
+  // the rcv_data counter of every link (-1 if not reported)
+  private long[] read_counters(String name) throws IOException {
+
+      long[] values = new long[numLinks];
+      Arrays.fill(values, -1);
+
+      FileInputStream in = new FileInputStream(new File(dir, name));
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          name.endsWith(".gz") ? new GZIPInputStream(in, 1 << 16) : in, "ISO-8859-1"), 1 << 16);
+      try {
+          String[] header = reader.readLine().split(",");
+          int column = Arrays.asList(header).indexOf("rcv_data");
+          if (column < 2) {
+              throw new IOException("No rcv_data column in " + name);
+          }
+          String line;
+          while ((line = reader.readLine()) != null) {
+              String[] toks = line.split(",");
+              Integer l = linkByReceiver.get(toks[0] + "," + toks[1]);
+              if (l != null && toks.length > column) {
+                  values[l] = Long.parseLong(toks[column]);
+              }
+          }
+      } finally {
+          reader.close();
+      }
+      return values;
+  }
+
+  // writes the load of the jobs running in the window (start, end], and returns the number of rows
+  //   a job that ended within the window is routed with the table in effect when it ended
+  private int attribute_window(long start, long end, final long[] load, BufferedWriter bwriter) throws Exception {
+
+      int last = epoch(end);
+      final ArrayList<Job> active = new ArrayList<Job>();
+      final ArrayList<Integer> activeEpochs = new ArrayList<Integer>();
+      for (Job job : jobs) {
+          if (job.start >= end || job.end <= start) {
+              continue;
+          }
+          int e = (job.end < end) ? Math.min(last, epoch(job.end)) : last;
+          if (job.links[e] != null && job.links[e].length > 0) {
+              active.add(job);
+              activeEpochs.add(e);
+          }
+      }
+      if (active.isEmpty()) {
+          return 0;
+      }
+
+      // routes of all running jobs over every link
+      final long[] total = new long[numLinks];
+      for (int j = 0; j < active.size(); j++) {
+          Job job = active.get(j);
+          int e = activeEpochs.get(j);
+          for (int i = 0; i < job.links[e].length; i++) {
+              total[job.links[e][i]] += job.routes[e][i];
+          }
+      }
+
+      ArrayList<Future<String>> rows = new ArrayList<Future<String>>();
+      for (int j = 0; j < active.size(); j++) {
+          final Job job = active.get(j);
+          final int e = activeEpochs.get(j);
+          rows.add(pool.submit(new Callable<String>() {
+              public String call() {
+                  double bytes = 0;
+                  double max = -1;
+                  int maxLink = -1;
+                  for (int i = 0; i < job.links[e].length; i++) {
+                      int l = job.links[e][i];
+                      double share = (double) load[l] * job.routes[e][i] / total[l];
+                      bytes += share;
+                      if (share > max) {
+                          max = share;
+                          maxLink = l;
+                      }
+                  }
+                  return job.id + "," + formatTime(end) + "," + Math.round(bytes) + "," +
+                         guids.get(linkFrom[maxLink]) + "," + linkPort[maxLink] + "," + Math.round(max);
+              }
+          }));
+      }
+      for (Future<String> row : rows) {
+          bwriter.write(row.get());
+          bwriter.newLine();
+      }
+      return rows.size();
+  }
+
+  // ---------------------------------------------------------------------------
+  // Binary index of the links of the jobs (little-endian, 8-byte aligned)
+  //
+  //   header:     magic, version, number of jobs j, number of links l, number of entries n, int32 0
+  //   links:      for each link: int64 guid of the sending node, int32 port number, int32 0,
+  //               sorted by guid (unsigned) and port
+  //   jobs:       for each job: int64 job id, int64 start, int64 end (seconds), sorted by id
+  //   job index:  j+1 int32 offsets into the job entries, padded to 8 bytes
+  //   job entries:  n times int32 link, int32 number of routes, grouped by job, by ascending link
+  //   link index: l+1 int32 offsets into the link entries, padded to 8 bytes
+  //   link entries: n times int32 job, int32 number of routes, grouped by link, by ascending job
+  //
+  // the links crossed by job i are the job entries offsets[i] .. offsets[i+1], and the jobs
+  // crossing link k are the link entries offsets[k] .. offsets[k+1]. jobs and links are found
+  // by binary search. every section is mapped on its own, so the file may exceed 2 GB.
+  // -----------------------------------------------------------------------------
+  public static class JobLinkIndex {
+
+    public static final int MAGIC = 0x58494c4a;       // "JLIX"
+    public static final int VERSION = 2;
+
+    private FileChannel _channel;
+    private ByteBuffer _links, _jobs, _jobIndex, _jobEntries, _linkIndex, _linkEntries;
+
+    private int _numJobs, _numLinks;
+    private long _linksOffset, _jobsOffset, _jobIndexOffset, _jobEntriesOffset, _linkIndexOffset, _linkEntriesOffset, _size;
+
+    private static long align(long offset) {
+      return (offset + 7) & ~7L;
+    }
+
+    private void layout(int numJobs, int numLinks, int numEntries) {
+      _numJobs = numJobs;
+      _numLinks = numLinks;
+      _linksOffset = 24;
+      _jobsOffset = _linksOffset + 16L*numLinks;
+      _jobIndexOffset = _jobsOffset + 24L*numJobs;
+      _jobEntriesOffset = align(_jobIndexOffset + 4L*(numJobs + 1));
+      _linkIndexOffset = _jobEntriesOffset + 8L*numEntries;
+      _linkEntriesOffset = align(_linkIndexOffset + 4L*(numLinks + 1));
+      _size = _linkEntriesOffset + 8L*numEntries;
+    }
+
+    // ---------------------------------------------------------------------------
+    // writer
+    //   links[i] (ascending) and routes[i] of every job i, the links being indices
+    //   into linkGuids and linkPorts. the file is written in chunks, in order.
+    // ---------------------------------------------------------------------------
+    private static final int CHUNK = 1 << 20;
+
+    private static class Output {
+
+      private final FileChannel _channel;
+      private final ByteBuffer _chunk = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+      private long _position = 0;
+
+      public Output(FileChannel channel) {
+        _channel = channel;
+      }
+
+      // room for the next n bytes
+      public ByteBuffer reserve(int n) throws IOException {
+        if (_chunk.remaining() < n) {
+          flush();
+        }
+        _position += n;
+        return _chunk;
+      }
+
+      public void pad() throws IOException {
+        while (_position % 8 != 0) {
+          reserve(1).put((byte) 0);
+        }
+      }
+
+      public void flush() throws IOException {
+        _chunk.flip();
+        while (_chunk.hasRemaining()) {
+          _channel.write(_chunk);
+        }
+        _chunk.clear();
+      }
+    }
+
+    public static void write(File file, final long[] linkGuids, final int[] linkPorts, final long[] jobIds, long[] starts, long[] ends,
+                             int[][] links, int[][] routes) throws IOException {
+
+      int numJobs = jobIds.length;
+      int numLinks = linkGuids.length;
+      long total = 0;
+      for (int[] l : links) {
+        total += l.length;
+      }
+      if (8*total > Integer.MAX_VALUE) {
+        throw new IOException("JobLinkIndex.write(): too many entries (" + total + ")");
+      }
+      int numEntries = (int) total;
+
+      // the jobs by id, and the links by guid and port: rank[] is the position of a link
+      Integer[] jobOrder = new Integer[numJobs];
+      for (int j = 0; j < numJobs; j++) {
+        jobOrder[j] = j;
+      }
+      Arrays.sort(jobOrder, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Long.compare(jobIds[a], jobIds[b]);
+        }
+      });
+      Integer[] linkOrder = new Integer[numLinks];
+      for (int k = 0; k < numLinks; k++) {
+        linkOrder[k] = k;
+      }
+      Arrays.sort(linkOrder, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          int c = Long.compareUnsigned(linkGuids[a], linkGuids[b]);
+          return (c != 0) ? c : Integer.compare(linkPorts[a], linkPorts[b]);
+        }
+      });
+      int[] rank = new int[numLinks];
+      for (int k = 0; k < numLinks; k++) {
+        rank[linkOrder[k]] = k;
+      }
+
+      // the entries of every job, renumbered and by ascending link: (link << 32 | routes)
+      long[][] entries = new long[numJobs][];
+      int[] perLink = new int[numLinks];
+      for (int j = 0; j < numJobs; j++) {
+        int[] l = links[jobOrder[j]];
+        int[] r = routes[jobOrder[j]];
+        entries[j] = new long[l.length];
+        for (int i = 0; i < l.length; i++) {
+          entries[j][i] = ((long) rank[l[i]] << 32) | (r[i] & 0xffffffffL);
+          perLink[rank[l[i]]]++;
+        }
+        Arrays.sort(entries[j]);
+      }
+
+      JobLinkIndex index = new JobLinkIndex();
+      index.layout(numJobs, numLinks, numEntries);
+
+      FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+      try {
+        channel.truncate(0);
+        Output out = new Output(channel);
+
+        out.reserve(24).putInt(MAGIC).putInt(VERSION).putInt(numJobs).putInt(numLinks).putInt(numEntries).putInt(0);
+        for (int k = 0; k < numLinks; k++) {
+          out.reserve(16).putLong(linkGuids[linkOrder[k]]).putInt(linkPorts[linkOrder[k]]).putInt(0);
+        }
+        for (int j = 0; j < numJobs; j++) {
+          out.reserve(24).putLong(jobIds[jobOrder[j]]).putLong(starts[jobOrder[j]]).putLong(ends[jobOrder[j]]);
+        }
+
+        // jobs -> links
+        int offset = 0;
+        for (int j = 0; j < numJobs; j++) {
+          out.reserve(4).putInt(offset);
+          offset += entries[j].length;
+        }
+        out.reserve(4).putInt(offset);
+        out.pad();
+        for (int j = 0; j < numJobs; j++) {
+          for (long entry : entries[j]) {
+            out.reserve(8).putInt((int) (entry >>> 32)).putInt((int) entry);
+          }
+        }
+
+        // links -> jobs: the jobs of a link follow each other, in job order
+        int[] next = new int[numLinks];
+        offset = 0;
+        for (int k = 0; k < numLinks; k++) {
+          out.reserve(4).putInt(offset);
+          next[k] = offset;
+          offset += perLink[k];
+        }
+        out.reserve(4).putInt(offset);
+        out.pad();
+        int[] linkEntries = new int[2*numEntries];
+        for (int j = 0; j < numJobs; j++) {
+          for (long entry : entries[j]) {
+            int o = 2*(next[(int) (entry >>> 32)]++);
+            linkEntries[o] = j;
+            linkEntries[o + 1] = (int) entry;
+          }
+        }
+        entries = null;
+        for (int e = 0; e < 2*numEntries; e += 2) {
+          out.reserve(8).putInt(linkEntries[e]).putInt(linkEntries[e + 1]);
+        }
+        out.flush();
+
+        if (out._position != index._size) {
+          throw new IOException("JobLinkIndex.write(): wrote " + out._position + " bytes instead of " + index._size);
+        }
+      } finally {
+        channel.close();
+      }
+    }
+
+    // ---------------------------------------------------------------------------
+    // reader
+    // ---------------------------------------------------------------------------
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+      if (size > Integer.MAX_VALUE || position + size > channel.size()) {
+        throw new IOException("Invalid job link index section at " + position + " (" + size + " bytes)");
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static JobLinkIndex open(File file) throws IOException {
+
+      FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+      try {
+        ByteBuffer header = map(channel, 0, Math.min(24, channel.size()));
+        if (header.capacity() < 24 || header.getInt() != MAGIC || header.getInt() != VERSION) {
+          throw new IOException("Not a job link index: " + file.getPath());
+        }
+
+        JobLinkIndex index = new JobLinkIndex();
+        index._channel = channel;
+        int numJobs = header.getInt();
+        int numLinks = header.getInt();
+        int numEntries = header.getInt();
+        index.layout(numJobs, numLinks, numEntries);
+        index._links = map(channel, index._linksOffset, 16L*numLinks);
+        index._jobs = map(channel, index._jobsOffset, 24L*numJobs);
+        index._jobIndex = map(channel, index._jobIndexOffset, 4L*(numJobs + 1));
+        index._jobEntries = map(channel, index._jobEntriesOffset, 8L*numEntries);
+        index._linkIndex = map(channel, index._linkIndexOffset, 4L*(numLinks + 1));
+        index._linkEntries = map(channel, index._linkEntriesOffset, 8L*numEntries);
+        return index;
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    public void close() throws IOException {    _channel.close();  }
+
+    public int numJobs() {                      return _numJobs;  }
+    public int numLinks() {                     return _numLinks;  }
+
+    public long linkGuid(int k) {               return _links.getLong(16*k);  }
+    public int linkPort(int k) {                return _links.getInt(16*k + 8);  }
+
+    public long jobId(int j) {                  return _jobs.getLong(24*j);  }
+    public long jobStart(int j) {               return _jobs.getLong(24*j + 8);  }
+    public long jobEnd(int j) {                 return _jobs.getLong(24*j + 16);  }
+
+    // the index of a job (-1 if it is not in the index)
+    public int find(long jobId) {
+
+      int lo = 0, hi = _numJobs - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int c = Long.compare(jobId(mid), jobId);
+        if (c < 0) {        lo = mid + 1;  }
+        else if (c > 0) {   hi = mid - 1;  }
+        else {              return mid;  }
+      }
+      return -1;
+    }
+
+    // the index of the link sending from a port (-1 if none)
+    public int findLink(long guid, int port) {
+
+      int lo = 0, hi = _numLinks - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int c = Long.compareUnsigned(linkGuid(mid), guid);
+        if (c == 0) {
+          c = Integer.compare(linkPort(mid), port);
+        }
+        if (c < 0) {        lo = mid + 1;  }
+        else if (c > 0) {   hi = mid - 1;  }
+        else {              return mid;  }
+      }
+      return -1;
+    }
+
+    // the links crossed by job j, and the number of its routes over them
+    public int numJobLinks(int j) {
+      return _jobIndex.getInt(4*(j+1)) - _jobIndex.getInt(4*j);
+    }
+    public int jobLink(int j, int i) {
+      return _jobEntries.getInt(8*(_jobIndex.getInt(4*j) + i));
+    }
+    public int jobRoutes(int j, int i) {
+      return _jobEntries.getInt(8*(_jobIndex.getInt(4*j) + i) + 4);
+    }
+
+    // the jobs crossing link k, and the number of their routes over it
+    public int numLinkJobs(int k) {
+      return _linkIndex.getInt(4*(k+1)) - _linkIndex.getInt(4*k);
+    }
+    public int linkJob(int k, int i) {
+      return _linkEntries.getInt(8*(_linkIndex.getInt(4*k) + i));
+    }
+    public int linkRoutes(int k, int i) {
+      return _linkEntries.getInt(8*(_linkIndex.getInt(4*k) + i) + 4);
+    }
+  }
+}
@@ -31,48 +31,355 @@ SOFTWARE.
 */
 
 import java.util.Map;
+import java.util.Iterator;
 import java.util.TreeMap;
 import java.util.LinkedHashMap;
 import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.TreeSet;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Collections;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.BufferedWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 
 import java.io.FilenameFilter;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Closeable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.security.MessageDigest;
+
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 
+import gov.llnl.lc.infiniband.core.IB_Guid;
 import gov.llnl.lc.infiniband.core.IB_Link;
 import gov.llnl.lc.infiniband.opensm.plugin.data.*;
 
 public class OSMHistoryParser {
 
+  // number of threads used to write the snapshots (1 = sequential)
+  private static int numThreads = 1;
+
+  // maximum number of decoded snapshots waiting to be written (0 = twice the threads)
+  private static int snapshotWindow = 0;
+
+  // write per-interval deltas instead of the cumulative counters
+  private static boolean deltaCounters = false;
+
+  // counters also written for the whole run, one time series per counter ('<counter>.series'),
+  // or as columns of counters.bin
+  private static PFM_Port.PortCounterName[] exportCounters = new PFM_Port.PortCounterName[0];
+  private static LinkSeries[] counterSeries = null;
+
+  // write the counters into a single binary archive instead of one csv per snapshot
+  private static CounterArchive counterArchive = null;
+  private static boolean archiveCounters = false;
+
+  // also write the counters as one time series per port (links.series)
+  private static LinkSeries linkSeries = null;
+  private static boolean seriesCounters = false;
+  private static int seriesChunk = 64;
+
+  // sums of the counters over fixed time spans, in seconds (the whole run is always included)
+  private static Rollups rollups = null;
+  private static long[] rollupSpans = null;
+
+  // the k hottest links and switches of every window of hotspotSpan seconds (hotspots.json)
+  private static Hotspots hotspots = null;
+  private static int hotspotCount = 0;
+  private static long hotspotSpan = 300;
+
+  // keep running, and convert the snapshots added to the history directory
+  private static boolean followMode = false;
+
+  // convert only the snapshots between fromTime and toTime (seconds, inclusive), only every
+  // snapshotStride-th of them, and at most maxSnapshots of them (0 = all)
+  private static long fromTime = Long.MIN_VALUE;
+  private static long toTime = Long.MAX_VALUE;
+  private static int snapshotStride = 1;
+  private static int maxSnapshots = 0;
+
+  // commits the files of the snapshots from its own thread (see WriteStage)
+  private static WriteStage writeStage = null;
+
+  // compress the '.count' and '.rtable' files: null (plain text), "gzip", or "bgzf" (block gzip)
+  private static String outputEncoding = null;
+
+  // convert only the shardIndex-th of shardCount slices of the history files, and write
+  // shard.bin for the merge command (0 = the whole directory)
+  private static int shardIndex = 0;
+  private static int shardCount = 0;
+  private static Shard shard = null;
+
+  // serve the output directory over http on this port (0 = do not serve)
+  private static int servePort = 0;
+
+  // continue the run saved in checkpoint.bin
+  private static boolean resumeRun = false;
+
+  // timings and volumes of the run, written to run_report.json
+  private static RunReport report = new RunReport();
+
+  // print a progress line every n seconds (0 = never)
+  private static int progressInterval = 0;
+
+  // print the per-file progress messages (disabled when writing in parallel)
+  private static boolean verbose = true;
+
   public static void main(String[] args) throws Exception {
 
-      if (args.length != 1) {         showUsage();    System.exit(1); }
-      if (args[0].equals("help")){    showUsage();    System.exit(1); }
+      String hisPath = null;
+      for (int i = 0; i < args.length; i++) {
+
+          if (args[i].equals("help")) {                           showUsage();    System.exit(1); }
+          else if (args[i].equals("--threads") && i+1 < args.length) {  numThreads = Integer.parseInt(args[++i]);  }
+          else if (args[i].equals("--window") && i+1 < args.length) {   snapshotWindow = Integer.parseInt(args[++i]);  }
+          else if (args[i].equals("--delta")) {                   deltaCounters = true;  }
+          else if (args[i].equals("--counters") && i+1 < args.length) {      exportCounters = parseCounters(args[++i]);  }
+          else if (args[i].equals("--archive")) {                 archiveCounters = true;  }
+          else if (args[i].equals("--series")) {                  seriesCounters = true;  }
+          else if (args[i].equals("--series-chunk") && i+1 < args.length) {  seriesChunk = Integer.parseInt(args[++i]);  }
+          else if (args[i].equals("--rollups") && i+1 < args.length) {       rollupSpans = parseSpans(args[++i]);  }
+          else if (args[i].equals("--hotspots") && i+1 < args.length) {      hotspotCount = Integer.parseInt(args[++i]);  }
+          else if (args[i].equals("--hotspot-window") && i+1 < args.length) {  hotspotSpan = Long.parseLong(args[++i]);  }
+          else if (args[i].equals("--follow")) {                  followMode = true;  }
+          else if (args[i].equals("--resume")) {                  resumeRun = true;  }
+          else if (args[i].equals("--compress") && i+1 < args.length) {      outputEncoding = args[++i];  }
+          else if (args[i].equals("--from") && i+1 < args.length) {          fromTime = parseTime(args[++i]);  }
+          else if (args[i].equals("--to") && i+1 < args.length) {            toTime = parseTime(args[++i]);  }
+          else if (args[i].equals("--stride") && i+1 < args.length) {        snapshotStride = Integer.parseInt(args[++i]);  }
+          else if (args[i].equals("--max") && i+1 < args.length) {           maxSnapshots = Integer.parseInt(args[++i]);  }
+          else if (args[i].equals("--progress") && i+1 < args.length) {      progressInterval = Integer.parseInt(args[++i]);  }
+          else if (args[i].equals("--serve") && i+1 < args.length) {         servePort = Integer.parseInt(args[++i]);  }
+          else if (args[i].equals("--shard") && i+1 < args.length) {         parseShard(args[++i]);  }
+          else if (args[i].equals("merge") && hisPath == null) {
+              mergeShards(Arrays.copyOfRange(args, i+1, args.length));
+              return;
+          }
+          else if (hisPath == null) {                             hisPath = args[i];  }
+          else {                                                  showUsage();    System.exit(1); }
+      }
+
+      if ((hisPath == null && servePort == 0) || servePort < 0 || numThreads < 1 || snapshotWindow < 0 || seriesChunk < 1 || progressInterval < 0) {   showUsage();    System.exit(1); }
+      if (outputEncoding != null && !outputEncoding.equals("gzip") && !outputEncoding.equals("bgzf")) {   showUsage();    System.exit(1); }
+      if (snapshotStride < 1 || maxSnapshots < 0 || fromTime > toTime) {   showUsage();    System.exit(1); }
+      if (hotspotCount < 0 || hotspotSpan < 1) {   showUsage();    System.exit(1); }
+      if (followMode && (archiveCounters || seriesCounters || exportCounters.length > 0 || rollupSpans != null || hotspotCount > 0)) {
+          System.out.println(" --follow cannot be used with --archive, --series, --counters, --rollups, or --hotspots, which are written at the end of the run.");
+          System.exit(1);
+      }
+      if (resumeRun && (archiveCounters || seriesCounters || exportCounters.length > 0 || rollupSpans != null || hotspotCount > 0)) {
+          System.out.println(" --resume cannot be used with --archive, --series, --counters, --rollups, or --hotspots, which are written at the end of the run.");
+          System.exit(1);
+      }
+      if (shardCount > 0 && (followMode || resumeRun || archiveCounters || seriesCounters || exportCounters.length > 0 || rollupSpans != null || hotspotCount > 0)) {
+          System.out.println(" --shard cannot be used with --follow, --resume, --archive, --series, --counters, --rollups, or --hotspots.");
+          System.exit(1);
+      }
+      if (snapshotWindow == 0) {
+          snapshotWindow = (numThreads == 1) ? 1 : 2*numThreads;
+      }
 
-      processOMSHistory(args[0]);
+      // serve the current directory only
+      if (hisPath == null) {
+          new DataServer(new File("."), servePort).start();
+          return;
+      }
+      processOMSHistory(hisPath);
   }
   private static void showUsage(){
       System.out.println(" --- OSMHistoryParser : parses a binary history file into three CSV files ---");
-      System.out.println(" OSMHistoryParser <arg>");
+      System.out.println(" OSMHistoryParser [options] <arg>");
       System.out.println("");
       System.out.println("Usage:");
       System.out.println(" OSMHistoryParser help                   - Shows this help/usage message.");
       System.out.println(" OSMHistoryParser /path/to/hisDir        - Extract data from OMS '.his' files located in a given path.");
       System.out.println(" OSMHistoryParser /path/to/hisFile       - Extract data from a single '.his'");
+      System.out.println(" OSMHistoryParser --serve <port>         - Serve the data converted in the current directory (see --serve).");
+      System.out.println(" OSMHistoryParser merge <dir1> <dir2>... - Merge the outputs of --shard runs into the current directory.");
+      System.out.println("");
+      System.out.println("Options:");
+      System.out.println(" --threads <n>                           - Write the snapshots using n threads (default 1).");
+      System.out.println("                                           Topology is still merged in snapshot order, so the output is identical.");
+      System.out.println(" --window <n>                            - Keep at most n decoded snapshots waiting to be written (default 2 x threads).");
+      System.out.println(" --delta                                 - Write the counters as per-interval deltas, detecting resets and wraparounds.");
+      System.out.println(" --counters <c1,c2,...|all>              - Also write the given port counters (e.g. xmit_wait,symbol_err_cnt) of the whole");
+      System.out.println("                                           run, into one '<counter>.series' file per counter (all: every other counter).");
+      System.out.println(" --archive                               - Write the counters of all snapshots into one binary archive (counters.bin)");
+      System.out.println("                                           instead of one '.count' file per snapshot (and of the files of --counters).");
+      System.out.println(" --series                                - Also write the counters as one time series per port (links.series).");
+      System.out.println(" --series-chunk <n>                      - Number of snapshots transposed in memory at a time for --series (default 64).");
+      System.out.println(" --rollups <s1,s2,...>                   - Write the sums of the counters over spans of s1, s2, ... seconds and over the");
+      System.out.println("                                           whole run, with the maximum in/out values of every node (e.g. 3600,86400).");
+      System.out.println(" --hotspots <k>                          - Write the k most congested links and switches (by xmit_wait, xmit_discards,");
+      System.out.println("                                           and errors) of every window of time to hotspots.json.");
+      System.out.println(" --hotspot-window <s>                    - Length of the windows of --hotspots, in seconds (default 300).");
+      System.out.println(" --follow                                - Keep running, and convert the snapshots added to the directory as they appear.");
+      System.out.println(" --resume                                - Continue the run saved in checkpoint.bin, skipping the snapshots already converted.");
+      System.out.println(" --from <yyyyMMdd-HHmmss>                - Convert only the snapshots taken at or after the given time (local time,");
+      System.out.println("                                           as in the names of the output files).");
+      System.out.println(" --to <yyyyMMdd-HHmmss>                  - Convert only the snapshots taken at or before the given time.");
+      System.out.println(" --stride <n>                            - Convert only every n-th snapshot between --from and --to (default 1).");
+      System.out.println(" --max <n>                               - Stop after converting n snapshots.");
+      System.out.println(" --compress gzip|bgzf                    - Write the '.count' and '.rtable' files gzip-compressed ('.gz'); bgzf writes");
+      System.out.println("                                           independent blocks of 64 KB, so a range of the file can be decompressed alone.");
+      System.out.println(" --progress <s>                          - Print the throughput of the run every s seconds (a report is always written");
+      System.out.println("                                           to run_report.json at the end).");
+      System.out.println(" --serve <port>                          - Once converted, serve the data over http, with range queries (/api/links?t0=..&t1=..,");
+      System.out.println("                                           /api/switches, /api/routing?t=..); with --follow, new snapshots are served as they come.");
+      System.out.println(" --shard <i>/<n>                         - Convert only the i-th of n consecutive slices of the history files (by name), and");
+      System.out.println("                                           write shard.bin, so that the outputs of the n shards can be merged (see merge).");
+  }
+  private static long[] parseSpans(String arg) {
+
+      String[] toks = arg.split(",");
+      long[] spans = new long[toks.length];
+      for (int i = 0; i < toks.length; i++) {
+          spans[i] = Long.parseLong(toks[i].trim());
+          if (spans[i] <= 0) {    showUsage();    System.exit(1); }
+      }
+      return spans;
+  }
+
+  // counter names (PFM_Port.PortCounterName), or "all". rcv_data is always written (in the '.count' files)
+  private static PFM_Port.PortCounterName[] parseCounters(String arg) {
+
+      ArrayList<PFM_Port.PortCounterName> others = new ArrayList<PFM_Port.PortCounterName>();
+      for (PFM_Port.PortCounterName name : PFM_Port.PortCounterName.values()) {
+          if (name != PFM_Port.PortCounterName.rcv_data) {
+              others.add(name);
+          }
+      }
+      if (arg.equals("all")) {
+          return others.toArray(new PFM_Port.PortCounterName[others.size()]);
+      }
+
+      String[] toks = arg.split(",");
+      PFM_Port.PortCounterName[] names = new PFM_Port.PortCounterName[toks.length];
+      for (int i = 0; i < toks.length; i++) {
+          try {
+              names[i] = PFM_Port.PortCounterName.valueOf(toks[i].trim());
+          } catch (IllegalArgumentException e) {
+              names[i] = PFM_Port.PortCounterName.rcv_data;
+          }
+          if (names[i] == PFM_Port.PortCounterName.rcv_data) {
+              System.out.println(" Unknown counter: " + toks[i].trim() + " (expected all, or some of " + others + ";" +
+                                 " rcv_data is always written)");
+              System.exit(1);
+          }
+          for (int j = 0; j < i; j++) {
+              if (names[j] == names[i]) {    showUsage();    System.exit(1); }
+          }
+      }
+      return names;
+  }
+
+  // <i>/<n>: the i-th of n shards (from 1)
+  private static void parseShard(String arg) {
+
+      String[] toks = arg.split("/");
+      if (toks.length != 2) {    showUsage();    System.exit(1); }
+      shardIndex = Integer.parseInt(toks[0].trim());
+      shardCount = Integer.parseInt(toks[1].trim());
+      if (shardCount < 1 || shardIndex < 1 || shardIndex > shardCount) {    showUsage();    System.exit(1); }
   }
+
+  // a time in the format of the output files (yyyyMMdd-HHmmss), in seconds
+  private static long parseTime(String arg) {
+
+      try {
+          return new SimpleDateFormat("yyyyMMdd-HHmmss").parse(arg).getTime() / 1000;
+      } catch (ParseException e) {
+          System.out.println(" Incorrect time: " + arg + " (expected yyyyMMdd-HHmmss)");
+          System.exit(1);
+          return 0;
+      }
+  }
+
   private static FilenameFilter fnameFilter = new FilenameFilter() {
       public boolean accept(File dir, String name) {
           return name.endsWith(".his");
       }
   };
 
+  // the history files of a directory, sorted by name (and therefore by time)
+  private static File[] listHistory(File dir) {
+      File[] hisFiles = dir.listFiles(fnameFilter);
+      Arrays.sort(hisFiles);
+      return hisFiles;
+  }
+
   private static String FormatTimeStamp(String timestamp) throws ParseException {
       java.util.Date temp = new SimpleDateFormat("MMM dd HH:mm:ss yyyy").parse(timestamp);
       return new SimpleDateFormat("yyyyMMdd-HHmmss").format(temp);
@@ -105,163 +412,377 @@ public class OSMHistoryParser {
   public static class MNetwork {
 
     // ---------------------------------------------------------------------------
-    // A single port (on a switch or an end node)
+    // Map from node guid to node ordinal (open addressing, linear probing)
     // ---------------------------------------------------------------------------
-    private class MPort {
+    public static class GuidIndex {
+
+      private long[] _keys;
+      private int[] _values;      // -1 for empty slots
+      private int _size;
+
+      public GuidIndex(int capacity) {
+
+        int n = 16;
+        while (n < 2*capacity) {
+          n <<= 1;
+        }
+        _keys = new long[n];
+        _values = new int[n];
+        Arrays.fill(_values, -1);
+        _size = 0;
+      }
+
+      private static int hash(long guid) {
+        long h = guid * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+      }
 
-      public String _connectedNode;
-      public int _connectedPort;
+      public int get(long guid) {
 
-      public MPort() {
-        _connectedNode = "";
-        _connectedPort = -1;
+        int mask = _keys.length-1;
+        for (int i = hash(guid) & mask; _values[i] != -1; i = (i+1) & mask) {
+          if (_keys[i] == guid) {
+            return _values[i];
+          }
+        }
+        return -1;
       }
-      public boolean isConnected() {
-        return (_connectedPort != -1);
+
+      public void put(long guid, int value) {
+
+        if (2*(_size+1) > _keys.length) {
+          long[] keys = _keys;
+          int[] values = _values;
+          _keys = new long[2*keys.length];
+          _values = new int[2*keys.length];
+          Arrays.fill(_values, -1);
+          _size = 0;
+          for (int i = 0; i < keys.length; i++) {
+            if (values[i] != -1) {
+              put(keys[i], values[i]);
+            }
+          }
+        }
+
+        int mask = _keys.length-1;
+        int i = hash(guid) & mask;
+        for (; _values[i] != -1; i = (i+1) & mask) {
+          if (_keys[i] == guid) {
+            _values[i] = value;
+            return;
+          }
+        }
+        _keys[i] = guid;
+        _values[i] = value;
+        _size++;
       }
-      public void connect(String connectedNode, int connectedPort) {
-        _connectedNode = connectedNode;
-        _connectedPort = connectedPort;
+
+      public GuidIndex copy() {
+        GuidIndex other = new GuidIndex(0);
+        other._keys = _keys.clone();
+        other._values = _values.clone();
+        other._size = _size;
+        return other;
       }
     }
 
     // ---------------------------------------------------------------------------
-    // A single switch (also an end node)
+    // Port ordinals, as seen by the writer threads
+    //   a read-only copy, published again whenever nodes are added (which is rare
+    //   after the first snapshot). ordinals never change once assigned.
     // ---------------------------------------------------------------------------
-    private class MSwitch {
-
-      // data given by the source
-      public final String _nguid;
-      public final String _name;
-      public final int _numPorts;
-      public final boolean _isSwitch;
-
-      public int _lid;
-      public int _numConnectedPorts;
-      public MPort[] _ports;
+    private static class PortLookup {
 
-      public MSwitch(String nguid, String name, boolean isSwitch, int numPorts){
+      public final GuidIndex _index;
+      public final int[] _portBase;
+      public final int[] _numPorts;
+      public final boolean[] _isSwitch;
 
-        _nguid = nguid;
-        _name = name;
+      public PortLookup(GuidIndex index, int[] portBase, int[] numPorts, boolean[] isSwitch) {
+        _index = index;
+        _portBase = portBase;
         _numPorts = numPorts;
-
-        _lid = -1;
-        _numConnectedPorts = 0;
         _isSwitch = isSwitch;
+      }
+    }
+
+    // ---------------------------------------------------------------------------
+    // Nodes (switches and end nodes) are numbered in the order they are discovered,
+    // and their ports are numbered from the node's base ordinal.
+    // All data is kept in arrays indexed by node or port ordinal; guids are
+    // formatted as strings only when something is written.
+    // ---------------------------------------------------------------------------
 
-        _ports = new MPort[_numPorts];
-        for(int i = 0; i < _numPorts; i++) {
-          _ports[i] = new MPort();
+    private int num_nodes, num_switches;
+    private int num_ports, num_connectedPorts;
+
+    private GuidIndex _index = new GuidIndex(1024);
+    private volatile PortLookup _lookup = new PortLookup(new GuidIndex(0), new int[0], new int[0], new boolean[0]);
+
+    // by node ordinal
+    private int _size = 0;
+    private long[] _guids = new long[0];
+    private String[] _guidNames = new String[0];      // colon format, as given by the source
+    private String[] _names = new String[0];
+    private boolean[] _isSwitch = new boolean[0];
+    private int[] _numPorts = new int[0];
+    private int[] _lids = new int[0];
+    private int[] _portBase = new int[0];
+
+    // placement in the fat-tree, by node ordinal (-1/null if unknown)
+    private int[] _lvl = new int[0];
+    private int[] _pod = new int[0];
+    private int[] _idx = new int[0];
+    private String[] _core = new String[0];
+
+    // by port ordinal: node ordinal and port number of the other end of the link (-1 if not connected)
+    private int[] _peerNode = new int[0];
+    private int[] _peerPort = new int[0];
+
+    // global parameters written at the top of the topology (name, num_cores, num_pods, ...)
+    // values are kept as json literals, in the order they should appear
+    private LinkedHashMap<String, String> _params = new LinkedHashMap<String, String>();
+
+    // fingerprints of the fabrics merged so far, and of the previous snapshot
+    private HashSet<Long> _merged = new HashSet<Long>();
+    private long _fingerprint = 0;
+
+    // links of the previous snapshot: pairs of port ordinals (lower one in the high bits), sorted
+    private long[] _links = null;
+    private int _version = 0;
+
+    // the number of nodes and of connected ports when the network was last levelized
+    // (ports are connected once and never disconnected, so these tell if the connectivity changed)
+    private int _levelizedSize = -1;
+    private int _levelizedPorts = -1;
+
+    private static void write_jsonEscaped(Writer w, String s) throws IOException {
+
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        switch (c) {
+          case '"':   w.write("\\\"");  break;
+          case '\\':  w.write("\\\\");  break;
+          case '\n':  w.write("\\n");   break;
+          case '\t':  w.write("\\t");   break;
+          case '\r':  w.write("\\r");   break;
+          default:
+            if (c < 0x20) {   w.write(String.format("\\u%04x", (int) c));  }
+            else {            w.write(c);                                  }
         }
       }
+    }
 
-      public String get_jsonString(String indent) {
+    // ---------------------------------------------------------------------------
 
-        String s = indent + "{" +
-                   " \"id\": \"" + _nguid + "\"," +
-                   " \"desc\": \"" + _name + "\"," +
-                   " \"lid\": " + _lid + ",";
-        s = s + "\n";
-        s = s + indent + "  \"ports\":[";
+    public MNetwork() {
 
-        if(_numPorts > 1) {
-          s = s + "\n";
-        }
+      num_nodes = 0;
+      num_switches = 0;
+      num_ports = 0;
+      num_connectedPorts = 0;
+    }
 
-        String indent2 = (_numPorts == 1) ? "" : indent;
-        for(int i = 0; i < _numPorts; i++) {
+    private int add_node(long guid, String guidName, String name, boolean isSwitch, int numPorts) {
+
+      int n = _size;
+      if (n == _guids.length) {
+        int capacity = Math.max(1024, 2*n);
+        _guids = Arrays.copyOf(_guids, capacity);
+        _guidNames = Arrays.copyOf(_guidNames, capacity);
+        _names = Arrays.copyOf(_names, capacity);
+        _isSwitch = Arrays.copyOf(_isSwitch, capacity);
+        _numPorts = Arrays.copyOf(_numPorts, capacity);
+        _lids = Arrays.copyOf(_lids, capacity);
+        _portBase = Arrays.copyOf(_portBase, capacity);
+        _lvl = Arrays.copyOf(_lvl, capacity);
+        _pod = Arrays.copyOf(_pod, capacity);
+        _idx = Arrays.copyOf(_idx, capacity);
+        _core = Arrays.copyOf(_core, capacity);
+      }
 
-           String dsnode = "";
-           int dsport = -1;
+      int nports = Math.max(numPorts, 0);
+      if (num_ports + nports > _peerNode.length) {
+        int capacity = Math.max(4096, Math.max(2*_peerNode.length, num_ports + nports));
+        int old = _peerNode.length;
+        _peerNode = Arrays.copyOf(_peerNode, capacity);
+        _peerPort = Arrays.copyOf(_peerPort, capacity);
+        Arrays.fill(_peerNode, old, capacity, -1);
+        Arrays.fill(_peerPort, old, capacity, -1);
+      }
 
-           if(_ports[i].isConnected()){
-              dsnode = _ports[i]._connectedNode;
-              dsport = _ports[i]._connectedPort;
-           }
-           s = s + indent2 + indent2 + "{" +
-               " \"num\": " + (i+1) + ", \"dest_node\": \"" + dsnode + "\", \"dest_port\": " + dsport + "}";
+      _guids[n] = guid;
+      _guidNames[n] = guidName;
+      _names[n] = name;
+      _isSwitch[n] = isSwitch;
+      _numPorts[n] = numPorts;
+      _lids[n] = -1;
+      _portBase[n] = num_ports;
+      _lvl[n] = -1;
+      _pod[n] = -1;
+      _idx[n] = -1;
+      _core[n] = null;
+
+      _index.put(guid, n);
+      num_ports += nports;
+      _size++;
+      return n;
+    }
 
-          if(i != _numPorts-1)
-            s = s + ",";
+    // streams a node as a json object, without building the string in memory
+    private void write_json(Writer w, int n, String indent) throws IOException {
+
+      w.write(indent);
+      w.write("{ \"id\": \"");       w.write(_guidNames[n]);
+      w.write("\", \"desc\": \"");  write_jsonEscaped(w, _names[n]);
+      w.write("\", \"lid\": ");      w.write(Integer.toString(_lids[n]));
+      w.write(",\n");
+
+      // fat-tree placement of switches (available once the network has been levelized)
+      if (_lvl[n] != -1) {
+        w.write(indent);
+        w.write("  \"lvl\": ");   w.write(Integer.toString(_lvl[n]));
+        if (_pod[n] != -1) {     w.write(", \"pod\": ");   w.write(Integer.toString(_pod[n]));   }
+        if (_idx[n] != -1) {     w.write(", \"idx\": ");   w.write(Integer.toString(_idx[n]));   }
+        if (_core[n] != null) {  w.write(", \"core\": \"");  write_jsonEscaped(w, _core[n]);  w.write("\"");  }
+        w.write(",\n");
+      }
 
-          if(_numPorts > 1) {
-              s = s + "\n";
-          }
-        }
-        s = s + indent2 + "  ]\n";
-        s = s + indent + "}";
-        return s;
+      w.write(indent);
+      w.write("  \"ports\":[");
+
+      int numPorts = _numPorts[n];
+      if(numPorts > 1) {
+        w.write("\n");
       }
 
-      public MPort get_port(int portId) throws Exception {
+      String indent2 = (numPorts == 1) ? "" : indent;
+      for(int i = 0; i < numPorts; i++) {
 
-        if (portId > _numPorts || portId < 1) {
-          System.out.println(" get_port(): Invalid portId " + portId + ". Only " + _numPorts + " ports exist!");
-          throw new Exception();
+         int o = _portBase[n] + i;
+         String dsnode = (_peerNode[o] != -1) ? _guidNames[_peerNode[o]] : "";
+         int dsport = _peerPort[o];
+
+         w.write(indent2);
+         w.write(indent2);
+         w.write("{ \"num\": ");          w.write(Integer.toString(i+1));
+         w.write(", \"dest_node\": \"");  w.write(dsnode);
+         w.write("\", \"dest_port\": ");  w.write(Integer.toString(dsport));
+         w.write("}");
+
+        if(i != numPorts-1)
+          w.write(",");
+
+        if(numPorts > 1) {
+            w.write("\n");
         }
-        return _ports[portId-1];
       }
+      w.write(indent2);
+      w.write("  ]\n");
+      w.write(indent);
+      w.write("}");
+    }
 
-      public void connect_port(int portId, int lid, String otherNodeId, int otherPortId) throws Exception {
+    private void print_json(int n, String indent) {
+      try {
+        PrintWriter pw = new PrintWriter(System.out);
+        write_json(pw, n, indent);
+        pw.println();
+        pw.flush();
+      } catch (IOException e) {
+      }
+    }
 
-        //System.out.println(" connect_port(" + lid + ") " + ", " + _lids.get(0) + " [" + _nguid + "]["+portId+"]" + " lvl = " + _lvl);
+    private void connect_port(int n, int portId, int lid, int otherNode, int otherPortId) throws Exception {
 
-        if ( _lid != lid && _lid != -1) {
-          System.out.println(" connect_port(): lid mismatch " + lid + " != " + _lid);
-          System.out.println(get_jsonString(" "));
-          throw new Exception();
-        }
-        if (portId > _numPorts || portId < 1) {
-          System.out.println(" connect_port(): Invalid portId " + portId + ". Only " + _numPorts + " ports exist!");
-          throw new Exception();
-        }
+      if ( _lids[n] != lid && _lids[n] != -1) {
+        System.out.println(" connect_port(): lid mismatch " + lid + " != " + _lids[n]);
+        print_json(n, " ");
+        throw new Exception();
+      }
+      if (portId > _numPorts[n] || portId < 1) {
+        System.out.println(" connect_port(): Invalid portId " + portId + ". Only " + _numPorts[n] + " ports exist!");
+        throw new Exception();
+      }
 
-        _lid = lid;
+      _lids[n] = lid;
 
-        // if this port is already connected, verify the connection!
-        int cport = _ports[portId-1]._connectedPort;
-        String cnode = _ports[portId-1]._connectedNode;
+      // if this port is already connected, verify the connection!
+      int o = _portBase[n] + portId - 1;
+      int cport = _peerPort[o];
+      int cnode = _peerNode[o];
 
-        if (cport != -1) {
+      if (cport != -1) {
 
-          if(!cnode.equals(otherNodeId) || cport != otherPortId) {
-            System.out.println(" connect_port(): [" + _nguid + "-" + portId + "] is already mapped to [" + cnode + "-" + cport + "]" +
-                                                " while trying to map to [" + otherNodeId + "-" + otherPortId + "]");
-            throw new Exception();
-          }
-          return;
+        if(cnode != otherNode || cport != otherPortId) {
+          System.out.println(" connect_port(): [" + _guidNames[n] + "-" + portId + "] is already mapped to [" + _guidNames[cnode] + "-" + cport + "]" +
+                                              " while trying to map to [" + _guidNames[otherNode] + "-" + otherPortId + "]");
+          throw new Exception();
         }
-
-        _ports[portId-1].connect(otherNodeId, otherPortId);
-        _numConnectedPorts ++;
+        return;
       }
 
-      TreeSet<String> get_connectedNodes() {
+      _peerNode[o] = otherNode;
+      _peerPort[o] = otherPortId;
+      num_connectedPorts++;
+    }
+
+    // node ordinals, sorted by guid
+    private Integer[] get_sortedNodes() {
 
-        TreeSet<String> connectedNodes = new TreeSet<String>();
+      Integer[] nodes = new Integer[_size];
+      for (int n = 0; n < _size; n++) {
+        nodes[n] = n;
+      }
+      Arrays.sort(nodes, new java.util.Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return _guidNames[a].compareTo(_guidNames[b]);
+        }
+      });
+      return nodes;
+    }
 
-        for(int i = 0; i < _numPorts; i++) {
+    // the node guid and port number of every port ordinal
+    public void get_portDictionary(long[] guids, int[] portNums) {
 
-          if( _ports[i].isConnected() )
-            connectedNodes.add(_ports[i]._connectedNode);
+      for (int n = 0; n < _size; n++) {
+        for (int p = 0; p < _numPorts[n]; p++) {
+          guids[_portBase[n]+p] = _guids[n];
+          portNums[_portBase[n]+p] = p+1;
         }
-        return connectedNodes;
       }
     }
 
-    // ---------------------------------------------------------------------------
-    // ---------------------------------------------------------------------------
+    public int get_numPorts() {
+      return num_ports;
+    }
 
-    private int num_nodes, num_switches;
-    private TreeMap<String, MSwitch> _nodeMap = new TreeMap<String, MSwitch>();
+    // can be called from any thread
+    public int get_portOrdinal(long guid, int portNum) {
 
-    // ---------------------------------------------------------------------------
+      PortLookup lookup = _lookup;
+      int n = lookup._index.get(guid);
+      if (n == -1 || portNum < 1 || portNum > lookup._numPorts[n]) {
+        return -1;
+      }
+      return lookup._portBase[n] + portNum - 1;
+    }
 
-    public MNetwork() {
+    // the switch of every port ordinal below numPorts (-1 for the ports of end nodes),
+    // and returns the number of nodes. can be called from any thread
+    public int get_portSwitches(int[] switches) {
 
-      num_nodes = 0;
-      num_switches = 0;
+      PortLookup lookup = _lookup;
+      Arrays.fill(switches, -1);
+      for (int n = 0; n < lookup._portBase.length; n++) {
+        if (!lookup._isSwitch[n]) {
+          continue;
+        }
+        for (int p = 0; p < lookup._numPorts[n] && lookup._portBase[n]+p < switches.length; p++) {
+          switches[lookup._portBase[n]+p] = n;
+        }
+      }
+      return lookup._portBase.length;
     }
 
     private void add_nodes(OSM_Fabric fabric) {
@@ -276,20 +797,18 @@ public class OSMHistoryParser {
         for(Map.Entry<String, OSM_Node> entry: osMSwitchs.entrySet()){
 
           OSM_Node onode = entry.getValue();
-          String guid = onode.getNodeGuid().toColonString();
+          long guid = onode.getNodeGuid().getGuid();
 
           boolean is_switch = onode.isSwitch();
           SBN_Node sbnNode = onode.sbnNode;
 
           int num_ports = (sbnNode != null) ? sbnNode.num_ports : -1;
-          String name = (sbnNode != null) ? sbnNode.description: "unknown";
 
           // if this node exists, verify
-          if( _nodeMap.containsKey( guid ) ) {
-
-            MSwitch node = _nodeMap.get(guid);
+          int n = _index.get(guid);
+          if( n != -1 ) {
 
-            if (node._numPorts != num_ports || node._isSwitch != is_switch ) {
+            if (_numPorts[n] != num_ports || _isSwitch[n] != is_switch ) {
               System.out.println(" create_nodes(): failed at mismatch!");
               throw new Exception();
             }
@@ -297,12 +816,11 @@ public class OSMHistoryParser {
             continue;
           }
 
-          MSwitch node = new MSwitch( guid, name, is_switch, num_ports );
+          String name = (sbnNode != null) ? sbnNode.description: "unknown";
+          add_node( guid, onode.getNodeGuid().toColonString(), name, is_switch, num_ports );
 
           if(is_switch) {    num_switches++;   }
           else {             num_nodes++;      }
-
-          _nodeMap.put(guid, node);
         }
       } catch (Exception e){
         System.out.println(" create_nodes(): failed!");
@@ -310,11 +828,15 @@ public class OSMHistoryParser {
         System.exit(1);
       }
       if(num_nodes > nn || num_switches > ns) {
+
+        // let the writers see the new ports
+        _lookup = new PortLookup(_index.copy(), Arrays.copyOf(_portBase, _size), Arrays.copyOf(_numPorts, _size), Arrays.copyOf(_isSwitch, _size));
+
         System.out.println(" Created " + (num_nodes-nn) + " nodes and " + (num_switches-ns) + " switches." +
-                              " New total = " + _nodeMap.size() + "(" + num_nodes + " + " + num_switches + ")");
+                              " New total = " + _size + "(" + num_nodes + " + " + num_switches + ")");
       }
       else {
-        System.out.println(" Done! Total nodes = " + _nodeMap.size() + "(" + num_nodes + " + " + num_switches + ")");
+        System.out.println(" Done! Total nodes = " + _size + "(" + num_nodes + " + " + num_switches + ")");
       }
     }
 
@@ -322,10 +844,7 @@ public class OSMHistoryParser {
 
       System.out.print("   Adding links...");
 
-      Integer countPortsConnected0 = 0;
-      for(Map.Entry<String, MSwitch> entry: _nodeMap.entrySet()){
-        countPortsConnected0 += entry.getValue()._numConnectedPorts;
-      }
+      int countPortsConnected0 = num_connectedPorts;
 
       try {
         LinkedHashMap<String, IB_Link> ibLinks = fabric.getIB_Links();
@@ -335,30 +854,27 @@ public class OSMHistoryParser {
           OSM_Port oPort1 = iLink.getEndpoint1();
           OSM_Port oPort2 = iLink.getEndpoint2();
 
-          String node1Guid = oPort1.getNodeGuid().toColonString();
-          String node2Guid = oPort2.getNodeGuid().toColonString();
-
-          Integer node1Lid = oPort1.getAddress().getLocalId();
-          Integer node2Lid = oPort2.getAddress().getLocalId();
-
-          Integer node1Port = oPort1.getPortNumber();
-          Integer node2Port = oPort2.getPortNumber();
-
-          MSwitch nodeSrc = _nodeMap.get(node1Guid);
-          MSwitch nodeDst = _nodeMap.get(node2Guid);
+          int nodeSrc = _index.get(oPort1.getNodeGuid().getGuid());
+          int nodeDst = _index.get(oPort2.getNodeGuid().getGuid());
 
-          if(nodeSrc == null) {
-            System.out.println(" node " + node1Guid + " not found!");
+          if(nodeSrc == -1) {
+            System.out.println(" node " + oPort1.getNodeGuid().toColonString() + " not found!");
             throw new Exception();
           }
-          if(nodeDst == null) {
-            System.out.println(" node " + node2Guid + " not found!");
+          if(nodeDst == -1) {
+            System.out.println(" node " + oPort2.getNodeGuid().toColonString() + " not found!");
             throw new Exception();
           }
 
+          int node1Lid = oPort1.getAddress().getLocalId();
+          int node2Lid = oPort2.getAddress().getLocalId();
+
+          int node1Port = oPort1.getPortNumber();
+          int node2Port = oPort2.getPortNumber();
+
           // set the lid and connect the port
-          nodeSrc.connect_port(node1Port, node1Lid, node2Guid, node2Port);
-          nodeDst.connect_port(node2Port, node2Lid, node1Guid, node1Port);
+          connect_port(nodeSrc, node1Port, node1Lid, nodeDst, node2Port);
+          connect_port(nodeDst, node2Port, node2Lid, nodeSrc, node1Port);
         }
       } catch (Exception e){
         System.out.println(" create_links(): failed!");
@@ -366,10 +882,7 @@ public class OSMHistoryParser {
         System.exit(1);
       }
 
-      Integer countPortsConnected1 = 0;
-      for(Map.Entry<String, MSwitch> entry: _nodeMap.entrySet()){
-        countPortsConnected1 += entry.getValue()._numConnectedPorts;
-      }
+      int countPortsConnected1 = num_connectedPorts;
 
       if(countPortsConnected1 > countPortsConnected0) {
         System.out.println(" Connected " + (countPortsConnected1-countPortsConnected0) + " ports. New total = " + countPortsConnected1);
@@ -379,201 +892,4807 @@ public class OSMHistoryParser {
       }
     }
 
-    public void write_network(String filename) {
+    // ---------------------------------------------------------------------------
+    // Fingerprint of the nodes and links of a fabric
+    //   a sum of hashes, so it does not depend on the order of the maps. lids are
+    //   included, since a change of lid must still be seen (and rejected) by add_links.
+    // ---------------------------------------------------------------------------
+    private static long mix(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+    }
 
-      System.out.print("   Writing network...");
+    private static long get_endpointHash(OSM_Port port) {
+      long p = ((long) port.getPortNumber() << 32) | (port.getAddress().getLocalId() & 0xffffffffL);
+      return mix(port.getNodeGuid().getGuid() ^ mix(p));
+    }
 
-      try {
+    public static long get_fabricFingerprint(OSM_Fabric fabric) {
 
-        File outfile = new File(".", filename);
-        outfile.createNewFile();
-        BufferedWriter bwriter = new BufferedWriter(new FileWriter(outfile));
+      LinkedHashMap<String, OSM_Node> nodes = fabric.getOSM_Nodes();
+      LinkedHashMap<String, IB_Link> links = fabric.getIB_Links();
 
-        bwriter.write("{");
-        /*
-        bwriter.write(" \"name\": \"" + _fabric.getFabricName() + "\"," +
-                      "\n"
-                    );
-        */
-        // --------------------------------------
+      long h = 0;
+      for (OSM_Node onode : nodes.values()) {
+        SBN_Node sbnNode = onode.sbnNode;
+        long p = (((long) ((sbnNode != null) ? sbnNode.num_ports : -1)) << 1) | (onode.isSwitch() ? 1 : 0);
+        h += mix(onode.getNodeGuid().getGuid() ^ mix(p));
+      }
+      for (IB_Link iLink : links.values()) {
+        // symmetric in the two endpoints
+        h += mix(get_endpointHash(iLink.getEndpoint1()) + get_endpointHash(iLink.getEndpoint2()));
+      }
+      return mix(h ^ mix(((long) nodes.size() << 32) | links.size()));
+    }
 
-            // --------------------------------------
-            bwriter.write("  \"nodes\":[\n");
-            int count = 0;
-            for (Map.Entry<String, MSwitch> entry : _nodeMap.entrySet()) {
-              MSwitch s = entry.getValue();
+    // the links of a fabric whose nodes have all been added, as sorted pairs of port ordinals
+    private long[] get_links(OSM_Fabric fabric) {
 
-              if(s._isSwitch) continue;
+      LinkedHashMap<String, IB_Link> ibLinks = fabric.getIB_Links();
+      long[] links = new long[ibLinks.size()];
+      int n = 0;
+      for (IB_Link iLink : ibLinks.values()) {
 
-              bwriter.write( entry.getValue().get_jsonString("   "));
+        OSM_Port oPort1 = iLink.getEndpoint1();
+        OSM_Port oPort2 = iLink.getEndpoint2();
+        long o1 = _portBase[_index.get(oPort1.getNodeGuid().getGuid())] + oPort1.getPortNumber() - 1;
+        long o2 = _portBase[_index.get(oPort2.getNodeGuid().getGuid())] + oPort2.getPortNumber() - 1;
+        links[n++] = (o1 < o2) ? (o1 << 32) | o2 : (o2 << 32) | o1;
+      }
+      Arrays.sort(links);
+      return links;
+    }
 
-              if(count++ != num_nodes-1)
-                bwriter.write( ",");
+    // ---------------------------------------------------------------------------
+    // Merges the nodes and links of a snapshot into the network
+    //   a fabric identical to the previous one is skipped. otherwise, the changes
+    //   are written to <fname>.tdelta (except for the first snapshot).
+    // ---------------------------------------------------------------------------
+    public void merge_fabric(OSM_Fabric fabric, long timestamp, String fname) {
 
-              bwriter.write("\n");
-            }
-            bwriter.write("  ],\n");
+      long t0 = report.start();
+      long fingerprint = get_fabricFingerprint(fabric);
+      report.stop(RunReport.FINGERPRINT, t0);
 
-            // --------------------------------------
-            bwriter.write("  \"switches\":[\n");
-            count = 0;
-            for (Map.Entry<String, MSwitch> entry : _nodeMap.entrySet()) {
-              MSwitch s = entry.getValue();
+      if (_links != null && fingerprint == _fingerprint) {
+        System.out.println("   Topology unchanged, skipped!");
+        return;
+      }
 
-              if(!s._isSwitch)
-                continue;
+      int size0 = _size;
+      _checkpoint = null;
 
-              bwriter.write( entry.getValue().get_jsonString("   "));
+      // a fabric seen before (e.g., a link coming back up) has nothing new to merge
+      if (_merged.add(fingerprint)) {
+        t0 = report.start();
+        add_nodes(fabric);
+        t0 = report.stop(RunReport.MERGE_NODES, t0);
+        add_links(fabric);
+        report.stop(RunReport.MERGE_LINKS, t0);
+      }
 
-              if(count++ != num_switches-1)
-                bwriter.write( ",");
+      t0 = report.start();
+      long[] links = get_links(fabric);
+      t0 = report.stop(RunReport.MERGE_LINKS, t0);
+      if (_links != null) {
+        write_topologyDelta(fname + ".tdelta", timestamp, size0, _links, links);
+        report.stop(RunReport.TOPOLOGY, t0);
+        report.add_bytes(RunReport.TOPOLOGY, fname + ".tdelta");
+      }
+      _links = links;
+      _fingerprint = fingerprint;
+    }
 
-              bwriter.write("\n");
+    // ---------------------------------------------------------------------------
+    // Merges the topology of a snapshot of a shard (see Shard), as merge_fabric would
+    // have merged that snapshot: the nodes of the shard up to its numNodes first, and the
+    // links, given as pairs of port ordinals of the shard, with the checks of connect_port.
+    // ---------------------------------------------------------------------------
+    public void merge_shard(MNetwork shard, long timestamp, String fname, long fingerprint, int numNodes, long[] shardLinks) {
+
+      if (_links != null && fingerprint == _fingerprint) {
+        System.out.println("   Topology unchanged, skipped!");
+        return;
+      }
+
+      int size0 = _size;
+      _checkpoint = null;
+
+      try {
+        for (int sn = 0; sn < numNodes; sn++) {
+
+          int n = _index.get(shard._guids[sn]);
+          if (n != -1) {
+            if (_numPorts[n] != shard._numPorts[sn] || _isSwitch[n] != shard._isSwitch[sn]) {
+              System.out.println(" merge_shard(): node " + shard._guidNames[sn] + " does not match!");
+              throw new Exception();
             }
-            bwriter.write("  ]\n");
+            continue;
+          }
+          add_node(shard._guids[sn], shard._guidNames[sn], shard._names[sn], shard._isSwitch[sn], shard._numPorts[sn]);
+          if (shard._isSwitch[sn]) {   num_switches++;  }
+          else {                       num_nodes++;     }
+        }
+        if (_size > size0) {
+          _lookup = new PortLookup(_index.copy(), Arrays.copyOf(_portBase, _size), Arrays.copyOf(_numPorts, _size), Arrays.copyOf(_isSwitch, _size));
+        }
 
-        // --------------------------------------
-        bwriter.write("}\n");
-        bwriter.flush();
-        bwriter.close();
-      } catch (Exception e){
-        System.out.println(" write_Json(): Unable to write to file.");
+        boolean known = !_merged.add(fingerprint);
+        long[] links = new long[shardLinks.length];
+        for (int i = 0; i < shardLinks.length; i++) {
+
+          int so1 = (int) (shardLinks[i] >>> 32);
+          int so2 = (int) shardLinks[i];
+          int sn1 = shard.get_portNode(so1);
+          int sn2 = shard.get_portNode(so2);
+          int n1 = _index.get(shard._guids[sn1]);
+          int n2 = _index.get(shard._guids[sn2]);
+          int p1 = so1 - shard._portBase[sn1] + 1;
+          int p2 = so2 - shard._portBase[sn2] + 1;
+
+          if (!known) {
+            connect_port(n1, p1, shard._lids[sn1], n2, p2);
+            connect_port(n2, p2, shard._lids[sn2], n1, p1);
+          }
+          long o1 = _portBase[n1] + p1 - 1;
+          long o2 = _portBase[n2] + p2 - 1;
+          links[i] = (o1 < o2) ? (o1 << 32) | o2 : (o2 << 32) | o1;
+        }
+        Arrays.sort(links);
+
+        if (_links != null) {
+          write_topologyDelta(fname + ".tdelta", timestamp, size0, _links, links);
+        }
+        _links = links;
+        _fingerprint = fingerprint;
+
+      } catch (Exception e) {
+        System.out.println(" merge_shard(): failed!");
         e.printStackTrace();
         System.exit(1);
-      } finally {
       }
-      System.out.println(" Done!");
     }
 
-    public static void write_portCounters(OSM_Fabric fabric, String filename) {
-
-      System.out.print("   Writing port counters to file " + filename + "...");
-      try {
+    // the ordinal in this network of every port ordinal of the shard (-1 if unknown)
+    public int[] get_portOrdinals(MNetwork shard) {
 
-        File outfile = new File(".", filename);
-        outfile.createNewFile();
-        BufferedWriter bwriter = new BufferedWriter(new FileWriter(outfile));
+      int[] ordinals = new int[shard.num_ports];
+      for (int sn = 0; sn < shard._size; sn++) {
+        for (int p = 0; p < Math.max(shard._numPorts[sn], 0); p++) {
+          ordinals[shard._portBase[sn] + p] = get_portOrdinal(shard._guids[sn], p+1);
+        }
+      }
+      return ordinals;
+    }
 
-        LinkedHashMap<String, OSM_Port> ports = fabric.getOSM_Ports();
+    // ---------------------------------------------------------------------------
+    // Checkpoint of the network (see Conversion.write_checkpoint)
+    //   serialized only when the network has changed since the previous call
+    // ---------------------------------------------------------------------------
+    private byte[] _checkpoint = null;
 
-        bwriter.write("node_id,port_idx,"+
-                      "rcv_data"
-			/*+",rcv_err,rcv_switch_relay_err,rcv_rem_phys_err,rcv_constraint_err,"+
-                      "xmit_data,xmit_discards,xmit_wait,xmit_constraint_err,"+
-                      "multicast_rcv_pkts,multicast_xmit_pkts,unicast_rcv_pkts,unicast_xmit_pkts,"+
-                      "symbol_err_cnt,vl15_dropped,buffer_overrun,link_downed,link_err_recover,link_integrity"*/
-                      );
-        bwriter.newLine();
+    public byte[] get_checkpoint() throws IOException {
 
-        for (Map.Entry<String, OSM_Port> entry: ports.entrySet()){
+      if (_checkpoint != null) {
+        return _checkpoint;
+      }
 
-          String portId = entry.getKey();
-          OSM_Port port = entry.getValue();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
 
-          String nguid = portId.substring(0, 19);
-          int portNum = Integer.parseInt(portId.substring(20));
+      out.writeInt(_params.size());
+      for (Map.Entry<String, String> entry : _params.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeUTF(entry.getValue());
+      }
 
-          //System.out.println("portID = " + portId + " nguid = " + nguid + " portNum = " + portNum);
-          if (port.getPfmPort() == null){
-              continue;
-          }
+      out.writeInt(_size);
+      for (int n = 0; n < _size; n++) {
+        out.writeLong(_guids[n]);
+        out.writeUTF(_guidNames[n]);
+        out.writeUTF(_names[n]);
+        out.writeBoolean(_isSwitch[n]);
+        out.writeInt(_numPorts[n]);
+        out.writeInt(_lids[n]);
+      }
+      out.writeInt(num_ports);
+      for (int o = 0; o < num_ports; o++) {
+        out.writeInt(_peerNode[o]);
+        out.writeInt(_peerPort[o]);
+      }
 
-          bwriter.write(nguid + "," + portNum + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.rcv_data)*4 /*+ "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.rcv_err) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.rcv_switch_relay_err) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.rcv_rem_phys_err) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.rcv_constraint_err) + "," +
-                          //
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.xmit_data)*4 + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.xmit_discards) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.xmit_wait) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.xmit_constraint_err) + "," +
-                          //
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.multicast_rcv_pkts) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.multicast_xmit_pkts) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.unicast_rcv_pkts) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.unicast_xmit_pkts) + "," +
-                          //
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.symbol_err_cnt) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.vl15_dropped) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.buffer_overrun) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.link_downed) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.link_err_recover) + "," +
-                          port.pfmPort.getCounter(PFM_Port.PortCounterName.link_integrity)*/
-                        );
-          bwriter.newLine();
+      out.writeInt(_merged.size());
+      for (long fingerprint : _merged) {
+        out.writeLong(fingerprint);
+      }
+      out.writeLong(_fingerprint);
+      out.writeInt(_version);
+      out.writeInt((_links == null) ? -1 : _links.length);
+      if (_links != null) {
+        for (long link : _links) {
+          out.writeLong(link);
         }
-        bwriter.close();
-      } catch (Exception e) {
-          System.out.println(" write_portCounters(): failed!");
-          e.printStackTrace();
-          System.exit(1);
-      } finally {
       }
-      System.out.println(" Done!");
+      out.flush();
+
+      _checkpoint = bytes.toByteArray();
+      return _checkpoint;
     }
 
-    private static void write_routing(OSM_Fabric fabric, String filename) {
+    public static MNetwork read_checkpoint(byte[] checkpoint) throws IOException {
 
-      String indent = " ";
-      try{
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(checkpoint));
+      MNetwork mn = new MNetwork();
 
-        System.out.print("   Parsing Routing Table and writing to file " + filename + "...");
-        RT_Table _rTable = RT_Table.buildRT_Table(fabric);
+      int numParams = in.readInt();
+      for (int i = 0; i < numParams; i++) {
+        String key = in.readUTF();
+        mn._params.put(key, in.readUTF());
+      }
 
-        File outfile = new File(".", filename);
-        outfile.createNewFile();
-        BufferedWriter bwriter = new BufferedWriter(new FileWriter(outfile));
+      int size = in.readInt();
+      for (int i = 0; i < size; i++) {
+        long guid = in.readLong();
+        String guidName = in.readUTF();
+        String name = in.readUTF();
+        boolean isSwitch = in.readBoolean();
+        int n = mn.add_node(guid, guidName, name, isSwitch, in.readInt());
+        mn._lids[n] = in.readInt();
+
+        if (isSwitch) {   mn.num_switches++;  }
+        else {            mn.num_nodes++;     }
+      }
+      if (in.readInt() != mn.num_ports) {
+        throw new IOException("read_checkpoint(): inconsistent number of ports");
+      }
+      for (int o = 0; o < mn.num_ports; o++) {
+        mn._peerNode[o] = in.readInt();
+        mn._peerPort[o] = in.readInt();
+        if (mn._peerPort[o] != -1) {
+          mn.num_connectedPorts++;
+        }
+      }
+      mn._lookup = new PortLookup(mn._index.copy(), Arrays.copyOf(mn._portBase, mn._size), Arrays.copyOf(mn._numPorts, mn._size), Arrays.copyOf(mn._isSwitch, mn._size));
 
-        bwriter.write( "nodeid, lid:portnum, lid:portnum, ....\n");
+      int numMerged = in.readInt();
+      for (int i = 0; i < numMerged; i++) {
+        mn._merged.add(in.readLong());
+      }
+      mn._fingerprint = in.readLong();
+      mn._version = in.readInt();
+      int numLinks = in.readInt();
+      if (numLinks >= 0) {
+        mn._links = new long[numLinks];
+        for (int i = 0; i < numLinks; i++) {
+          mn._links[i] = in.readLong();
+        }
+      }
+      mn._checkpoint = checkpoint;
+      return mn;
+    }
 
-        // for each switch in the routing table
-        for (Map.Entry<String, RT_Node> nEntry: _rTable.getSwitchGuidMap().entrySet()){
+    private void write_link(Writer w, long link) throws IOException {
 
-          RT_Node rnode  = nEntry.getValue();
-          String rnguid = rnode.getGuid().toColonString();
+      int o1 = (int) (link >>> 32);
+      int o2 = (int) link;
 
-          // data is given by RT_Table as a port->lid Map
-          // we will write it as an inverse map (lid->port) to allow efficient route finding
-          TreeMap<Integer, Integer> forwardingTable = new TreeMap<Integer, Integer>();
-          for (Map.Entry<String,RT_Port> pEntry: rnode.getPortRouteMap().entrySet()){
+      // every link of a snapshot has been merged, so each end is the peer of the other
+      int n1 = _peerNode[o2];
+      int n2 = _peerNode[o1];
 
-            RT_Port rport = pEntry.getValue();
-            int rportNum = rport.getPortNumber();
+      w.write("   { \"node\": \"");       w.write(_guidNames[n1]);
+      w.write("\", \"port\": ");         w.write(Integer.toString(o1 - _portBase[n1] + 1));
+      w.write(", \"dest_node\": \"");    w.write(_guidNames[n2]);
+      w.write("\", \"dest_port\": ");    w.write(Integer.toString(o2 - _portBase[n2] + 1));
+      w.write("}");
+    }
 
-            for (Map.Entry<String,Integer> item: rport.getLidGuidMap().entrySet()){
-              forwardingTable.put( item.getValue(), rportNum );
-            }
-          }
+    // writes the links of curr that are not in prev (or of prev that are not in curr)
+    private void write_linkDiff(Writer w, String key, long[] prev, long[] curr, boolean up) throws IOException {
 
-          // now write this node and its map
-          bwriter.write( rnguid + ",");
+      long[] a = up ? curr : prev;
+      long[] b = up ? prev : curr;
 
-            int nports = forwardingTable.size();
-            int iports = 0;
-            for (Map.Entry<Integer, Integer> entry : forwardingTable.entrySet()) {
+      w.write("  \"" + key + "\":[");
+      int count = 0;
+      int j = 0;
+      for (int i = 0; i < a.length; i++) {
+        while (j < b.length && b[j] < a[i]) {
+          j++;
+        }
+        if (j < b.length && b[j] == a[i]) {
+          continue;
+        }
+        w.write((count++ == 0) ? "\n" : ",\n");
+        write_link(w, a[i]);
+      }
+      w.write((count == 0) ? "]" : "\n  ]");
+    }
 
-              //System.out.println(entry.getKey() + " : " + entry.getValue());
-              bwriter.write(entry.getKey() + ":" + entry.getValue());
+    private void write_topologyDelta(String filename, long timestamp, int size0, long[] prev, long[] curr) {
 
-              if(iports++ != nports-1) {
-                bwriter.write(",");
+      _version++;
+      _params.put("topo_version", Integer.toString(_version));
+
+      System.out.print("   Writing topology delta " + _version + " to " + filename + "...");
+
+      try {
+        BufferedWriter bwriter = new BufferedWriter(new FileWriter(new File(".", filename)), 1 << 16);
+
+        bwriter.write("{\n");
+        bwriter.write("  \"version\": " + _version + ",\n");
+        bwriter.write("  \"timestamp\": " + timestamp + ",\n");
+
+        bwriter.write("  \"nodes_added\":[");
+        for (int n = size0; n < _size; n++) {
+          bwriter.write((n == size0) ? "\n" : ",\n");
+          bwriter.write("   { \"id\": \"");       bwriter.write(_guidNames[n]);
+          bwriter.write("\", \"desc\": \"");     write_jsonEscaped(bwriter, _names[n]);
+          bwriter.write("\", \"switch\": ");     bwriter.write(_isSwitch[n] ? "true" : "false");
+          bwriter.write(", \"num_ports\": ");    bwriter.write(Integer.toString(_numPorts[n]));
+          bwriter.write("}");
+        }
+        bwriter.write((_size == size0) ? "],\n" : "\n  ],\n");
+
+        write_linkDiff(bwriter, "links_up", prev, curr, true);
+        bwriter.write(",\n");
+        write_linkDiff(bwriter, "links_down", prev, curr, false);
+        bwriter.write("\n}\n");
+        bwriter.close();
+      } catch (IOException e) {
+        System.out.println(" write_topologyDelta(): Unable to write to file.");
+        e.printStackTrace();
+        System.exit(1);
+      }
+      System.out.println(" Done!");
+    }
+
+    // the placement of the switches in the fat-tree (see place_switches), computed again only
+    // when nodes or links were added: the topology is written again by every --follow batch,
+    // while the network rarely changes
+    public void levelize() {
+
+      if (_size == _levelizedSize && num_connectedPorts == _levelizedPorts) {
+        return;
+      }
+      place_switches();
+      _levelizedSize = _size;
+      _levelizedPorts = num_connectedPorts;
+    }
+
+    // fat-tree placement of the switches, computed in one pass over the connectivity
+    // (as process_topology.py did from network.topo):
+    //   lvl:  the number of hops from the closest end node (breadth-first from all end nodes)
+    //   core: the director switch of the L2 and L3 switches (first word of their description)
+    //   pod:  the L1 and L2 switches connected by L1-L2 links, numbered in the order of their guids
+    //   idx:  the order of a switch in its level, by pod, then core, then guid
+    // and the global parameters num_cores, num_pods, and num_LiLj (the largest number of ports of
+    // a switch at level i connected to level j)
+    private void place_switches() {
+
+      int[] level = new int[_size];
+      int[] queue = new int[_size];
+      int head = 0, tail = 0;
+      for (int n = 0; n < _size; n++) {
+        level[n] = _isSwitch[n] ? -1 : 0;
+        if (!_isSwitch[n]) {
+          queue[tail++] = n;
+        }
+      }
+      int numLevels = 0;
+      while (head < tail) {
+        int n = queue[head++];
+        for (int p = 0; p < _numPorts[n]; p++) {
+          int m = _peerNode[_portBase[n]+p];
+          if (m != -1 && level[m] == -1) {
+            level[m] = level[n] + 1;
+            numLevels = Math.max(numLevels, level[m]);
+            queue[tail++] = m;
+          }
+        }
+      }
+
+      // pods: components of the L1-L2 links (union-find, by node ordinal)
+      int[] root = new int[_size];
+      for (int n = 0; n < _size; n++) {
+        root[n] = n;
+      }
+      for (int n = 0; n < _size; n++) {
+        if (level[n] != 1) {
+          continue;
+        }
+        for (int p = 0; p < _numPorts[n]; p++) {
+          int m = _peerNode[_portBase[n]+p];
+          if (m != -1 && level[m] == 2) {
+            int a = find_root(root, n), b = find_root(root, m);
+            root[Math.max(a, b)] = Math.min(a, b);
+          }
+        }
+      }
+
+      int[] podOf = new int[_size];
+      Arrays.fill(podOf, -1);
+      int numPods = 0;
+      HashSet<String> cores = new HashSet<String>();
+      ArrayList<Integer> switches = new ArrayList<Integer>();
+      for (int n : get_sortedNodes()) {
+
+        _lvl[n] = _isSwitch[n] ? level[n] : -1;
+        _pod[n] = -1;
+        _idx[n] = -1;
+        _core[n] = null;
+        if (_lvl[n] < 1) {
+          continue;
+        }
+        switches.add(n);
+        if (_lvl[n] == 1 || _lvl[n] == 2) {
+          int r = find_root(root, n);
+          if (podOf[r] == -1) {
+            podOf[r] = numPods++;
+          }
+          _pod[n] = podOf[r];
+        }
+        if (_lvl[n] == 2 || _lvl[n] == 3) {
+          String core = _names[n].split(" ")[0];
+          _core[n] = core;
+          cores.add(core);
+        }
+      }
+
+      // L1 switches have no core, and L3 switches no pod
+      Collections.sort(switches, new java.util.Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          if (_lvl[a] != _lvl[b])    return _lvl[a] < _lvl[b] ? -1 : 1;
+          if (_pod[a] != _pod[b])    return _pod[a] < _pod[b] ? -1 : 1;
+          if (_core[a] != null && _core[b] != null && !_core[a].equals(_core[b]))   return _core[a].compareTo(_core[b]);
+          return _guidNames[a].compareTo(_guidNames[b]);
+        }
+      });
+      int[] numByLevel = new int[numLevels+1];
+      for (int n : switches) {
+        _idx[n] = numByLevel[_lvl[n]]++;
+      }
+
+      // ports of every switch connected to the levels below and above it
+      int[][] links = new int[numLevels+1][2];
+      for (int n : switches) {
+        int down = 0, up = 0;
+        for (int p = 0; p < _numPorts[n]; p++) {
+          int m = _peerNode[_portBase[n]+p];
+          if (m != -1 && level[m] == _lvl[n]-1)   down++;
+          if (m != -1 && level[m] == _lvl[n]+1)   up++;
+        }
+        links[_lvl[n]][0] = Math.max(links[_lvl[n]][0], down);
+        links[_lvl[n]][1] = Math.max(links[_lvl[n]][1], up);
+      }
+
+      Iterator<String> keys = _params.keySet().iterator();
+      while (keys.hasNext()) {
+        if (keys.next().startsWith("num_")) {
+          keys.remove();
+        }
+      }
+      _params.put("num_cores", Integer.toString(cores.size()));
+      _params.put("num_pods", Integer.toString(numPods));
+      for (int l = 1; l <= numLevels; l++) {
+        _params.put("num_L" + l + "L" + (l-1), Integer.toString(links[l][0]));
+        if (l < numLevels) {
+          _params.put("num_L" + l + "L" + (l+1), Integer.toString(links[l][1]));
+        }
+      }
+
+      StringBuilder counts = new StringBuilder();
+      for (int l = 1; l <= numLevels; l++) {
+        counts.append(l == 1 ? "" : "/").append(numByLevel[l]);
+      }
+      System.out.println("   Levelized " + switches.size() + " switches: " + counts + " by level, " +
+                         numPods + " pods, " + cores.size() + " cores");
+    }
+
+    private static int find_root(int[] root, int n) {
+      while (root[n] != n) {
+        root[n] = root[root[n]];
+        n = root[n];
+      }
+      return n;
+    }
+
+    public void write_network(String filename) {
+
+      System.out.print("   Writing network...");
+
+      try {
+
+        // written next to the file and renamed, so readers (and --follow) never see a partial topology
+        File outfile = new File(".", filename + ".tmp");
+        BufferedWriter bwriter = new BufferedWriter(new FileWriter(outfile), 1 << 16);
+
+        bwriter.write("{");
+        if (!_params.isEmpty()) {
+          bwriter.write("\n");
+          for (Map.Entry<String, String> entry : _params.entrySet()) {
+            bwriter.write(" \"" + entry.getKey() + "\": " + entry.getValue() + ",\n");
+          }
+        }
+        /*
+        bwriter.write(" \"name\": \"" + _fabric.getFabricName() + "\"," +
+                      "\n"
+                    );
+        */
+        // --------------------------------------
+
+            Integer[] sorted = get_sortedNodes();
+
+            // --------------------------------------
+            bwriter.write("  \"nodes\":[\n");
+            int count = 0;
+            for (int n : sorted) {
+
+              if(_isSwitch[n]) continue;
+
+              write_json(bwriter, n, "   ");
+
+              if(count++ != num_nodes-1)
+                bwriter.write( ",");
+
+              bwriter.write("\n");
+            }
+            bwriter.write("  ],\n");
+
+            // --------------------------------------
+            bwriter.write("  \"switches\":[\n");
+            count = 0;
+            for (int n : sorted) {
+
+              if(!_isSwitch[n])
+                continue;
+
+              write_json(bwriter, n, "   ");
+
+              if(count++ != num_switches-1)
+                bwriter.write( ",");
+
+              bwriter.write("\n");
+            }
+            bwriter.write("  ]\n");
+
+        // --------------------------------------
+        bwriter.write("}\n");
+        bwriter.flush();
+        bwriter.close();
+        commit_file(outfile, filename);
+      } catch (Exception e){
+        System.out.println(" write_Json(): Unable to write to file.");
+        e.printStackTrace();
+        System.exit(1);
+      } finally {
+      }
+      System.out.println(" Done!");
+    }
+
+    // writes network.ports (see PortTable), the nodes and ports of network.topo in the same order
+    public void write_ports(String filename) throws IOException {
+
+      File outfile = new File(".", filename + ".tmp");
+      BufferedWriter bwriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outfile), "ISO-8859-1"), 1 << 16);
+      try {
+        bwriter.write("counters," + ("\"delta\"".equals(_params.get("counters")) ? "delta" : "cumulative") + "\n");
+
+        // as network.topo: the nodes, then the switches
+        Integer[] sorted = get_sortedNodes();
+        int[] order = new int[_size];
+        int count = 0;
+        for (int pass = 0; pass < 2; pass++) {
+          for (int n : sorted) {
+            if (_isSwitch[n] == (pass == 1)) {
+              order[count++] = n;
+            }
+          }
+        }
+
+        for (int i = 0; i < count; i++) {
+          int n = order[i];
+          bwriter.write("node," + _guidNames[n] + "," + _lids[n] + "," + (_isSwitch[n] ? "switch" : "node") + "," +
+                        _names[n].replace('\n', ' ').replace('\r', ' ') + "\n");
+        }
+        for (int i = 0; i < count; i++) {
+          int n = order[i];
+          for (int p = 0; p < _numPorts[n]; p++) {
+            int o = _portBase[n] + p;
+            bwriter.write("port," + _guidNames[n] + "," + (p+1) + "," +
+                          (_peerNode[o] != -1 ? _guidNames[_peerNode[o]] + "," + _peerPort[o] : ",") + "\n");
+          }
+        }
+      } finally {
+        bwriter.close();
+      }
+      commit_file(outfile, filename);
+    }
+
+    // ---------------------------------------------------------------------------
+    // network.ports, read by the tools of a converted directory (JobLinkLoad, --serve) instead of
+    // the json of network.topo. one record per line, the nodes before the ports:
+    //   counters,<delta|cumulative>
+    //   node,<guid>,<lid>,<switch|node>,<description>
+    //   port,<guid>,<port number>,<guid of the other end>,<its port number>    (both empty if not connected)
+    // ---------------------------------------------------------------------------
+    public static class PortTable {
+
+      public boolean delta = false;
+
+      // by node, in the order of the file
+      public int numNodes = 0;
+      public String[] guids = new String[1024];
+      public String[] names = new String[1024];
+      public int[] lids = new int[1024];
+      public boolean[] switches = new boolean[1024];
+
+      // by port, in the order of the file: node and port number, and the node and port of the other end (-1 if none)
+      public int numPorts = 0;
+      public int[] node = new int[4096];
+      public int[] port = new int[4096];
+      public int[] peerNode = new int[4096];
+      public int[] peerPort = new int[4096];
+
+      public static PortTable read(File file) throws IOException {
+
+        PortTable table = new PortTable();
+        HashMap<String, Integer> index = new HashMap<String, Integer>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "ISO-8859-1"), 1 << 16);
+        try {
+          int line = 0;
+          String text;
+          while ((text = reader.readLine()) != null) {
+
+            line++;
+            String[] fields = text.split(",", 5);
+            try {
+              if (fields[0].equals("counters") && fields.length == 2) {
+                table.delta = fields[1].equals("delta");
+              }
+              else if (fields[0].equals("node") && fields.length == 5) {
+                table.add_node(fields[1], Integer.parseInt(fields[2]), fields[3].equals("switch"), fields[4]);
+                index.put(fields[1], table.numNodes - 1);
+              }
+              else if (fields[0].equals("port") && fields.length == 5) {
+                Integer n = index.get(fields[1]);
+                Integer peer = fields[3].isEmpty() ? null : index.get(fields[3]);
+                if (n == null || (peer == null && !fields[3].isEmpty())) {
+                  throw new IOException(file.getPath() + ", line " + line + ": unknown node");
+                }
+                table.add_port(n, Integer.parseInt(fields[2]), peer == null ? -1 : peer,
+                               peer == null ? -1 : Integer.parseInt(fields[4]));
+              }
+              else {
+                throw new IOException(file.getPath() + ", line " + line + ": not a record of network.ports");
+              }
+            } catch (NumberFormatException e) {
+              throw new IOException(file.getPath() + ", line " + line + ": " + e.getMessage());
+            }
+          }
+        } finally {
+          reader.close();
+        }
+        return table;
+      }
+
+      private void add_node(String guid, int lid, boolean isSwitch, String name) {
+        if (numNodes == guids.length) {
+          guids = Arrays.copyOf(guids, 2*numNodes);
+          names = Arrays.copyOf(names, 2*numNodes);
+          lids = Arrays.copyOf(lids, 2*numNodes);
+          switches = Arrays.copyOf(switches, 2*numNodes);
+        }
+        guids[numNodes] = guid;
+        names[numNodes] = name;
+        lids[numNodes] = lid;
+        switches[numNodes] = isSwitch;
+        numNodes++;
+      }
+
+      private void add_port(int n, int num, int peer, int peerNum) {
+        if (numPorts == node.length) {
+          node = Arrays.copyOf(node, 2*numPorts);
+          port = Arrays.copyOf(port, 2*numPorts);
+          peerNode = Arrays.copyOf(peerNode, 2*numPorts);
+          peerPort = Arrays.copyOf(peerPort, 2*numPorts);
+        }
+        node[numPorts] = n;
+        port[numPorts] = num;
+        peerNode[numPorts] = peer;
+        peerPort[numPorts] = peerNum;
+        numPorts++;
+      }
+    }
+
+    // writes, for every block of a counter archive, the maximum value of the ports of every node (out)
+    // and of the ports connected to every node (in), as aggregated by the visualization
+    public void write_nodeMaxima(CounterArchive archive, String filename) throws IOException {
+
+      // node of every port ordinal
+      int numPorts = Math.min(archive.numPorts(), num_ports);
+      int[] srcNode = new int[numPorts];
+      for (int n = 0; n < _size; n++) {
+        for (int p = 0; p < _numPorts[n] && _portBase[n]+p < numPorts; p++) {
+          srcNode[_portBase[n]+p] = n;
+        }
+      }
+
+      Integer[] sorted = get_sortedNodes();
+      long[] inMax = new long[_size];
+      long[] outMax = new long[_size];
+
+      BufferedWriter bwriter = new BufferedWriter(new FileWriter(new File(".", filename)), 1 << 16);
+      bwriter.write("timestamp,node_id,in_max,out_max");
+      bwriter.newLine();
+
+      int column = archive.column("rcv_data");
+      for (int b = 0; b < archive.numBlocks(); b++) {
+
+        Arrays.fill(inMax, -1);
+        Arrays.fill(outMax, -1);
+
+        LongBuffer values = archive.values(b, column);
+        for (int o = 0; o < values.capacity() && o < numPorts; o++) {
+
+          long v = values.get(o);
+          if (v < 0) {
+            continue;
+          }
+          outMax[srcNode[o]] = Math.max(outMax[srcNode[o]], v);
+          if (_peerNode[o] != -1) {
+            inMax[_peerNode[o]] = Math.max(inMax[_peerNode[o]], v);
+          }
+        }
+
+        for (int n : sorted) {
+          if (inMax[n] != -1 || outMax[n] != -1) {
+            bwriter.write(archive.timestamp(b) + "," + _guidNames[n] + "," + inMax[n] + "," + outMax[n]);
+            bwriter.newLine();
+          }
+        }
+      }
+      bwriter.close();
+    }
+
+    // writes the windows of the hotspots (see Hotspots) in time order, with the indices of the hottest windows
+    public void write_hotspots(Hotspots hotspots, String filename) throws IOException {
+
+      File tmpfile = new File(".", filename + ".tmp");
+      BufferedWriter bwriter = new BufferedWriter(new FileWriter(tmpfile), 1 << 16);
+      SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss");
+
+      bwriter.write("{\n \"k\": " + hotspots._k + ",\n \"window\": " + hotspots._span + ",\n \"counters\": [");
+      for (int c = 0; c < Hotspots.COUNTERS.length; c++) {
+        bwriter.write((c > 0 ? ", " : "") + "\"" + Hotspots.COUNTERS[c] + "\"");
+      }
+      bwriter.write("],\n \"hottest\": [");
+      int[] hottest = hotspots.get_hottestWindows();
+      for (int i = 0; i < hottest.length; i++) {
+        bwriter.write((i > 0 ? ", " : "") + hottest[i]);
+      }
+      bwriter.write("],\n \"windows\": [");
+
+      for (int i = 0; i < hotspots._windows.size(); i++) {
+
+        Hotspots.Window window = hotspots._windows.get(i);
+        bwriter.write((i > 0 ? "," : "") + "\n  { \"start\": " + window._start +
+                      ", \"tstamp\": \"" + format.format(new java.util.Date(window._start * 1000)) + "\"" +
+                      ", \"snapshots\": " + window._snapshots + ", \"totals\": ");
+        write_jsonArray(bwriter, window._totals);
+
+        bwriter.write(",\n    \"links\": [");
+        for (int j = 0; j < window._links.length; j++) {
+          int o = window._links[j];
+          int n = get_portNode(o);
+          bwriter.write((j > 0 ? "," : "") + "\n     { \"node_id\": \"" + _guidNames[n] + "\", \"port\": " + (o - _portBase[n] + 1) +
+                        ", \"desc\": \"");
+          write_jsonEscaped(bwriter, _names[n]);
+          bwriter.write("\", \"values\": ");
+          write_jsonColumn(bwriter, window._linkValues, j);
+          bwriter.write(" }");
+        }
+        bwriter.write("],\n    \"switches\": [");
+        for (int j = 0; j < window._switches.length; j++) {
+          int n = window._switches[j];
+          bwriter.write((j > 0 ? "," : "") + "\n     { \"node_id\": \"" + _guidNames[n] + "\", \"desc\": \"");
+          write_jsonEscaped(bwriter, _names[n]);
+          bwriter.write("\", \"values\": ");
+          write_jsonColumn(bwriter, window._switchValues, j);
+          bwriter.write(" }");
+        }
+        bwriter.write("]\n  }");
+      }
+      bwriter.write("\n ]\n}\n");
+      bwriter.close();
+      commit_file(tmpfile, filename);
+    }
+
+    private static void write_jsonArray(Writer w, long[] values) throws IOException {
+      w.write("[");
+      for (int c = 0; c < values.length; c++) {
+        w.write((c > 0 ? ", " : "") + values[c]);
+      }
+      w.write("]");
+    }
+
+    // the j-th value of every column
+    private static void write_jsonColumn(Writer w, long[][] values, int j) throws IOException {
+      w.write("[");
+      for (int c = 0; c < values.length; c++) {
+        w.write((c > 0 ? ", " : "") + values[c][j]);
+      }
+      w.write("]");
+    }
+
+    // the node of a port ordinal: the last node whose ports start at or before it
+    private int get_portNode(int o) {
+      int lo = 0, hi = _size - 1;
+      while (lo < hi) {
+        int mid = (lo + hi + 1) >>> 1;
+        if (_portBase[mid] <= o) {    lo = mid;  }
+        else {                        hi = mid - 1;  }
+      }
+      return lo;
+    }
+
+    // ---------------------------------------------------------------------------
+    // Counters of the ports of one snapshot, in the order given by the fabric
+    // ---------------------------------------------------------------------------
+    public static class CounterFrame {
+
+      public final long _timestamp;
+      public int _size;
+
+      public final String[] _portIds;     // "<node guid>:<port number>", as keyed by the fabric
+      public final int[] _ordinals;       // port ordinal in the network (-1 if unknown)
+      public final long[] _rcvData;       // cumulative counters, as read
+      public final long[] _linkDowned;
+
+      public final long[] _delta;         // rcv_data in bytes, since the previous snapshot
+      public final long[] _value;         // rcv_data in bytes, as exported (cumulative or delta)
+
+      // cumulative congestion counters, read only for --hotspots (null otherwise)
+      public final long[] _xmitWait;
+      public final long[] _xmitDiscards;
+      public final long[] _errors;        // sum of the error counters
+
+      // counters exported with --counters, one column per counter (see exportCounters):
+      // cumulative as read, then the increases since the previous snapshot with --delta (see PortState)
+      public final long[][] _columns;
+
+      public CounterFrame(long timestamp, int capacity) {
+        this(timestamp, capacity, false, 0);
+      }
+
+      public CounterFrame(long timestamp, int capacity, boolean congestion, int numColumns) {
+        _timestamp = timestamp;
+        _size = 0;
+        _portIds = new String[capacity];
+        _ordinals = new int[capacity];
+        _rcvData = new long[capacity];
+        _linkDowned = new long[capacity];
+        _delta = new long[capacity];
+        _value = new long[capacity];
+        _xmitWait = congestion ? new long[capacity] : null;
+        _xmitDiscards = congestion ? new long[capacity] : null;
+        _errors = congestion ? new long[capacity] : null;
+        _columns = new long[numColumns][capacity];
+      }
+    }
+
+    // the counters summed into the errors of a port
+    private static final PFM_Port.PortCounterName[] ERROR_COUNTERS = {
+      PFM_Port.PortCounterName.symbol_err_cnt, PFM_Port.PortCounterName.link_err_recover,
+      PFM_Port.PortCounterName.rcv_err, PFM_Port.PortCounterName.rcv_rem_phys_err,
+      PFM_Port.PortCounterName.rcv_switch_relay_err, PFM_Port.PortCounterName.xmit_constraint_err,
+      PFM_Port.PortCounterName.rcv_constraint_err, PFM_Port.PortCounterName.link_integrity,
+      PFM_Port.PortCounterName.buffer_overrun, PFM_Port.PortCounterName.vl15_dropped
+    };
+
+    // reads the counters of all ports of the fabric (independent of the other snapshots)
+    public CounterFrame read_portCounters(OSM_Fabric fabric, long timestamp) {
+
+      LinkedHashMap<String, OSM_Port> ports = fabric.getOSM_Ports();
+      PFM_Port.PortCounterName[] columns = exportCounters;
+      CounterFrame frame = new CounterFrame(timestamp, ports.size(), hotspotCount > 0, columns.length);
+
+      for (Map.Entry<String, OSM_Port> entry: ports.entrySet()){
+
+        String portId = entry.getKey();
+        OSM_Port port = entry.getValue();
+
+        //System.out.println("portID = " + portId + " nguid = " + nguid + " portNum = " + portNum);
+        if (port.getPfmPort() == null){
+            continue;
+        }
+
+        int i = frame._size++;
+        frame._portIds[i] = portId;
+        frame._ordinals[i] = get_portOrdinal(port.getNodeGuid().getGuid(), port.getPortNumber());
+        frame._rcvData[i] = port.pfmPort.getCounter(PFM_Port.PortCounterName.rcv_data);
+        frame._linkDowned[i] = port.pfmPort.getCounter(PFM_Port.PortCounterName.link_downed);
+
+        if (frame._xmitWait != null) {
+          frame._xmitWait[i] = port.pfmPort.getCounter(PFM_Port.PortCounterName.xmit_wait);
+          frame._xmitDiscards[i] = port.pfmPort.getCounter(PFM_Port.PortCounterName.xmit_discards);
+          long errors = 0;
+          for (PFM_Port.PortCounterName name : ERROR_COUNTERS) {
+            errors += port.pfmPort.getCounter(name);
+          }
+          frame._errors[i] = errors;
+        }
+        for (int c = 0; c < columns.length; c++) {
+          frame._columns[c][i] = port.pfmPort.getCounter(columns[c]);
+        }
+      }
+      return frame;
+    }
+
+    // ---------------------------------------------------------------------------
+    // Cumulative counters of all ports, indexed by port ordinal, as last seen.
+    // (link_downed is -1 if the port has not been seen yet)
+    //   one state is updated in place by every snapshot, in snapshot order, and only
+    //   copied for a checkpoint, so a snapshot does not allocate per port.
+    //   the counters of --counters are kept for --delta only. they are not checkpointed,
+    //   since --counters is written at the end of a run, which cannot be resumed.
+    // ---------------------------------------------------------------------------
+    public static class PortState {
+
+      public long[] _rcvData;
+      public long[] _linkDowned;
+      public long[][] _columns = new long[0][];
+      private int _size;
+
+      public PortState(int size) {
+        _rcvData = new long[size];
+        _linkDowned = new long[size];
+        Arrays.fill(_linkDowned, -1);
+        _size = size;
+      }
+
+      // a copy of the given state
+      public PortState(PortState other) {
+        this(other._size);
+        System.arraycopy(other._rcvData, 0, _rcvData, 0, _size);
+        System.arraycopy(other._linkDowned, 0, _linkDowned, 0, _size);
+        _columns = new long[other._columns.length][];
+        for (int c = 0; c < _columns.length; c++) {
+          _columns[c] = Arrays.copyOf(other._columns[c], _size);
+        }
+      }
+
+      public int size() {
+        return _size;
+      }
+
+      // makes room for size ports (the new ones not seen yet)
+      public void grow(int size) {
+        if (size > _rcvData.length) {
+          int capacity = Math.max(size, 2*_rcvData.length);
+          int old = _rcvData.length;
+          _rcvData = Arrays.copyOf(_rcvData, capacity);
+          _linkDowned = Arrays.copyOf(_linkDowned, capacity);
+          Arrays.fill(_linkDowned, old, capacity, -1);
+          for (int c = 0; c < _columns.length; c++) {
+            _columns[c] = Arrays.copyOf(_columns[c], capacity);
+          }
+        }
+        _size = Math.max(_size, size);
+      }
+
+      public void write(DataOutputStream out) throws IOException {
+        out.writeInt(_size);
+        for (int o = 0; o < _size; o++) {
+          out.writeLong(_rcvData[o]);
+          out.writeLong(_linkDowned[o]);
+        }
+      }
+
+      public static PortState read(DataInputStream in) throws IOException {
+        PortState state = new PortState(in.readInt());
+        for (int o = 0; o < state._size; o++) {
+          state._rcvData[o] = in.readLong();
+          state._linkDowned[o] = in.readLong();
+        }
+        return state;
+      }
+
+      // moves the state past the given snapshot. also sets the exported values of the frame
+      // (with delta, the columns of --counters are replaced with their increases)
+      public void advance(CounterFrame frame, boolean delta) {
+
+        int size = 0;
+        for (int i = 0; i < frame._size; i++) {
+          size = Math.max(size, frame._ordinals[i]+1);
+        }
+        if (delta && _columns.length < frame._columns.length) {
+          _columns = Arrays.copyOf(_columns, frame._columns.length);
+          for (int c = 0; c < _columns.length; c++) {
+            if (_columns[c] == null) {
+              _columns[c] = new long[_rcvData.length];
+            }
+          }
+        }
+        grow(size);
+
+        for (int i = 0; i < frame._size; i++) {
+
+          int o = frame._ordinals[i];
+
+          // the first value seen for a port has no reference
+          boolean seen = o >= 0 && _linkDowned[o] != -1;
+          long d = 0;
+          if (seen) {
+            d = get_counterDelta(_rcvData[o], frame._rcvData[i], _linkDowned[o], frame._linkDowned[i]);
+          }
+          frame._delta[i] = d*4;
+          frame._value[i] = delta ? d*4 : frame._rcvData[i]*4;
+
+          if (delta) {
+            for (int c = 0; c < frame._columns.length; c++) {
+              long value = frame._columns[c][i];
+              frame._columns[c][i] = seen ? get_counterDelta(_columns[c][o], value, _linkDowned[o], frame._linkDowned[i]) : 0;
+              if (o >= 0) {
+                _columns[c][o] = value;
+              }
+            }
+          }
+
+          if (o >= 0) {
+            _rcvData[o] = frame._rcvData[i];
+            _linkDowned[o] = frame._linkDowned[i];
+          }
+        }
+      }
+    }
+
+    // the increase of a cumulative (unsigned) counter between two snapshots
+    //   the counters restart from zero when the port is reset, which also clears link_downed,
+    //   and link_downed increases when the link went down and came back in between.
+    //   a value lower than the previous one is a wraparound only if the previous value
+    //   was close to the end of a 32 or 64-bit counter; otherwise, it is a reset.
+    public static long get_counterDelta(long prev, long curr, long prevDowned, long currDowned) {
+
+      if (currDowned < prevDowned)                    return curr;          // counters were cleared
+      if (Long.compareUnsigned(curr, prev) >= 0)      return curr - prev;
+      if (currDowned > prevDowned)                    return curr;          // link was reset
+
+      if (Long.compareUnsigned(prev, 0xC000000000000000L) >= 0) {           // wraparound of a 64-bit counter
+        return curr - prev;
+      }
+      if (prev >= 0xC0000000L && prev <= 0xFFFFFFFFL) {                     // wraparound of a 32-bit counter
+        return (0x100000000L - prev) + curr;
+      }
+      return curr;                                                          // counters were cleared
+    }
+
+    public static void write_portCounters(CounterFrame frame, String filename) {
+
+      if (verbose) System.out.print("   Writing port counters to file " + filename + "...");
+      try {
+        OutputStream out = open_output(filename);
+        encode_portCounters(frame, out);
+        out.close();
+      } catch (Exception e) {
+          System.out.println(" write_portCounters(): failed!");
+          e.printStackTrace();
+          System.exit(1);
+      }
+      if (verbose) System.out.println(" Done!");
+    }
+
+    // the rows of the '.count' file, without allocating per row
+    //   the port ids are "<node guid (19 chars)>:<port number>"
+    public static void encode_portCounters(CounterFrame frame, OutputStream out) throws IOException {
+
+      AsciiEncoder encoder = AsciiEncoder.get(out);
+      encoder.put("node_id,port_idx,"+
+                  "rcv_data"
+                  /*+",rcv_err,rcv_switch_relay_err,rcv_rem_phys_err,rcv_constraint_err,"+
+                  "xmit_data,xmit_discards,xmit_wait,xmit_constraint_err,"+
+                  "multicast_rcv_pkts,multicast_xmit_pkts,unicast_rcv_pkts,unicast_xmit_pkts,"+
+                  "symbol_err_cnt,vl15_dropped,buffer_overrun,link_downed,link_err_recover,link_integrity"*/
+                  ).put('\n');
+
+      for (int i = 0; i < frame._size; i++) {
+
+        String portId = frame._portIds[i];
+        encoder.put(portId, 0, 19).put(',').put(AsciiEncoder.parse_int(portId, 20)).put(',').put(frame._value[i]).put('\n');
+      }
+      encoder.flush();
+    }
+
+    // ---------------------------------------------------------------------------
+    // Routing tables rarely change, so a table is written only if it differs from
+    // the one of the previous snapshot.
+    //   each snapshot publishes the fingerprint of its table in "current" and compares
+    //   it with the fingerprint published by the previous snapshot in "previous",
+    //   which may still be in progress when the snapshots are written in parallel.
+    //   returns true if the table was written.
+    // ---------------------------------------------------------------------------
+    private static boolean write_routing(OSM_Fabric fabric, String filename,
+                                         CompletableFuture<String> previous, CompletableFuture<String> current) {
+
+      boolean written = false;
+      try{
+
+        if (verbose) System.out.print("   Parsing Routing Table and writing to file " + filename + "...");
+        ForwardingTables tables = read_routing(fabric);
+
+        String fingerprint = tables.get_fingerprint();
+        current.complete(fingerprint);
+
+        if (fingerprint.equals(previous.get())) {
+          if (verbose) System.out.println(" unchanged, skipped!");
+          return false;
+        }
+
+        RoutingIndex.write(filename.substring(0, filename.lastIndexOf(".rtable")) + ".rindex", tables);
+
+        OutputStream out = open_output(filename);
+        encode_routing(tables, out);
+        out.close();
+        written = true;
+      } catch (Exception e){
+        System.out.println(" write_routing(): Unable to write to file.");
+        e.printStackTrace();
+        System.exit(1);
+      }
+      if (verbose) System.out.println(" Done!");
+      return written;
+    }
+
+    // the forwarding tables of all switches, in the tables of the calling thread
+    public static ForwardingTables read_routing(OSM_Fabric fabric) {
+
+      RT_Table _rTable = RT_Table.buildRT_Table(fabric);
+
+      // for each switch in the routing table
+      ForwardingTables tables = ForwardingTables.get();
+      for (Map.Entry<String, RT_Node> nEntry: _rTable.getSwitchGuidMap().entrySet()){
+
+        RT_Node rnode  = nEntry.getValue();
+        tables.begin_switch(rnode.getGuid());
+
+        // data is given by RT_Table as a port->lid Map
+        // we will write it as an inverse map (lid->port) to allow efficient route finding
+        for (Map.Entry<String,RT_Port> pEntry: rnode.getPortRouteMap().entrySet()){
+
+          RT_Port rport = pEntry.getValue();
+          int rportNum = rport.getPortNumber();
+
+          for (Map.Entry<String,Integer> item: rport.getLidGuidMap().entrySet()){
+            tables.add_route(item.getValue(), rportNum);
+          }
+        }
+        tables.end_switch();
+      }
+      tables.sort();
+      return tables;
+    }
+
+    // the rows of the '.rtable' file (switches in the order of RT_Table), without allocating per row
+    public static void encode_routing(ForwardingTables tables, OutputStream out) throws IOException {
+
+      AsciiEncoder encoder = AsciiEncoder.get(out);
+      encoder.put("nodeid, lid:portnum, lid:portnum, ....\n");
+
+      for (int s = 0; s < tables._numSwitches; s++) {
+
+        // now write this node and its map
+        encoder.put(tables._names[s]).put(',');
+        for (int e = tables._offsets[s]; e < tables._offsets[s+1]; e++) {
+          long entry = tables._entries[e];
+          if (e != tables._offsets[s]) {
+            encoder.put(',');
+          }
+          encoder.put((int) (entry >>> 32)).put(':').put((int) entry);
+        }
+        encoder.put('\n');
+      }
+      encoder.flush();
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Forwarding tables of all switches of a snapshot, in flat primitive arrays
+  //   one instance per thread, reused from one snapshot to the next. the routes of
+  //   switch s are _entries[_offsets[s] .. _offsets[s+1]), as (lid << 32) | port, by
+  //   lid; when RT_Table gives a lid on two ports, the last one wins (as a map would).
+  // -----------------------------------------------------------------------------
+  public static class ForwardingTables {
+
+    private static final ThreadLocal<ForwardingTables> TABLES = new ThreadLocal<ForwardingTables>() {
+        protected ForwardingTables initialValue() {
+            return new ForwardingTables();
+        }
+    };
+
+    // the (emptied) tables of the calling thread
+    public static ForwardingTables get() {
+      ForwardingTables tables = TABLES.get();
+      tables._numSwitches = 0;
+      tables._numEntries = 0;
+      return tables;
+    }
+
+    // switches in the order of RT_Table
+    public int _numSwitches = 0;
+    public long[] _guids = new long[256];
+    public String[] _names = new String[256];       // colon format, as given by the source
+    public int[] _offsets = new int[257];
+    public long[] _entries = new long[1 << 16];
+    private int _numEntries = 0;
+
+    // switches by guid (as their colon strings)
+    public int[] _sorted = new int[256];
+    private long[] _sortKeys = new long[256];
+
+    // routes of the switch being read, in the order given: (lid << 32) | sequence, and port
+    private long[] _keys = new long[1024];
+    private int[] _ports = new int[1024];
+    private int _numKeys = 0;
+
+    // colon names of the guids seen by this thread, formatted once
+    private final MNetwork.GuidIndex _nameIndex = new MNetwork.GuidIndex(1024);
+    private String[] _nameCache = new String[1024];
+    private int _numNames = 0;
+
+    private byte[] _digestBuffer = new byte[1 << 12];
+
+    private ForwardingTables() {
+    }
+
+    public void begin_switch(IB_Guid guid) {
+
+      int s = _numSwitches;
+      if (s+1 >= _guids.length) {
+        _guids = Arrays.copyOf(_guids, 2*_guids.length);
+        _names = Arrays.copyOf(_names, 2*_names.length);
+        _offsets = Arrays.copyOf(_offsets, 2*_offsets.length);
+      }
+      long g = guid.getGuid();
+      int k = _nameIndex.get(g);
+      if (k == -1) {
+        if (_numNames == _nameCache.length) {
+          _nameCache = Arrays.copyOf(_nameCache, 2*_numNames);
+        }
+        k = _numNames++;
+        _nameCache[k] = guid.toColonString();
+        _nameIndex.put(g, k);
+      }
+      _guids[s] = g;
+      _names[s] = _nameCache[k];
+      _offsets[s] = _numEntries;
+      _numKeys = 0;
+    }
+
+    public void add_route(int lid, int port) {
+
+      if (_numKeys == _keys.length) {
+        _keys = Arrays.copyOf(_keys, 2*_numKeys);
+        _ports = Arrays.copyOf(_ports, 2*_numKeys);
+      }
+      _keys[_numKeys] = ((long) lid << 32) | _numKeys;
+      _ports[_numKeys] = port;
+      _numKeys++;
+    }
+
+    // sorts the routes of the switch by lid, keeping the last port given for a lid
+    public void end_switch() {
+
+      Arrays.sort(_keys, 0, _numKeys);
+      if (_numEntries + _numKeys > _entries.length) {
+        _entries = Arrays.copyOf(_entries, Math.max(2*_entries.length, _numEntries + _numKeys));
+      }
+      for (int k = 0; k < _numKeys; k++) {
+        long lid = _keys[k] >>> 32;
+        if (k+1 < _numKeys && (_keys[k+1] >>> 32) == lid) {
+          continue;
+        }
+        _entries[_numEntries++] = (lid << 32) | (_ports[(int) _keys[k]] & 0xffffffffL);
+      }
+      _offsets[++_numSwitches] = _numEntries;
+    }
+
+    // orders the switches by guid: the colon strings have a fixed width, so their order
+    // is the unsigned order of the guids
+    public void sort() {
+
+      if (_sorted.length < _numSwitches) {
+        _sorted = new int[_guids.length];
+        _sortKeys = new long[_guids.length];
+      }
+      for (int s = 0; s < _numSwitches; s++) {
+        _sortKeys[s] = _guids[s] ^ Long.MIN_VALUE;
+      }
+      Arrays.sort(_sortKeys, 0, _numSwitches);
+      for (int s = 0; s < _numSwitches; s++) {
+        _sorted[Arrays.binarySearch(_sortKeys, 0, _numSwitches, _guids[s] ^ Long.MIN_VALUE)] = s;
+      }
+    }
+
+    // digest of the lid->port maps of all switches, independent of the order
+    // in which RT_Table lists the switches and ports
+    public String get_fingerprint() throws Exception {
+
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      for (int i = 0; i < _numSwitches; i++) {
+
+        int s = _sorted[i];
+        String name = _names[s];
+        int n = 0;
+        for (int c = 0; c < name.length(); c++) {
+          _digestBuffer[n++] = (byte) name.charAt(c);
+        }
+        _digestBuffer[n++] = (byte) ',';
+        md.update(_digestBuffer, 0, n);
+
+        n = 0;
+        for (int e = _offsets[s]; e < _offsets[s+1]; e++) {
+          if (n + 8 > _digestBuffer.length) {
+            md.update(_digestBuffer, 0, n);
+            n = 0;
+          }
+          int lid = (int) (_entries[e] >>> 32);
+          int port = (int) _entries[e];
+          _digestBuffer[n++] = (byte) (lid >>> 24);   _digestBuffer[n++] = (byte) (lid >>> 16);
+          _digestBuffer[n++] = (byte) (lid >>> 8);    _digestBuffer[n++] = (byte) lid;
+          _digestBuffer[n++] = (byte) (port >>> 24);  _digestBuffer[n++] = (byte) (port >>> 16);
+          _digestBuffer[n++] = (byte) (port >>> 8);   _digestBuffer[n++] = (byte) port;
+        }
+        md.update(_digestBuffer, 0, n);
+        md.update((byte) '\n');
+      }
+
+      StringBuilder sb = new StringBuilder();
+      for (byte b : md.digest()) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Binary routing index of one routing table (little-endian, 8-byte aligned)
+  //
+  //   header:     magic, version, number of switches s, number of lids l (largest lid + 1),
+  //               number of ports p (largest port number + 1), int32 0
+  //   guids:      s int64 switch guids, sorted as their colon strings
+  //   forward:    for each switch, l bytes: the output port of every destination lid
+  //               (0xff if the lid is not routed), padded to 8 bytes
+  //   offsets:    for each switch and port number, int32 start of its lids in the reverse
+  //               index (s*p + 1 values, the last one being the total), padded to 8 bytes
+  //   reverse:    int32 destination lids routed through every switch port, ascending
+  //
+  // the forwarding port of (switch, lid) is the byte at forward + l*switch + lid, and the lids
+  // routed through (switch, port) are reverse[offsets[p*switch + port] .. offsets[p*switch + port + 1]).
+  // -----------------------------------------------------------------------------
+  public static class RoutingIndex {
+
+    public static final int MAGIC = 0x58444952;       // "RIDX"
+    public static final int VERSION = 1;
+
+    public static final int NO_ROUTE = 0xff;
+
+    private FileChannel _channel;
+    private ByteBuffer _buffer;
+
+    private long[] _guids;
+    private int _numLids, _numPorts;
+    private int _forwardOffset, _offsetsOffset, _reverseOffset;
+
+    private static long align(long offset) {
+      return (offset + 7) & ~7;
+    }
+
+    // the file in small pieces, little-endian, staged as they are written (see StagedOutputStream)
+    private static class Output {
+
+      private final OutputStream _out;
+      private final ByteBuffer _chunk = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+      private long _position = 0;
+
+      public Output(OutputStream out) {
+        _out = out;
+      }
+
+      // room for the next n bytes
+      public ByteBuffer reserve(int n) throws IOException {
+        if (_chunk.remaining() < n) {
+          flush();
+        }
+        _position += n;
+        return _chunk;
+      }
+
+      public void write(byte[] bytes) throws IOException {
+        flush();
+        _out.write(bytes);
+        _position += bytes.length;
+      }
+
+      public void pad() throws IOException {
+        while (_position % 8 != 0) {
+          reserve(1).put((byte) 0);
+        }
+      }
+
+      private void flush() throws IOException {
+        _out.write(_chunk.array(), 0, _chunk.position());
+        _chunk.clear();
+      }
+
+      public void close() throws IOException {
+        flush();
+        _out.close();
+      }
+    }
+
+    // ---------------------------------------------------------------------------
+    // writer: the switches of the tables, sorted by guid
+    //   the sections are written one after the other, switch by switch, so the
+    //   index is never held in one buffer. the reader maps the index in one piece,
+    //   so it is limited to 2 GB.
+    // ---------------------------------------------------------------------------
+    public static void write(String filename, ForwardingTables tables) throws IOException {
+
+      int numSwitches = tables._numSwitches;
+      int numLids = 0;
+      int numPorts = 0;
+      int numRoutes = tables._offsets[numSwitches];
+      int maxRoutes = 0;
+      for (int e = 0; e < numRoutes; e++) {
+        int port = (int) tables._entries[e];
+        if (port < 0 || port >= NO_ROUTE) {
+          throw new IOException("RoutingIndex.write(): invalid port number " + port);
+        }
+        numLids = Math.max(numLids, (int) (tables._entries[e] >>> 32) + 1);
+        numPorts = Math.max(numPorts, port + 1);
+      }
+      for (int s = 0; s < numSwitches; s++) {
+        maxRoutes = Math.max(maxRoutes, tables._offsets[s+1] - tables._offsets[s]);
+      }
+
+      long forwardOffset = 24 + 8L*numSwitches;
+      long offsetsOffset = align(forwardOffset + (long) numSwitches*numLids);
+      long reverseOffset = align(offsetsOffset + 4*((long) numSwitches*numPorts + 1));
+      long size = reverseOffset + 4L*numRoutes;
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("RoutingIndex.write(): the index of " + numSwitches + " switches and " + numLids +
+                              " lids would take " + size + " bytes, more than the 2 GB of an index");
+      }
+
+      Output out = new Output(new StagedOutputStream(filename));
+      out.reserve(24).putInt(MAGIC).putInt(VERSION).putInt(numSwitches).putInt(numLids).putInt(numPorts).putInt(0);
+      for (int i = 0; i < numSwitches; i++) {
+        out.reserve(8).putLong(tables._guids[tables._sorted[i]]);
+      }
+
+      // forward: the port to every lid
+      byte[] forward = new byte[numLids];
+      for (int i = 0; i < numSwitches; i++) {
+        int s = tables._sorted[i];
+        Arrays.fill(forward, (byte) NO_ROUTE);
+        for (int e = tables._offsets[s]; e < tables._offsets[s+1]; e++) {
+          forward[(int) (tables._entries[e] >>> 32)] = (byte) tables._entries[e];
+        }
+        out.write(forward);
+      }
+      out.pad();
+
+      // offsets: where the lids of every port start in the reverse section
+      int[] counts = new int[numPorts];
+      int total = 0;
+      for (int i = 0; i < numSwitches; i++) {
+        int s = tables._sorted[i];
+        Arrays.fill(counts, 0);
+        for (int e = tables._offsets[s]; e < tables._offsets[s+1]; e++) {
+          counts[(int) tables._entries[e]]++;
+        }
+        for (int p = 0; p < numPorts; p++) {
+          out.reserve(4).putInt(total);
+          total += counts[p];
+        }
+      }
+      out.reserve(4).putInt(total);
+      out.pad();
+
+      // reverse: the lids of a port follow each other, in the order of the table (ascending)
+      int[] next = new int[numPorts];
+      int[] lids = new int[maxRoutes];
+      for (int i = 0; i < numSwitches; i++) {
+        int s = tables._sorted[i];
+        int first = tables._offsets[s], last = tables._offsets[s+1];
+        Arrays.fill(counts, 0);
+        for (int e = first; e < last; e++) {
+          counts[(int) tables._entries[e]]++;
+        }
+        for (int p = 0, start = 0; p < numPorts; p++) {
+          next[p] = start;
+          start += counts[p];
+        }
+        for (int e = first; e < last; e++) {
+          lids[next[(int) tables._entries[e]]++] = (int) (tables._entries[e] >>> 32);
+        }
+        for (int r = 0; r < last - first; r++) {
+          out.reserve(4).putInt(lids[r]);
+        }
+      }
+      out.close();
+    }
+
+    // ---------------------------------------------------------------------------
+    // reader
+    // ---------------------------------------------------------------------------
+    public static RoutingIndex open(File file) throws IOException {
+
+      FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        channel.close();
+        throw new IOException("Not a routing index: " + file.getPath());
+      }
+
+      RoutingIndex index = new RoutingIndex();
+      index._channel = channel;
+      index._buffer = buffer;
+
+      int numSwitches = buffer.getInt();
+      index._numLids = buffer.getInt();
+      index._numPorts = buffer.getInt();
+      buffer.getInt();
+
+      index._guids = new long[numSwitches];
+      for (int s = 0; s < numSwitches; s++) {
+        index._guids[s] = buffer.getLong();
+      }
+      index._forwardOffset = 24 + 8*numSwitches;
+      index._offsetsOffset = (int) align(index._forwardOffset + numSwitches*index._numLids);
+      index._reverseOffset = (int) align(index._offsetsOffset + 4*(numSwitches*index._numPorts + 1));
+      return index;
+    }
+
+    public void close() throws IOException {    _channel.close();  }
+
+    public int numSwitches() {                  return _guids.length;  }
+    public int numLids() {                      return _numLids;  }
+    public int numPorts() {                     return _numPorts;  }
+    public long guid(int s) {                   return _guids[s];  }
+
+    // the index of a switch (-1 if it has no routing table): the guids are sorted (unsigned)
+    public int find(long guid) {
+
+      int lo = 0, hi = _guids.length - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int c = Long.compareUnsigned(_guids[mid], guid);
+        if (c < 0) {        lo = mid + 1;  }
+        else if (c > 0) {   hi = mid - 1;  }
+        else {              return mid;  }
+      }
+      return -1;
+    }
+
+    // the port through which switch s forwards packets to lid (NO_ROUTE if none)
+    public int port(int s, int lid) {
+      if (lid < 0 || lid >= _numLids) {
+        return NO_ROUTE;
+      }
+      return _buffer.get(_forwardOffset + s*_numLids + lid) & 0xff;
+    }
+
+    // the number of destination lids routed through port of switch s
+    public int numDlids(int s, int port) {
+      if (port < 0 || port >= _numPorts) {
+        return 0;
+      }
+      int o = _offsetsOffset + 4*(s*_numPorts + port);
+      return _buffer.getInt(o + 4) - _buffer.getInt(o);
+    }
+
+    // the i-th destination lid routed through port of switch s
+    public int dlid(int s, int port, int i) {
+      int start = _buffer.getInt(_offsetsOffset + 4*(s*_numPorts + port));
+      return _buffer.getInt(_reverseOffset + 4*(start + i));
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Block-compressed gzip (the BGZF format of samtools/htslib)
+  //
+  //   the output is a series of gzip members of at most 64 KB each, every member holding
+  //   at most BLOCK_SIZE input bytes, and giving its own size in the extra field of its
+  //   header (subfield 'BC': uint16 size - 1). a reader can therefore step from block to
+  //   block without decompressing, and decompress any block on its own.
+  //   the stream ends with an empty block. gzip readers decompress the whole file, as the
+  //   members of a gzip file are concatenated.
+  // -----------------------------------------------------------------------------
+  public static class BlockGzipOutputStream extends OutputStream {
+
+    // input bytes per block, small enough for incompressible data to fit in 64 KB
+    public static final int BLOCK_SIZE = 0xff00;
+
+    private static final int MAX_BLOCK = 0x10000;
+    private static final int HEADER = 18;
+    private static final int TRAILER = 8;
+
+    private final OutputStream _out;
+    private final Deflater _deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 _crc = new CRC32();
+    private final byte[] _input = new byte[BLOCK_SIZE];
+    private final byte[] _block = new byte[MAX_BLOCK];
+    private int _size = 0;
+    private boolean _closed = false;
+
+    public BlockGzipOutputStream(OutputStream out) {
+      _out = out;
+    }
+
+    public void write(int b) throws IOException {
+      if (_size == BLOCK_SIZE) {
+        write_block();
+      }
+      _input[_size++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (_size == BLOCK_SIZE) {
+          write_block();
+        }
+        int n = Math.min(len, BLOCK_SIZE - _size);
+        System.arraycopy(b, off, _input, _size, n);
+        _size += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    // blocks are written only when full, so that all but the last hold BLOCK_SIZE bytes
+    public void flush() throws IOException {
+      _out.flush();
+    }
+
+    public void close() throws IOException {
+      if (_closed) {
+        return;
+      }
+      _closed = true;
+      try {
+        if (_size > 0) {
+          write_block();
+        }
+        write_block();                    // the empty end-of-file block
+      } finally {
+        _deflater.end();
+        _out.close();
+      }
+    }
+
+    private void write_block() throws IOException {
+
+      _deflater.reset();
+      _deflater.setInput(_input, 0, _size);
+      _deflater.finish();
+      int clen = 0;
+      while (!_deflater.finished() && HEADER + clen + TRAILER < MAX_BLOCK) {
+        clen += _deflater.deflate(_block, HEADER + clen, MAX_BLOCK - HEADER - TRAILER - clen);
+      }
+      if (!_deflater.finished()) {
+        throw new IOException("BlockGzipOutputStream: compressed block exceeds 64 KB");
+      }
+      _crc.reset();
+      _crc.update(_input, 0, _size);
+
+      int bsize = HEADER + clen + TRAILER;
+      byte[] b = _block;
+      b[0] = 0x1f;  b[1] = (byte) 0x8b;  b[2] = 8;  b[3] = 4;          // gzip, deflate, FEXTRA
+      b[4] = 0;     b[5] = 0;            b[6] = 0;  b[7] = 0;          // mtime
+      b[8] = 0;     b[9] = (byte) 0xff;                                // xfl, os (unknown)
+      b[10] = 6;    b[11] = 0;                                         // xlen
+      b[12] = 'B';  b[13] = 'C';  b[14] = 2;  b[15] = 0;               // subfield BC, length 2
+      b[16] = (byte) (bsize - 1);  b[17] = (byte) ((bsize - 1) >>> 8);
+      put_int(b, HEADER + clen, (int) _crc.getValue());
+      put_int(b, HEADER + clen + 4, _size);
+      _out.write(b, 0, bsize);
+      _size = 0;
+    }
+
+    private static void put_int(byte[] b, int off, int v) {
+      b[off] = (byte) v;  b[off+1] = (byte) (v >>> 8);  b[off+2] = (byte) (v >>> 16);  b[off+3] = (byte) (v >>> 24);
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Binary archive of the counters of all snapshots (little-endian, 8-byte aligned)
+  //
+  //   header:     magic, version, number of columns, and the column names
+  //               (int32 length + ascii), padded to 8 bytes
+  //   blocks:     one per snapshot: int32 nports, int32 0, then for each column,
+  //               nports int64 values indexed by port ordinal (-1 if the port was not reported)
+  //   dictionary: int32 nports, int32 0, then for each port ordinal: int64 node guid, int32 port number, int32 0
+  //   table:      int32 nsnapshots, int32 0, then for each snapshot: int64 timestamp (seconds),
+  //               int64 offset of its block, int64 nports
+  //   footer:     int64 offset of the dictionary, int64 offset of the table, int32 version, int32 magic
+  //
+  // the writer appends blocks in snapshot order, and writes the dictionary and table at the end.
+  // the reader maps the blocks on demand, so any range of snapshots is read without parsing.
+  // -----------------------------------------------------------------------------
+  public static class CounterArchive implements Closeable {
+
+    public static final int MAGIC = 0x41435354;       // "TSCA"
+    public static final int VERSION = 1;
+
+    private final FileChannel _channel;
+    private final String[] _columns;
+
+    // per snapshot: timestamp, offset, nports
+    private long[] _table;
+    private int _numSnapshots;
+
+    // dictionary (reader only)
+    private long[] _guids;
+    private int[] _portNums;
+
+    private CounterArchive(FileChannel channel, String[] columns) {
+      _channel = channel;
+      _columns = columns;
+      _table = new long[3*64];
+      _numSnapshots = 0;
+    }
+
+    private static ByteBuffer allocate(int size) {
+      return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        _channel.write(buffer);
+      }
+    }
+
+    // ---------------------------------------------------------------------------
+    // writer
+    // ---------------------------------------------------------------------------
+    public static CounterArchive create(String filename, String[] columns) throws IOException {
+      return create(new File(".", filename), columns);
+    }
+
+    public static CounterArchive create(File path, String[] columns) throws IOException {
+
+      RandomAccessFile file = new RandomAccessFile(path, "rw");
+      file.setLength(0);
+
+      CounterArchive archive = new CounterArchive(file.getChannel(), columns);
+
+      int size = 12;
+      for (String c : columns) {
+        size += 4 + c.length();
+      }
+      ByteBuffer header = allocate((size + 7) & ~7);
+      header.putInt(MAGIC).putInt(VERSION).putInt(columns.length);
+      for (String c : columns) {
+        header.putInt(c.length()).put(c.getBytes("US-ASCII"));
+      }
+      header.position(header.capacity());
+      archive.write(header);
+      return archive;
+    }
+
+    // appends a snapshot. values[c][i] is the value of column c for the port at frame index i
+    public synchronized void append(long timestamp, int numPorts, int size, int[] ordinals, long[][] values) throws IOException {
+
+      if (3*(_numSnapshots+1) > _table.length) {
+        _table = Arrays.copyOf(_table, 2*_table.length);
+      }
+      _table[3*_numSnapshots]   = timestamp;
+      _table[3*_numSnapshots+1] = _channel.position();
+      _table[3*_numSnapshots+2] = numPorts;
+      _numSnapshots++;
+
+      ByteBuffer header = allocate(8);
+      header.putInt(numPorts).putInt(0);
+      write(header);
+
+      ByteBuffer block = allocate(8*numPorts);
+      LongBuffer column = block.asLongBuffer();
+      for (int c = 0; c < values.length; c++) {
+
+        block.clear();
+        for (int o = 0; o < numPorts; o++) {
+          column.put(o, -1);
+        }
+        for (int i = 0; i < size; i++) {
+          if (ordinals[i] >= 0) {
+            column.put(ordinals[i], values[c][i]);
+          }
+        }
+        block.position(8*numPorts);
+        write(block);
+      }
+    }
+
+    // writes the port dictionary and the snapshot table, and closes the archive
+    public void finish(MNetwork network) throws IOException {
+
+      int numPorts = network.get_numPorts();
+      long[] guids = new long[numPorts];
+      int[] portNums = new int[numPorts];
+      network.get_portDictionary(guids, portNums);
+      finish(guids, portNums);
+    }
+
+    // the guid and port number of every port ordinal
+    public synchronized void finish(long[] guids, int[] portNums) throws IOException {
+
+      int numPorts = guids.length;
+      long dictOffset = _channel.position();
+      ByteBuffer dict = allocate(8 + 16*numPorts);
+      dict.putInt(numPorts).putInt(0);
+      for (int o = 0; o < numPorts; o++) {
+        dict.putLong(guids[o]).putInt(portNums[o]).putInt(0);
+      }
+      write(dict);
+
+      long tableOffset = _channel.position();
+      ByteBuffer table = allocate(8 + 24*_numSnapshots + 24);
+      table.putInt(_numSnapshots).putInt(0);
+      for (int i = 0; i < 3*_numSnapshots; i++) {
+        table.putLong(_table[i]);
+      }
+      table.putLong(dictOffset).putLong(tableOffset).putInt(VERSION).putInt(MAGIC);
+      write(table);
+
+      _channel.close();
+    }
+
+    // ---------------------------------------------------------------------------
+    // reader
+    // ---------------------------------------------------------------------------
+    public static CounterArchive open(File file) throws IOException {
+
+      FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+
+      ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, channel.size()-24, 24).order(ByteOrder.LITTLE_ENDIAN);
+      long dictOffset = footer.getLong();
+      long tableOffset = footer.getLong();
+      if (footer.getInt() != VERSION || footer.getInt() != MAGIC) {
+        throw new IOException("Not a counter archive: " + file.getPath());
+      }
+
+      // only the header is read: the blocks after it may well exceed 2 GB
+      ByteBuffer header = read(channel, 0, 12);
+      header.getInt();
+      header.getInt();
+      String[] columns = new String[header.getInt()];
+      long position = 12;
+      for (int c = 0; c < columns.length; c++) {
+        int length = read(channel, position, 4).getInt();
+        byte[] name = new byte[length];
+        read(channel, position + 4, length).get(name);
+        columns[c] = new String(name, "US-ASCII");
+        position += 4 + length;
+      }
+
+      CounterArchive archive = new CounterArchive(channel, columns);
+
+      ByteBuffer dict = channel.map(FileChannel.MapMode.READ_ONLY, dictOffset, tableOffset-dictOffset).order(ByteOrder.LITTLE_ENDIAN);
+      int numPorts = dict.getInt();
+      dict.getInt();
+      archive._guids = new long[numPorts];
+      archive._portNums = new int[numPorts];
+      for (int o = 0; o < numPorts; o++) {
+        archive._guids[o] = dict.getLong();
+        archive._portNums[o] = dict.getInt();
+        dict.getInt();
+      }
+
+      ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, tableOffset, channel.size()-24-tableOffset).order(ByteOrder.LITTLE_ENDIAN);
+      archive._numSnapshots = table.getInt();
+      table.getInt();
+      archive._table = new long[3*archive._numSnapshots];
+      table.asLongBuffer().get(archive._table);
+      return archive;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+
+      ByteBuffer buffer = allocate(size);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new IOException("Truncated counter archive");
+        }
+      }
+      buffer.flip();
+      return buffer;
+    }
+
+    public void close() throws IOException {    _channel.close();  }
+
+    public String[] columns() {                 return _columns;  }
+    public int column(String name) {            return Arrays.asList(_columns).indexOf(name);  }
+
+    public int numSnapshots() {                 return _numSnapshots;  }
+    public int numBlocks() {                    return _numSnapshots;  }
+    public long timestamp(int snapshot) {       return _table[3*snapshot];  }
+    public int numPorts(int snapshot) {         return (int) _table[3*snapshot+2];  }
+
+    public int numPorts() {                     return _guids.length;  }
+    public long guid(int ordinal) {             return _guids[ordinal];  }
+    public int portNum(int ordinal) {           return _portNums[ordinal];  }
+
+    // index of the first snapshot at or after the given time
+    public int find(long timestamp) {
+
+      int lo = 0, hi = _numSnapshots;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (timestamp(mid) < timestamp)   lo = mid+1;
+        else                              hi = mid;
+      }
+      return lo;
+    }
+
+    // the values of a column for one snapshot, indexed by port ordinal (mapped, not copied)
+    public LongBuffer values(int snapshot, int column) throws IOException {
+
+      long n = _table[3*snapshot+2];
+      long offset = _table[3*snapshot+1] + 8 + 8*n*column;
+      return _channel.map(FileChannel.MapMode.READ_ONLY, offset, 8*n).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Sums of the per-interval counters over fixed time spans
+  //   for each span, the snapshots are grouped in buckets aligned on multiples of the span
+  //   (since the epoch), and the deltas of every port are summed over each bucket. the
+  //   buckets are written as the blocks of a counter archive (rollup_<span>.bin, timestamped
+  //   by the start of the bucket), with the maximum in/out values of every node for each
+  //   bucket (rollup_<span>.max). the whole run is one more level (rollup_all.*).
+  //   the sum over any range of time is then given by a few buckets of the coarsest levels,
+  //   and the snapshots at its ends (see aggregate).
+  // -----------------------------------------------------------------------------
+  public static class Rollups {
+
+    private final long[] _spans;                // 0 = whole run
+    private final CounterArchive[] _archives;
+    private final long[] _buckets;              // start of the current bucket of each level (-1 = none)
+    private long[][] _sums;                     // sums of the current bucket of each level, by port ordinal (-1 = no value)
+
+    public static String get_name(long span) {
+      return "rollup_" + ((span == 0) ? "all" : Long.toString(span));
+    }
+
+    public Rollups(long[] spans) throws IOException {
+
+      _spans = Arrays.copyOf(spans, spans.length+1);
+      _spans[spans.length] = 0;
+
+      _archives = new CounterArchive[_spans.length];
+      _buckets = new long[_spans.length];
+      _sums = new long[_spans.length][0];
+      for (int l = 0; l < _spans.length; l++) {
+        _archives[l] = CounterArchive.create(get_name(_spans[l]) + ".bin", new String[] { "rcv_data" });
+        _buckets[l] = -1;
+      }
+    }
+
+    private void flush(int l) throws IOException {
+
+      if (_buckets[l] == -1) {
+        return;
+      }
+      int[] ordinals = new int[_sums[l].length];
+      for (int o = 0; o < ordinals.length; o++) {
+        ordinals[o] = o;
+      }
+      _archives[l].append(_buckets[l], ordinals.length, ordinals.length, ordinals, new long[][] { _sums[l] });
+    }
+
+    // adds the deltas of a snapshot. deltas[i] is the delta of the port at frame index i
+    public synchronized void append(long timestamp, int numPorts, int size, int[] ordinals, long[] deltas) throws IOException {
+
+      for (int l = 0; l < _spans.length; l++) {
+
+        long bucket = (_spans[l] == 0) ? 0 : timestamp - Math.floorMod(timestamp, _spans[l]);
+        if (bucket != _buckets[l]) {
+          flush(l);
+          _buckets[l] = bucket;
+          Arrays.fill(_sums[l], -1);
+        }
+        if (_sums[l].length < numPorts) {
+          int n = _sums[l].length;
+          _sums[l] = Arrays.copyOf(_sums[l], numPorts);
+          Arrays.fill(_sums[l], n, numPorts, -1);
+        }
+
+        long[] sums = _sums[l];
+        for (int i = 0; i < size; i++) {
+          int o = ordinals[i];
+          if (o >= 0) {
+            sums[o] = Math.max(sums[o], 0) + deltas[i];
+          }
+        }
+      }
+    }
+
+    public synchronized void finish(MNetwork network) throws IOException {
+
+      for (int l = 0; l < _spans.length; l++) {
+
+        flush(l);
+        _archives[l].finish(network);
+
+        CounterArchive archive = CounterArchive.open(new File(".", get_name(_spans[l]) + ".bin"));
+        network.write_nodeMaxima(archive, get_name(_spans[l]) + ".max");
+        archive.close();
+      }
+    }
+
+    // ---------------------------------------------------------------------------
+    // sums of the deltas of every port over the snapshots in [t0, t1]
+    //   levels are the rollup archives of the given spans (any order, possibly none; the
+    //   whole run is not needed), and snapshots is the counter archive, used for the parts
+    //   of the range that are not covered by a complete bucket. column is its column of
+    //   deltas: rcv_data with --delta, and rcv_delta otherwise (see delta_column). these are
+    //   the deltas the buckets were summed from (get_counterDelta), so a sum does not depend
+    //   on where the buckets fall. sums is indexed by port ordinal, and must be filled with 0.
+    // ---------------------------------------------------------------------------
+    public static void aggregate(CounterArchive[] levels, final long[] spans, CounterArchive snapshots, int column,
+                                 long t0, long t1, long[] sums) throws IOException {
+
+      // the coarsest level first
+      Integer[] order = new Integer[levels.length];
+      for (int l = 0; l < order.length; l++) {
+        order[l] = l;
+      }
+      Arrays.sort(order, new java.util.Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Long.compare(spans[b], spans[a]);
+        }
+      });
+      aggregate(levels, spans, order, 0, snapshots, column, t0, t1, sums);
+    }
+
+    // the column of per-snapshot deltas of a counter archive (-1 if it has none)
+    public static int delta_column(CounterArchive snapshots, boolean delta) {
+      return delta ? snapshots.column("rcv_data") : snapshots.column("rcv_delta");
+    }
+
+    private static void aggregate(CounterArchive[] levels, long[] spans, Integer[] order, int k,
+                                  CounterArchive snapshots, int column, long t0, long t1, long[] sums) throws IOException {
+
+      if (t0 > t1) {
+        return;
+      }
+
+      // no level left: add the snapshots themselves
+      if (k == order.length) {
+        for (int b = snapshots.find(t0); b < snapshots.numBlocks() && snapshots.timestamp(b) <= t1; b++) {
+          add(snapshots.values(b, column), sums);
+        }
+        return;
+      }
+
+      // complete buckets of this level within [t0, t1]
+      CounterArchive level = levels[order[k]];
+      long span = spans[order[k]];
+
+      long first = t0 + Math.floorMod(-t0, span);                   // first bucket starting at or after t0
+      long end = (t1+1) - Math.floorMod(t1+1, span);                // end of the last bucket ending by t1
+      if (first >= end) {
+        aggregate(levels, spans, order, k+1, snapshots, column, t0, t1, sums);
+        return;
+      }
+
+      for (int b = level.find(first); b < level.numBlocks() && level.timestamp(b) < end; b++) {
+        add(level.values(b, 0), sums);
+      }
+      aggregate(levels, spans, order, k+1, snapshots, column, t0, first-1, sums);
+      aggregate(levels, spans, order, k+1, snapshots, column, end, t1, sums);
+    }
+
+    private static void add(LongBuffer values, long[] sums) {
+      for (int o = 0; o < values.capacity() && o < sums.length; o++) {
+        long v = values.get(o);
+        if (v > 0) {
+          sums[o] += v;
+        }
+      }
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Congestion hotspots: the k hottest links and switches of every window of time
+  //   a link is ranked by the xmit_wait of its sending port (the time it had data to send
+  //   but no credits), then by its xmit_discards, errors, and rcv_data, and a switch by the
+  //   sums over its ports. the deltas are summed by port ordinal in primitive arrays, and
+  //   the top k are selected with a bounded heap when a window closes, so the memory used
+  //   is proportional to the ports and to the number of windows, not to the snapshots.
+  //   windows are aligned on multiples of span seconds since the epoch.
+  // -----------------------------------------------------------------------------
+  public static class Hotspots {
+
+    public static final String[] COUNTERS = { "xmit_wait", "xmit_discards", "errors", "rcv_data" };
+    private static final int WAIT = 0, DISCARDS = 1, ERRORS = 2, DATA = 3;
+
+    public static class Window {
+
+      public final long _start;
+      public int _snapshots = 0;
+      public final long[] _totals = new long[COUNTERS.length];
+
+      // the hottest port ordinals and switch node ordinals, hottest first,
+      // and their values (indexed by counter, then rank)
+      public int[] _links;
+      public long[][] _linkValues;
+      public int[] _switches;
+      public long[][] _switchValues;
+
+      public Window(long start) {
+        _start = start;
+      }
+    }
+
+    private final int _k;
+    private final long _span;
+    private final ArrayList<Window> _windows = new ArrayList<Window>();
+
+    // cumulative counters as last seen, by port ordinal (link_downed is -1 if not seen yet)
+    private long[][] _last = new long[DATA][0];
+    private long[] _lastDowned = new long[0];
+
+    // sums over the current window, by port ordinal (-1 = not reported)
+    private long[][] _sums = new long[COUNTERS.length][0];
+    private Window _window = null;
+
+    public Hotspots(int k, long span) {
+      _k = k;
+      _span = span;
+    }
+
+    private void grow(int numPorts) {
+
+      if (_lastDowned.length >= numPorts) {
+        return;
+      }
+      int n = _lastDowned.length;
+      for (int c = 0; c < DATA; c++) {
+        _last[c] = Arrays.copyOf(_last[c], numPorts);
+      }
+      _lastDowned = Arrays.copyOf(_lastDowned, numPorts);
+      Arrays.fill(_lastDowned, n, numPorts, -1);
+      for (int c = 0; c < COUNTERS.length; c++) {
+        _sums[c] = Arrays.copyOf(_sums[c], numPorts);
+        Arrays.fill(_sums[c], n, numPorts, -1);
+      }
+    }
+
+    // adds the counters of a snapshot (in snapshot order)
+    public synchronized void append(MNetwork network, long timestamp, int numPorts, MNetwork.CounterFrame frame) {
+
+      // a snapshot older than the current window is counted in it
+      long start = timestamp - Math.floorMod(timestamp, _span);
+      if (_window == null || start > _window._start) {
+        close(network);
+        _window = new Window(start);
+        _windows.add(_window);
+      }
+      _window._snapshots++;
+      grow(numPorts);
+
+      long[][] counters = { frame._xmitWait, frame._xmitDiscards, frame._errors };
+      for (int i = 0; i < frame._size; i++) {
+
+        int o = frame._ordinals[i];
+        if (o < 0) {
+          continue;
+        }
+        // the first value seen for a port has no reference
+        boolean seen = _lastDowned[o] != -1;
+        for (int c = 0; c < DATA; c++) {
+          if (seen) {
+            long d = MNetwork.get_counterDelta(_last[c][o], counters[c][i], _lastDowned[o], frame._linkDowned[i]);
+            _sums[c][o] = Math.max(_sums[c][o], 0) + d;
+          }
+          _last[c][o] = counters[c][i];
+        }
+        if (seen) {
+          _sums[DATA][o] = Math.max(_sums[DATA][o], 0) + frame._delta[i];
+        }
+        _lastDowned[o] = frame._linkDowned[i];
+      }
+    }
+
+    // selects the hottest links and switches of the current window, and clears its sums
+    private void close(MNetwork network) {
+
+      if (_window == null) {
+        return;
+      }
+      int numPorts = _sums[0].length;
+      for (int o = 0; o < numPorts; o++) {
+        for (int c = 0; c < COUNTERS.length; c++) {
+          if (_sums[c][o] > 0) {
+            _window._totals[c] += _sums[c][o];
+          }
+        }
+      }
+
+      _window._links = top(_sums, numPorts, _k);
+      _window._linkValues = gather(_sums, _window._links);
+
+      // sums of the switches, over their ports
+      int[] switches = new int[numPorts];
+      int numNodes = network.get_portSwitches(switches);
+      long[][] nodeSums = new long[COUNTERS.length][numNodes];
+      for (long[] sums : nodeSums) {
+        Arrays.fill(sums, -1);
+      }
+      for (int o = 0; o < numPorts; o++) {
+        int n = switches[o];
+        if (n < 0) {
+          continue;
+        }
+        for (int c = 0; c < COUNTERS.length; c++) {
+          if (_sums[c][o] >= 0) {
+            nodeSums[c][n] = Math.max(nodeSums[c][n], 0) + _sums[c][o];
+          }
+        }
+      }
+      _window._switches = top(nodeSums, numNodes, _k);
+      _window._switchValues = gather(nodeSums, _window._switches);
+
+      for (long[] sums : _sums) {
+        Arrays.fill(sums, -1);
+      }
+    }
+
+    // true if entry a is hotter than entry b (compared counter by counter)
+    private static boolean hotter(long[][] values, int a, int b) {
+      for (int c = 0; c < values.length; c++) {
+        if (values[c][a] != values[c][b]) {
+          return values[c][a] > values[c][b];
+        }
+      }
+      return a < b;
+    }
+
+    // the (at most) k hottest of the first n entries that have a value, hottest first
+    //   the heap holds the k hottest so far, with the coolest of them at its root
+    private static int[] top(long[][] values, int n, int k) {
+
+      int[] heap = new int[k];
+      int size = 0;
+      for (int i = 0; i < n; i++) {
+
+        if (values[DATA][i] < 0 && values[WAIT][i] < 0) {
+          continue;
+        }
+        if (size < k) {
+          heap[size] = i;
+          for (int j = size++; j > 0 && hotter(values, heap[(j-1)/2], heap[j]); j = (j-1)/2) {
+            int t = heap[j];  heap[j] = heap[(j-1)/2];  heap[(j-1)/2] = t;
+          }
+        }
+        else if (k > 0 && hotter(values, i, heap[0])) {
+          heap[0] = i;
+          sift(values, heap, size, 0);
+        }
+      }
+
+      // pop the coolest first, filling the result from the end
+      int[] sorted = new int[size];
+      for (int m = size; m > 0; m--) {
+        sorted[m-1] = heap[0];
+        heap[0] = heap[m-1];
+        sift(values, heap, m-1, 0);
+      }
+      return sorted;
+    }
+
+    private static void sift(long[][] values, int[] heap, int size, int j) {
+      while (true) {
+        int l = 2*j + 1, r = l + 1, m = j;
+        if (l < size && hotter(values, heap[m], heap[l]))   m = l;
+        if (r < size && hotter(values, heap[m], heap[r]))   m = r;
+        if (m == j) {
+          return;
+        }
+        int t = heap[j];  heap[j] = heap[m];  heap[m] = t;
+        j = m;
+      }
+    }
+
+    private static long[][] gather(long[][] values, int[] entries) {
+      long[][] gathered = new long[values.length][entries.length];
+      for (int c = 0; c < values.length; c++) {
+        for (int i = 0; i < entries.length; i++) {
+          gathered[c][i] = Math.max(values[c][entries[i]], 0);
+        }
+      }
+      return gathered;
+    }
+
+    // indices of the (at most) k windows with the most xmit_wait, hottest first
+    public int[] get_hottestWindows() {
+
+      int n = _windows.size();
+      long[][] totals = new long[COUNTERS.length][n];
+      for (int w = 0; w < n; w++) {
+        for (int c = 0; c < COUNTERS.length; c++) {
+          totals[c][w] = _windows.get(w)._totals[c];
+        }
+      }
+      return top(totals, n, _k);
+    }
+
+    public synchronized void finish(MNetwork network, String filename) throws IOException {
+      close(network);
+      network.write_hotspots(this, filename);
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Counters of every port as a time series (little-endian, 8-byte aligned)
+  //
+  //   header:     int32 magic, int32 version, int32 nports, int32 nsnapshots
+  //   timestamps: nsnapshots int64 (seconds)
+  //   dictionary: for each port ordinal: int64 node guid, int32 port number, int32 0
+  //   series:     for each port ordinal: nsnapshots int64 values (-1 if the port was not reported)
+  //
+  // the series of a port is contiguous, at a fixed offset given by its ordinal.
+  // the snapshots are transposed in chunks: every "chunk" snapshots are written port-major
+  // into a temporary file, and the chunks are concatenated port by port at the end.
+  // -----------------------------------------------------------------------------
+  public static class LinkSeries implements Closeable {
+
+    public static final int MAGIC = 0x534c5354;       // "TSLS"
+    public static final int VERSION = 1;
+
+    // writer
+    private final int _chunkSize;
+    private final ArrayList<long[]> _rows = new ArrayList<long[]>();
+    private final ArrayList<File> _chunkFiles = new ArrayList<File>();
+    private final ArrayList<int[]> _chunkShapes = new ArrayList<int[]>();   // {nsnapshots, nports}
+    private long[] _timestamps = new long[64];
+    private int _numSnapshots = 0;
+
+    // reader
+    private FileChannel _channel;
+    private long[] _guids;
+    private int[] _portNums;
+    private int[] _sorted;                      // the ordinals, by guid and port number
+    private long _seriesOffset;
+
+    public LinkSeries(int chunkSize) {
+      _chunkSize = chunkSize;
+    }
+
+    // ---------------------------------------------------------------------------
+    // writer
+    // ---------------------------------------------------------------------------
+    // appends a snapshot. values[i] is the value for the port at frame index i
+    public synchronized void append(long timestamp, int numPorts, int size, int[] ordinals, long[] values) throws IOException {
+
+      if (_numSnapshots == _timestamps.length) {
+        _timestamps = Arrays.copyOf(_timestamps, 2*_timestamps.length);
+      }
+      _timestamps[_numSnapshots++] = timestamp;
+
+      long[] row = new long[numPorts];
+      Arrays.fill(row, -1);
+      for (int i = 0; i < size; i++) {
+        if (ordinals[i] >= 0) {
+          row[ordinals[i]] = values[i];
+        }
+      }
+      _rows.add(row);
+
+      if (_rows.size() == _chunkSize) {
+        spill();
+      }
+    }
+
+    // writes the buffered snapshots port-major into a temporary file
+    private void spill() throws IOException {
+
+      if (_rows.isEmpty()) {
+        return;
+      }
+
+      int numPorts = 0;
+      for (long[] row : _rows) {
+        numPorts = Math.max(numPorts, row.length);
+      }
+
+      File chunk = File.createTempFile("links.", ".chunk", new File("."));
+      chunk.deleteOnExit();
+
+      FileChannel out = new RandomAccessFile(chunk, "rw").getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate(8*_rows.size()).order(ByteOrder.LITTLE_ENDIAN);
+      for (int o = 0; o < numPorts; o++) {
+
+        buffer.clear();
+        for (long[] row : _rows) {
+          buffer.putLong(o < row.length ? row[o] : -1);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+      }
+      out.close();
+
+      _chunkFiles.add(chunk);
+      _chunkShapes.add(new int[] {_rows.size(), numPorts});
+      _rows.clear();
+    }
+
+    // concatenates the chunks into the final file, and removes them
+    public synchronized void finish(MNetwork network, String filename) throws IOException {
+
+      spill();
+
+      int numPorts = network.get_numPorts();
+      long[] guids = new long[numPorts];
+      int[] portNums = new int[numPorts];
+      network.get_portDictionary(guids, portNums);
+
+      RandomAccessFile file = new RandomAccessFile(new File(".", filename), "rw");
+      file.setLength(0);
+      FileChannel out = file.getChannel();
+
+      ByteBuffer head = ByteBuffer.allocate(16 + 8*_numSnapshots + 16*numPorts).order(ByteOrder.LITTLE_ENDIAN);
+      head.putInt(MAGIC).putInt(VERSION).putInt(numPorts).putInt(_numSnapshots);
+      for (int t = 0; t < _numSnapshots; t++) {
+        head.putLong(_timestamps[t]);
+      }
+      for (int o = 0; o < numPorts; o++) {
+        head.putLong(guids[o]).putInt(portNums[o]).putInt(0);
+      }
+      head.flip();
+      while (head.hasRemaining()) {
+        out.write(head);
+      }
+
+      // every chunk is read sequentially, one port at a time
+      FileChannel[] chunks = new FileChannel[_chunkFiles.size()];
+      for (int k = 0; k < chunks.length; k++) {
+        chunks[k] = new RandomAccessFile(_chunkFiles.get(k), "r").getChannel();
+      }
+
+      ByteBuffer series = ByteBuffer.allocate(8*_numSnapshots).order(ByteOrder.LITTLE_ENDIAN);
+      for (int o = 0; o < numPorts; o++) {
+
+        series.clear();
+        for (int k = 0; k < chunks.length; k++) {
+
+          int[] shape = _chunkShapes.get(k);
+          if (o < shape[1]) {
+            int end = series.position() + 8*shape[0];
+            series.limit(end);
+            while (series.hasRemaining()) {
+              chunks[k].read(series);
+            }
+            series.limit(series.capacity());
+          }
+          else {
+            for (int t = 0; t < shape[0]; t++) {
+              series.putLong(-1);
+            }
+          }
+        }
+        series.flip();
+        while (series.hasRemaining()) {
+          out.write(series);
+        }
+      }
+      out.close();
+
+      for (int k = 0; k < chunks.length; k++) {
+        chunks[k].close();
+        _chunkFiles.get(k).delete();
+      }
+      _chunkFiles.clear();
+      _chunkShapes.clear();
+    }
+
+    // ---------------------------------------------------------------------------
+    // reader
+    // ---------------------------------------------------------------------------
+    public static LinkSeries open(File file) throws IOException {
+
+      FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 16).order(ByteOrder.LITTLE_ENDIAN);
+      if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+        throw new IOException("Not a link series file: " + file.getPath());
+      }
+      int numPorts = header.getInt();
+      int numSnapshots = header.getInt();
+
+      LinkSeries series = new LinkSeries(0);
+      series._channel = channel;
+      series._numSnapshots = numSnapshots;
+      series._timestamps = new long[numSnapshots];
+      series._guids = new long[numPorts];
+      series._portNums = new int[numPorts];
+      series._seriesOffset = 16 + 8L*numSnapshots + 16L*numPorts;
+
+      ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 16, series._seriesOffset-16).order(ByteOrder.LITTLE_ENDIAN);
+      for (int t = 0; t < numSnapshots; t++) {
+        series._timestamps[t] = head.getLong();
+      }
+      for (int o = 0; o < numPorts; o++) {
+        series._guids[o] = head.getLong();
+        series._portNums[o] = head.getInt();
+        head.getInt();
+      }
+
+      // the dictionary is in ordinal order: an index sorted by guid and port is built once
+      Integer[] sorted = new Integer[numPorts];
+      for (int o = 0; o < numPorts; o++) {
+        sorted[o] = o;
+      }
+      final long[] guids = series._guids;
+      final int[] portNums = series._portNums;
+      Arrays.sort(sorted, new java.util.Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          int c = Long.compareUnsigned(guids[a], guids[b]);
+          return (c != 0) ? c : Integer.compare(portNums[a], portNums[b]);
+        }
+      });
+      series._sorted = new int[numPorts];
+      for (int i = 0; i < numPorts; i++) {
+        series._sorted[i] = sorted[i];
+      }
+      return series;
+    }
+
+    public void close() throws IOException {    _channel.close();  }
+
+    public int numSnapshots() {                 return _numSnapshots;  }
+    public long timestamp(int snapshot) {       return _timestamps[snapshot];  }
+
+    public int numPorts() {                     return _guids.length;  }
+    public long guid(int ordinal) {             return _guids[ordinal];  }
+    public int portNum(int ordinal) {           return _portNums[ordinal];  }
+
+    // the ordinal of a port (-1 if unknown)
+    public int ordinal(long guid, int portNum) {
+
+      int lo = 0, hi = _sorted.length - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int o = _sorted[mid];
+        int c = Long.compareUnsigned(_guids[o], guid);
+        if (c == 0) {
+          c = Integer.compare(_portNums[o], portNum);
+        }
+        if (c < 0) {        lo = mid + 1;  }
+        else if (c > 0) {   hi = mid - 1;  }
+        else {              return o;  }
+      }
+      return -1;
+    }
+
+    // the values of a port for all snapshots (mapped, not copied)
+    public LongBuffer series(int ordinal) throws IOException {
+      long offset = _seriesOffset + 8L*_numSnapshots*ordinal;
+      return _channel.map(FileChannel.MapMode.READ_ONLY, offset, 8L*_numSnapshots).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Streams the snapshots of a list of history files
+  //   only one history file is held at a time: it is released before the next one is read.
+  //   at most "window" snapshots are handed out and not yet released by the caller,
+  //   which bounds the snapshots kept alive by pending writes.
+  // -----------------------------------------------------------------------------
+  public static class SnapshotStream {
+
+    private final File[] _files;
+    private final int[] _first;
+    private final Semaphore _window;
+
+    private int _fileIdx;
+    private int _snapIdx;
+    private int _numSnapshots;
+    private OMS_Collection _collection;
+
+    public SnapshotStream(File[] files, int window) {
+      this(files, null, window);
+    }
+
+    // skips the first first[f] snapshots of files[f] (those already converted)
+    public SnapshotStream(File[] files, int[] first, int window) {
+
+      _files = files;
+      _first = first;
+      _window = new Semaphore(window);
+
+      _fileIdx = -1;
+      _snapIdx = -1;
+      _collection = null;
+    }
+
+    public boolean hasNext() throws Exception {
+
+      while (_collection == null || _snapIdx+1 >= _collection.getSize()) {
+
+        // drop the current file before decoding the next one
+        _collection = null;
+        if (_fileIdx+1 >= _files.length) {
+          return false;
+        }
+
+        _fileIdx++;
+        _snapIdx = (_first == null) ? -1 : _first[_fileIdx]-1;
+
+        System.out.println("");
+        System.out.println("Processing history file: " + _files[_fileIdx].getPath());
+
+        long t0 = report.start();
+        _collection = OMS_Collection.readOMS_Collection(_files[_fileIdx].getPath());
+        report.stop(RunReport.DECODE, t0);
+        _numSnapshots = _collection.getSize();
+        System.out.println(" - found " + _collection.getSize() + " time-steps");
+      }
+      return true;
+    }
+
+    // blocks until the window has room for another snapshot
+    public OpenSmMonitorService next() throws Exception {
+
+      if (!hasNext()) {
+        return null;
+      }
+
+      _window.acquire();
+      _snapIdx++;
+
+      OpenSmMonitorService oms = _collection.getOMS(_snapIdx);
+
+      // the last snapshot of a file has been handed out: the collection is not needed anymore
+      if (_snapIdx+1 >= _collection.getSize()) {
+        _collection = null;
+      }
+      return oms;
+    }
+
+    // must be called once for every snapshot returned by next(), when it is no longer used
+    public void release() {
+      _window.release();
+    }
+
+    public File file() {    return _files[_fileIdx];  }
+    public int index() {    return _snapIdx;          }
+
+    // true if the snapshot is the last one of its file
+    public boolean isLast() {    return _snapIdx+1 >= _numSnapshots;  }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Text files of a snapshot ('.count' and '.rtable'), compressed as given by --compress
+  //   gzip writes a single gzip member, and bgzf a series of independent blocks
+  //   (BlockGzipOutputStream). gunzip and zcat read both.
+  // -----------------------------------------------------------------------------
+  private static String get_outputName(String filename) {
+      return (outputEncoding == null) ? filename : filename + ".gz";
+  }
+
+  // formatted (and compressed) in memory, and committed to the write stage when closed
+  private static OutputStream open_output(String filename) throws IOException {
+
+      OutputStream out = new StagedOutputStream(filename);
+      if ("bgzf".equals(outputEncoding)) {
+          out = new BlockGzipOutputStream(out);
+      } else if ("gzip".equals(outputEncoding)) {
+          out = new GZIPOutputStream(out, 1 << 16);
+      }
+      return out;
+  }
+
+  // the bytes of a file, kept in chunks until it is closed
+  //   the chunks come from a pool, to which they return once the file is written
+  private static class StagedOutputStream extends OutputStream {
+
+    public static final int CHUNK_SIZE = 1 << 18;
+    private static final int MAX_POOLED = 256;
+
+    private static final java.util.concurrent.ConcurrentLinkedQueue<byte[]> POOL = new java.util.concurrent.ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicLong POOLED = new AtomicLong();
+
+    private final String _filename;
+    private final ArrayList<ByteBuffer> _chunks = new ArrayList<ByteBuffer>();
+    private byte[] _chunk = take_chunk();
+    private int _count = 0;
+
+    private static byte[] take_chunk() {
+      byte[] chunk = POOL.poll();
+      if (chunk == null) {
+        return new byte[CHUNK_SIZE];
+      }
+      POOLED.decrementAndGet();
+      return chunk;
+    }
+
+    // returns the chunks of a written file to the pool
+    public static void release(ArrayList<ByteBuffer> chunks) {
+      for (ByteBuffer chunk : chunks) {
+        if (chunk.hasArray() && chunk.array().length == CHUNK_SIZE && POOLED.get() < MAX_POOLED) {
+          POOLED.incrementAndGet();
+          POOL.offer(chunk.array());
+        }
+      }
+    }
+
+    public StagedOutputStream(String filename) {
+      _filename = filename;
+    }
+
+    public void write(int b) {
+      if (_count == _chunk.length) {
+        next_chunk();
+      }
+      _chunk[_count++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len) {
+      while (len > 0) {
+        if (_count == _chunk.length) {
+          next_chunk();
+        }
+        int n = Math.min(len, _chunk.length - _count);
+        System.arraycopy(b, off, _chunk, _count, n);
+        _count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    private void next_chunk() {
+      _chunks.add(ByteBuffer.wrap(_chunk, 0, _count));
+      _chunk = take_chunk();
+      _count = 0;
+    }
+
+    public void close() throws IOException {
+      if (_chunk == null) {
+        return;
+      }
+      _chunks.add(ByteBuffer.wrap(_chunk, 0, _count));
+      _chunk = null;
+      commit_output(_filename, _chunks);
+    }
+  }
+
+  // queues the file to the write stage, or writes it now if there is none
+  private static void commit_output(String filename, ArrayList<ByteBuffer> chunks) throws IOException {
+
+      if (writeStage != null) {
+          writeStage.put(filename, chunks);
+      } else {
+          WriteStage.write_file(filename, chunks, null);
+      }
+  }
+
+  // renames a file written next to filename (as filename.tmp) in one step, replacing the
+  // previous one, so a reader never sees a partial file
+  private static void commit_file(File tmpfile, String filename) throws IOException {
+      Files.move(tmpfile.toPath(), new File(".", filename).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // -----------------------------------------------------------------------------
+  // Rows of text encoded as ASCII into a reusable buffer of the thread
+  //   numbers are written digit by digit and strings copied char by char, so
+  //   encoding a row allocates nothing. the buffer is written out when full.
+  // -----------------------------------------------------------------------------
+  public static class AsciiEncoder {
+
+    private static final ThreadLocal<AsciiEncoder> ENCODER = new ThreadLocal<AsciiEncoder>() {
+        protected AsciiEncoder initialValue() {
+            return new AsciiEncoder(1 << 16);
+        }
+    };
+
+    private final byte[] _buffer;
+    private int _count = 0;
+    private OutputStream _out = null;
+
+    private AsciiEncoder(int size) {
+      _buffer = new byte[size];
+    }
+
+    // the encoder of the calling thread, writing to out
+    public static AsciiEncoder get(OutputStream out) {
+      AsciiEncoder encoder = ENCODER.get();
+      encoder._out = out;
+      encoder._count = 0;
+      return encoder;
+    }
+
+    // room for n more bytes (n <= the size of the buffer)
+    private void reserve(int n) throws IOException {
+      if (_count + n > _buffer.length) {
+        _out.write(_buffer, 0, _count);
+        _count = 0;
+      }
+    }
+
+    public AsciiEncoder put(char c) throws IOException {
+      reserve(1);
+      _buffer[_count++] = (byte) c;
+      return this;
+    }
+
+    public AsciiEncoder put(String s) throws IOException {
+      return put(s, 0, s.length());
+    }
+
+    public AsciiEncoder put(String s, int from, int to) throws IOException {
+      for (int i = from; i < to; ) {
+        reserve(1);
+        int n = Math.min(to - i, _buffer.length - _count);
+        for (int end = i + n; i < end; i++) {
+          _buffer[_count++] = (byte) s.charAt(i);
+        }
+      }
+      return this;
+    }
+
+    public AsciiEncoder put(long v) throws IOException {
+
+      reserve(20);
+      if (v == Long.MIN_VALUE) {
+        return put("-9223372036854775808");
+      }
+      if (v < 0) {
+        _buffer[_count++] = '-';
+        v = -v;
+      }
+      int digits = 1;
+      for (long p = 10; digits < 19 && v >= p; p *= 10) {
+        digits++;
+      }
+      for (int i = _count + digits - 1; i >= _count; i--) {
+        _buffer[i] = (byte) ('0' + (v % 10));
+        v /= 10;
+      }
+      _count += digits;
+      return this;
+    }
+
+    // writes out what is left in the buffer
+    public void flush() throws IOException {
+      _out.write(_buffer, 0, _count);
+      _count = 0;
+      _out = null;
+    }
+
+    // the decimal number at s[from..] (up to the first non-digit)
+    public static int parse_int(String s, int from) {
+      int v = 0;
+      for (int i = from; i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9'; i++) {
+        v = 10*v + (s.charAt(i) - '0');
+      }
+      return v;
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Write stage: commits the files of the snapshots from a thread of its own
+  //   the snapshots are decoded (SnapshotStream) and their files formatted (write_snapshot)
+  //   before they are queued here, so decoding and formatting overlap with the writes. the
+  //   queue is bounded: a formatter waits when the disk falls behind. every file is written
+  //   to [name].tmp through a FileChannel from one large direct buffer, then renamed, so a
+  //   reader never sees a partial file. files are committed in the order they were queued
+  //   (the checkpoint of a snapshot is queued after its files).
+  // -----------------------------------------------------------------------------
+  public static class WriteStage {
+
+    private static final int BUFFER_SIZE = 1 << 22;
+
+    private static class Pending {
+      final String filename;
+      final ArrayList<ByteBuffer> chunks;
+      final Runnable action;
+      Pending(String filename, ArrayList<ByteBuffer> chunks, Runnable action) {
+        this.filename = filename;
+        this.chunks = chunks;
+        this.action = action;
+      }
+    }
+
+    private final ArrayBlockingQueue<Pending> _queue;
+    private final Thread _thread;
+    private final ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // entries queued, and done
+    private long _numQueued = 0;
+    private long _numDone = 0;
+
+    public WriteStage(int capacity) {
+
+      _queue = new ArrayBlockingQueue<Pending>(capacity);
+      _thread = new Thread(new Runnable() {
+          public void run() {
+              drain();
+          }
+      }, "write-stage");
+      _thread.setDaemon(true);
+      _thread.start();
+    }
+
+    // blocks while the queue is full
+    public void put(String filename, ArrayList<ByteBuffer> chunks) {
+      enqueue(new Pending(filename, chunks, null));
+    }
+
+    // runs an action once the files queued before it are committed
+    public void then(Runnable action) {
+      enqueue(new Pending(null, null, action));
+    }
+
+    private void enqueue(Pending pending) {
+      synchronized (this) {
+        _numQueued++;
+      }
+      try {
+        _queue.put(pending);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+    }
+
+    // waits until every file queued so far is committed
+    public synchronized void flush() throws InterruptedException {
+      long target = _numQueued;
+      while (_numDone < target) {
+        wait();
+      }
+    }
+
+    private void drain() {
+
+      Pending pending = null;
+      try {
+        while (true) {
+          pending = _queue.take();
+          if (pending.action != null) {
+            pending.action.run();
+          } else {
+            write_file(pending.filename, pending.chunks, _buffer);
+          }
+          synchronized (this) {
+            _numDone++;
+            notifyAll();
+          }
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (Exception e) {
+        System.out.println(" WriteStage: Unable to write " + (pending == null ? "" : pending.filename));
+        e.printStackTrace();
+        System.exit(1);
+      }
+    }
+
+    // writes [filename].tmp, through the given direct buffer (or from the chunks), and renames it
+    public static void write_file(String filename, ArrayList<ByteBuffer> chunks, ByteBuffer buffer) throws IOException {
+
+      File tmpfile = new File(".", filename + ".tmp");
+      FileChannel channel = new FileOutputStream(tmpfile).getChannel();
+      try {
+        for (ByteBuffer chunk : chunks) {
+          if (buffer == null) {
+            write_fully(channel, chunk);
+            continue;
+          }
+          while (chunk.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+              buffer.flip();
+              write_fully(channel, buffer);
+              buffer.clear();
+            }
+            int n = Math.min(chunk.remaining(), buffer.remaining());
+            ByteBuffer slice = chunk.duplicate();
+            slice.limit(slice.position() + n);
+            buffer.put(slice);
+            chunk.position(chunk.position() + n);
+          }
+        }
+        if (buffer != null) {
+          buffer.flip();
+          write_fully(channel, buffer);
+          buffer.clear();
+        }
+      } finally {
+        channel.close();
+      }
+      commit_file(tmpfile, filename);
+      StagedOutputStream.release(chunks);
+    }
+
+    private static void write_fully(FileChannel channel, ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+
+    public void close() throws InterruptedException {
+      flush();
+      _thread.interrupt();
+      _thread.join();
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Writes the files of one snapshot
+  //   the counters and the routing table depend on the previous snapshot: its state is
+  //   given by prevState/prevRouting, and the state after this snapshot is published in
+  //   currState/currRouting. everything between prevState.get() and currState.complete()
+  //   therefore runs in snapshot order, even when the snapshots are written in parallel.
+  // -----------------------------------------------------------------------------
+  private static String write_snapshot(MNetwork mn, OSM_Fabric fabric, long timestamp, String fname,
+                                       CompletableFuture<MNetwork.PortState> prevState, CompletableFuture<MNetwork.PortState> currState,
+                                       CompletableFuture<String> prevRouting, CompletableFuture<String> currRouting,
+                                       Checkpoint checkpoint) throws Exception {
+
+      long t0 = report.start();
+      MNetwork.CounterFrame frame = mn.read_portCounters(fabric, timestamp);
+      report.add_snapshot(frame._size);
+      report.stop(RunReport.COUNTERS, t0);
+
+      // the wait for the previous snapshot is not counted
+      MNetwork.PortState state = prevState.get();
+      t0 = report.start();
+
+      // the first counters of the ports are those not seen before the snapshot
+      if (shard != null) {
+          shard.add_counters(get_outputName(fname + ".count"), state, frame);
+      }
+      state.advance(frame, deltaCounters);
+      try {
+          if (counterArchive != null) {
+              long[][] values = new long[1 + frame._columns.length + (deltaCounters ? 0 : 1)][];
+              values[0] = frame._value;
+              System.arraycopy(frame._columns, 0, values, 1, frame._columns.length);
+              if (!deltaCounters) {
+                  values[values.length-1] = frame._delta;
+              }
+              counterArchive.append(timestamp, state.size(), frame._size, frame._ordinals, values);
+          }
+          if (linkSeries != null) {
+              linkSeries.append(timestamp, state.size(), frame._size, frame._ordinals, frame._value);
+          }
+          if (counterSeries != null) {
+              for (int c = 0; c < counterSeries.length; c++) {
+                  counterSeries[c].append(timestamp, state.size(), frame._size, frame._ordinals, frame._columns[c]);
+              }
+          }
+          if (rollups != null) {
+              rollups.append(timestamp, state.size(), frame._size, frame._ordinals, frame._delta);
+          }
+          if (hotspots != null) {
+              hotspots.append(mn, timestamp, state.size(), frame);
+          }
+      } catch (IOException e) {
+          System.out.println(" write_snapshot(): Unable to write the counters.");
+          e.printStackTrace();
+          System.exit(1);
+      }
+
+      // the next snapshot updates the state as soon as it is published
+      if (checkpoint != null) {
+          checkpoint.capture(state);
+      }
+      currState.complete(state);
+
+      String written = "";
+      if (counterArchive == null) {
+          String countName = get_outputName(fname + ".count");
+          MNetwork.write_portCounters(frame, countName);
+          report.add_bytes(RunReport.COUNTERS, countName);
+          written = countName;
+      }
+      t0 = report.stop(RunReport.COUNTERS, t0);
+
+      String rtableName = get_outputName(fname + ".rtable");
+      if (MNetwork.write_routing(fabric, rtableName, prevRouting, currRouting)) {
+          report.add_bytes(RunReport.ROUTING, rtableName);
+          report.add_bytes(RunReport.ROUTING, fname + ".rindex");
+          written = written + (written.isEmpty() ? "" : " and ") + rtableName;
+      }
+      report.stop(RunReport.ROUTING, t0);
+      return written;
+  }
+
+  // -----------------------------------------------------------------------------
+  // Timings and volumes of a run, per phase (updated from all threads)
+  //   the time of a phase is summed over the threads that run it, so with --threads
+  //   the phases can add up to more than the elapsed time.
+  // -----------------------------------------------------------------------------
+  public static class RunReport {
+
+    public static final int DECODE = 0, FINGERPRINT = 1, MERGE_NODES = 2, MERGE_LINKS = 3;
+    public static final int COUNTERS = 4, ROUTING = 5, TOPOLOGY = 6;
+
+    private static final String[] PHASES = { "decode", "fingerprint", "merge_nodes", "merge_links",
+                                             "counters", "routing", "topology" };
+
+    private final long _start = System.nanoTime();
+    private final long _startMillis = System.currentTimeMillis();
+
+    private final AtomicLongArray _nanos = new AtomicLongArray(PHASES.length);
+    private final AtomicLongArray _bytes = new AtomicLongArray(PHASES.length);
+    private final AtomicLong _snapshots = new AtomicLong();
+    private final AtomicLong _ports = new AtomicLong();
+
+    private long _lastProgress = System.nanoTime();
+
+    public long start() {
+      return System.nanoTime();
+    }
+
+    // adds the time since start to the phase, and returns the current time
+    public long stop(int phase, long start) {
+      long now = System.nanoTime();
+      _nanos.addAndGet(phase, now - start);
+      return now;
+    }
+
+    // counted once the file is on disk (after the files queued to the write stage before it)
+    public void add_bytes(final int phase, final String filename) {
+      Runnable count = new Runnable() {
+          public void run() {
+              _bytes.addAndGet(phase, new File(".", filename).length());
+          }
+      };
+      if (writeStage != null) {
+        writeStage.then(count);
+      } else {
+        count.run();
+      }
+    }
+
+    public void add_snapshot(int numPorts) {
+      _snapshots.incrementAndGet();
+      _ports.addAndGet(numPorts);
+    }
+
+    private double elapsed() {
+      return (System.nanoTime() - _start) / 1e9;
+    }
+
+    private long bytes() {
+      long total = 0;
+      for (int i = 0; i < PHASES.length; i++) {
+        total += _bytes.get(i);
+      }
+      return total;
+    }
+
+    private static long get_peakHeap() {
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+          peak += pool.getPeakUsage().getUsed();
+        }
+      }
+      return peak;
+    }
+
+    // prints a progress line if the last one is older than the given interval
+    public void print_progress(int interval) {
+
+      if (interval <= 0 || System.nanoTime() - _lastProgress < interval * 1000000000L) {
+        return;
+      }
+      _lastProgress = System.nanoTime();
+
+      double t = elapsed();
+      System.out.println(String.format(Locale.ROOT, " [progress] %.0f s: %d snapshots (%.2f/s), %d ports (%.0f/s), %.1f MB written, heap %.0f MB",
+                                       t, _snapshots.get(), _snapshots.get() / t, _ports.get(), _ports.get() / t,
+                                       bytes() / 1e6, (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1e6));
+    }
+
+    public void write(String filename) throws IOException {
+
+      double t = elapsed();
+
+      long gcTime = 0;
+      long gcCount = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        gcTime += Math.max(0, gc.getCollectionTime());
+        gcCount += Math.max(0, gc.getCollectionCount());
+      }
+
+      File tmpfile = new File(".", filename + ".tmp");
+      BufferedWriter bwriter = new BufferedWriter(new FileWriter(tmpfile));
+      bwriter.write("{\n");
+      bwriter.write(" \"start\": \"" + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new java.util.Date(_startMillis)) + "\",\n");
+      bwriter.write(" \"threads\": " + numThreads + ",\n");
+      bwriter.write(String.format(Locale.ROOT, " \"elapsed_s\": %.3f,\n", t));
+      bwriter.write(" \"snapshots\": " + _snapshots.get() + ",\n");
+      bwriter.write(" \"ports\": " + _ports.get() + ",\n");
+      bwriter.write(String.format(Locale.ROOT, " \"snapshots_per_s\": %.3f,\n", _snapshots.get() / t));
+      bwriter.write(String.format(Locale.ROOT, " \"ports_per_s\": %.1f,\n", _ports.get() / t));
+      bwriter.write(" \"bytes_out\": " + bytes() + ",\n");
+      bwriter.write(" \"peak_heap_bytes\": " + get_peakHeap() + ",\n");
+      bwriter.write(" \"gc_count\": " + gcCount + ",\n");
+      bwriter.write(" \"gc_time_s\": " + String.format(Locale.ROOT, "%.3f", gcTime / 1e3) + ",\n");
+      bwriter.write(" \"phases\": {\n");
+      for (int i = 0; i < PHASES.length; i++) {
+        bwriter.write(String.format(Locale.ROOT, "  \"%s\": { \"time_s\": %.3f, \"bytes_out\": %d }%s\n",
+                                    PHASES[i], _nanos.get(i) / 1e9, _bytes.get(i), (i == PHASES.length-1) ? "" : ","));
+      }
+      bwriter.write(" }\n");
+      bwriter.write("}\n");
+      bwriter.close();
+      commit_file(tmpfile, filename);
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // State of a conversion, carried from one snapshot to the next
+  //   kept in memory by --follow, so that new snapshots continue the same network,
+  //   counters, and routing history.
+  // -----------------------------------------------------------------------------
+  private static class Conversion {
+
+    public MNetwork mn = new MNetwork();
+
+    // in parallel mode, the topology is still merged by this thread in snapshot order,
+    // while the per-snapshot files are written by the pool.
+    private ExecutorService pool = null;
+
+    // fingerprint of the routing table of the previous snapshot
+    private CompletableFuture<String> routingFingerprint = CompletableFuture.completedFuture("");
+
+    // counters of the ports after the previous snapshot (for --delta)
+    private CompletableFuture<MNetwork.PortState> portState = CompletableFuture.completedFuture(new MNetwork.PortState(0));
+
+    // number of snapshots converted from every history file, and the size and
+    // modification time of the files that have been converted completely
+    private final HashMap<String, Integer> converted = new HashMap<String, Integer>();
+    private final HashMap<String, String> completed = new HashMap<String, String>();
+
+    // the checkpoint of the previous snapshot has been written (null if not checkpointing)
+    private CompletableFuture<Void> checkpoint = null;
+
+    // snapshots seen between --from and --to (for --stride), and snapshots converted (for --max)
+    private long numInWindow = 0;
+    private long numConverted = 0;
+
+    public Conversion() {
+
+      if (numThreads > 1) {
+          pool = Executors.newFixedThreadPool(numThreads);
+          verbose = false;
+      }
+      writeStage = new WriteStage(Math.max(4, 4*snapshotWindow));
+      if (deltaCounters) {
+          mn._params.put("counters", "\"delta\"");
+      }
+    }
+
+    public void enable_checkpoints() {
+      checkpoint = CompletableFuture.completedFuture(null);
+    }
+
+    private static String get_signature(File hisFile) {
+      return hisFile.length() + ":" + hisFile.lastModified();
+    }
+
+    public void shutdown() {
+      if (pool != null) {
+          pool.shutdown();
+      }
+      try {
+          writeStage.close();
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+      }
+      writeStage = null;
+    }
+
+    // true once --max snapshots have been converted
+    public boolean is_full() {
+      return maxSnapshots > 0 && numConverted >= maxSnapshots;
+    }
+
+    // true if the snapshot taken at the given time passes the --from, --to, and --stride filters
+    private boolean select(long timestamp) {
+
+      if (timestamp < fromTime || timestamp > toTime) {
+          return false;
+      }
+      return (numInWindow++ % snapshotStride) == 0;
+    }
+
+    // number of snapshots of a history file that have already been converted
+    public int get_converted(File hisFile) {
+      Integer count = converted.get(hisFile.getPath());
+      return (count == null) ? 0 : count;
+    }
+
+    // continues the conversion saved in a checkpoint
+    public void resume(String filename) throws IOException {
+
+      File file = new File(".", filename);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+          if (in.readInt() != Checkpoint.MAGIC || in.readInt() != Checkpoint.VERSION) {
+              throw new IOException("Not a checkpoint: " + file.getPath());
+          }
+          if (in.readBoolean() != deltaCounters) {
+              throw new IOException("The checkpoint was written with" + (deltaCounters ? "out" : "") + " --delta");
+          }
+          in.readLong();
+          String fname = in.readUTF();
+
+          // --max counts the snapshots of the previous runs as well
+          numConverted = in.readLong();
+
+          int numFiles = in.readInt();
+          for (int f = 0; f < numFiles; f++) {
+              String path = in.readUTF();
+              converted.put(path, in.readInt());
+              String signature = in.readUTF();
+              if (!signature.isEmpty()) {
+                  completed.put(path, signature);
+              }
+          }
+
+          byte[] network = new byte[in.readInt()];
+          in.readFully(network);
+          mn = MNetwork.read_checkpoint(network);
+
+          portState = CompletableFuture.completedFuture(MNetwork.PortState.read(in));
+          routingFingerprint = CompletableFuture.completedFuture(in.readUTF());
+
+          // the checkpointed snapshot was selected: the next stride-1 are skipped
+          numInWindow = 1;
+
+          System.out.println("Resuming after snapshot " + fname + " (" + numConverted + " converted, " + converted.size() + " history files, " + completed.size() + " complete)");
+      } finally {
+          in.close();
+      }
+    }
+
+    // converts the snapshots of the given files that have not been converted yet,
+    // and returns once all of them have been written
+    public int convert(File[] hisFiles) throws Exception {
+
+      // files converted completely by a previous run, and unchanged since, are not read again
+      ArrayList<File> remaining = new ArrayList<File>();
+      for (File hisFile : hisFiles) {
+          if (get_signature(hisFile).equals(completed.get(hisFile.getPath()))) {
+              System.out.println("\nSkipping history file: " + hisFile.getPath() + " (already converted)");
+              continue;
+          }
+          remaining.add(hisFile);
+      }
+      hisFiles = remaining.toArray(new File[remaining.size()]);
+
+      int[] first = new int[hisFiles.length];
+      for (int f = 0; f < hisFiles.length; f++) {
+          first[f] = get_converted(hisFiles[f]);
+      }
+
+      LinkedHashMap<String, Future<?>> pending = new LinkedHashMap<String, Future<?>>();
+      int count = 0;
+      int skipped = 0;
+
+      OpenSmMonitorService oms = null;
+
+      // no history file is read once --max snapshots have been converted
+      final SnapshotStream stream = new SnapshotStream(hisFiles, first, snapshotWindow);
+      while (!is_full() && (oms = stream.next()) != null){
+
+          File hisFile = stream.file();
+          int i = stream.index();
+          converted.put(hisFile.getPath(), i+1);
+          if (stream.isLast()) {
+              completed.put(hisFile.getPath(), get_signature(hisFile));
+          }
+
+          String filePrefix = createPrefix(hisFile.getPath());
+
+          if(oms.getTimeStamp() == null){
+            System.out.println("\n\n\n\n [[[ Skipping snapshot " + (i+1) + " becuase OMS " + hisFile.getPath() + " gave null timestamp ]]] \n\n\n\n");
+            stream.release();
+            continue;
+          }
+
+          // the filters are checked before the fabric of the snapshot is touched
+          long timestamp = oms.getTimeStamp().getTimeInSeconds();
+          if (!select(timestamp)) {
+            skipped++;
+            stream.release();
+            continue;
+          }
+
+          String formattedString = FormatTimeStamp( oms.getTimeStamp().toString() );
+
+          System.out.println("\n  .snapshot["+(i+1)+"]: " + oms.getTimeStamp().toString() + " (" + formattedString + ").");
+          count++;
+          numConverted++;
+
+          //MNetwork mn = new MNetwork(oms.getFabric());
+
+          mn.merge_fabric(oms.getFabric(), timestamp, formattedString);
+
+          final CompletableFuture<String> prevRouting = routingFingerprint;
+          final CompletableFuture<String> currRouting = new CompletableFuture<String>();
+          routingFingerprint = currRouting;
+
+          if (shard != null) {
+            shard.add_topology(mn, timestamp, formattedString);
+            if (shard._firstRouting == null) {
+              shard._firstRouting = currRouting;
+            }
+          }
+
+          final CompletableFuture<MNetwork.PortState> prevState = portState;
+          final CompletableFuture<MNetwork.PortState> currState = new CompletableFuture<MNetwork.PortState>();
+          portState = currState;
+
+          // the state after this snapshot, written once its files are written and
+          // the checkpoints of the previous snapshots are
+          final Checkpoint prevCheckpoint = (checkpoint == null) ? null : new Checkpoint(checkpoint, timestamp, formattedString,
+                                                                                     numConverted, mn.get_checkpoint(), converted, completed);
+          if (checkpoint != null) {
+              checkpoint = prevCheckpoint._done;
+          }
+
+          if (pool == null) {
+            write_snapshot(mn, oms.getFabric(), timestamp, formattedString, prevState, currState, prevRouting, currRouting, prevCheckpoint);
+            if (prevCheckpoint != null) {
+              prevCheckpoint.write(currRouting.get());
+            }
+            stream.release();
+          }
+          else {
+
+            // two snapshots within the same second write the same files:
+            // let the earlier one finish, so the later one wins as in a sequential run
+            Future<?> previous = pending.remove(formattedString);
+            if (previous != null) {
+              previous.get();
+            }
+
+            final OSM_Fabric fabric = oms.getFabric();
+            final MNetwork network = mn;
+            final String fname = formattedString;
+            final long ts = timestamp;
+            pending.put(fname, pool.submit(new Runnable() {
+              public void run() {
+                try {
+                  String written = write_snapshot(network, fabric, ts, fname, prevState, currState, prevRouting, currRouting, prevCheckpoint);
+                  System.out.println("   Wrote " + (written.isEmpty() ? "nothing new" : written) + " for " + fname);
+                  if (prevCheckpoint != null) {
+                    prevCheckpoint.write(currRouting.get());
+                  }
+                } catch (Exception e) {
+                  System.out.println(" write_snapshot(): failed!");
+                  e.printStackTrace();
+                  System.exit(1);
+                } finally {
+                  stream.release();
+                }
+              }
+            }));
+
+            // forget the snapshots that have already been written (get() rethrows their failures)
+            Iterator<Future<?>> it = pending.values().iterator();
+            while (it.hasNext()) {
+              Future<?> f = it.next();
+              if (f.isDone()) {
+                f.get();
+                it.remove();
+              }
+            }
+          }
+          oms = null;
+          report.print_progress(progressInterval);
+
+          //mn.write_network(filePrefix + "." + formattedString + ".topo");
+          //mn.write_portCounters(filePrefix + "." + formattedString + ".count");
+          //mn.write_routing(filePrefix + "." + formattedString + ".rtable");
+      }
+
+      // wait for all the snapshots to be written, and their files committed
+      for (Future<?> f : pending.values()) {
+          f.get();
+      }
+      writeStage.flush();
+      if (skipped > 0) {
+          System.out.println("\n - skipped " + skipped + " snapshots outside of --from, --to, or --stride");
+      }
+      if (is_full()) {
+          System.out.println("\n - converted " + numConverted + " snapshots (--max), stopping");
+      }
+      return count;
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Checkpoint of a conversion, written after every snapshot (checkpoint.bin)
+  //   the network and the history files converted are captured by the merging thread,
+  //   and the counter and routing state by the thread that writes the snapshot. the
+  //   checkpoints are written in snapshot order, each replacing the previous one.
+  //   (java DataOutput format, as it is only read back by this program)
+  // -----------------------------------------------------------------------------
+  private static class Checkpoint {
+
+    public static final int MAGIC = 0x54534350;       // "TSCP"
+    public static final int VERSION = 2;
+
+    private final CompletableFuture<Void> _previous;
+    private final CompletableFuture<Void> _done = new CompletableFuture<Void>();
+
+    private final long _timestamp;
+    private final String _fname;
+    private final long _numConverted;
+    private final byte[] _network;
+    private final String[] _paths;
+    private final int[] _converted;
+    private final String[] _completed;
+
+    public Checkpoint(CompletableFuture<Void> previous, long timestamp, String fname, long numConverted, byte[] network,
+                      Map<String, Integer> converted, Map<String, String> completed) {
+
+      _previous = previous;
+      _timestamp = timestamp;
+      _fname = fname;
+      _numConverted = numConverted;
+      _network = network;
+
+      _paths = new String[converted.size()];
+      _converted = new int[converted.size()];
+      _completed = new String[converted.size()];
+      // by path, so that a merge writes the checkpoint of the single run
+      int f = 0;
+      for (Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(converted).entrySet()) {
+        _paths[f] = entry.getKey();
+        _converted[f] = entry.getValue();
+        _completed[f] = completed.containsKey(entry.getKey()) ? completed.get(entry.getKey()) : "";
+        f++;
+      }
+    }
+
+    // the counter state after the snapshot, copied by the thread writing the snapshot
+    // before the next snapshot updates it (see write_snapshot)
+    private MNetwork.PortState _state = null;
+
+    public void capture(MNetwork.PortState state) {
+      _state = new MNetwork.PortState(state);
+    }
+
+    public void write(String routing) throws Exception {
+
+      _previous.get();
+
+      // committed after the files of the snapshot, which were queued before
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new StagedOutputStream("checkpoint.bin"), 1 << 16));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeBoolean(deltaCounters);
+      out.writeLong(_timestamp);
+      out.writeUTF(_fname);
+      out.writeLong(_numConverted);
+
+      out.writeInt(_paths.length);
+      for (int f = 0; f < _paths.length; f++) {
+        out.writeUTF(_paths[f]);
+        out.writeInt(_converted[f]);
+        out.writeUTF(_completed[f]);
+      }
+
+      out.writeInt(_network.length);
+      out.write(_network);
+
+      _state.write(out);
+      out.writeUTF(routing);
+      out.close();
+      _done.complete(null);
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Partial output of a --shard run (shard.bin), read by the merge command
+  //   a shard is converted as a run of its own, so its first snapshot has no previous
+  //   one: its routing table is always written, and with --delta the first value of
+  //   every port counts as 0. the shard keeps what the merge needs to fix these up:
+  //   the topology of every snapshot where merge_fabric saw it change, the first
+  //   counters read for every port (with the file and row where they were written),
+  //   and the final state of the conversion, as in a checkpoint.
+  //   (java DataOutput format, as it is only read back by this program)
+  // -----------------------------------------------------------------------------
+  private static class Shard {
+
+    public static final int MAGIC = 0x54535348;       // "TSSH"
+    public static final int VERSION = 1;
+
+    // a topology of the shard: its nodes up to _numNodes, and its links as sorted pairs of port ordinals
+    private static class Topology {
+      long _timestamp;
+      String _fname;
+      long _fingerprint;
+      int _numNodes;
+      long[] _links;
+    }
+
+    public File _dir = new File(".");
+    public boolean _delta = deltaCounters;
+    public String _encoding = outputEncoding;
+
+    // first and last snapshots converted
+    public int _numSnapshots = 0;
+    public long _firstTime, _lastTime;
+    public String _firstFname = "", _lastFname = "";
+
+    public final ArrayList<Topology> _topologies = new ArrayList<Topology>();
+
+    // first counters of every port: file (index in _countFiles), row, rcv_data, and link_downed
+    public final ArrayList<String> _countFiles = new ArrayList<String>();
+    public int _numFirst = 0;
+    public int[] _ordinals = new int[1024];
+    public int[] _files = new int[1024];
+    public int[] _rows = new int[1024];
+    public long[] _rcvData = new long[1024];
+    public long[] _linkDowned = new long[1024];
+
+    // routing fingerprints of the first and last snapshots
+    public CompletableFuture<String> _firstRouting = null;
+    public String _lastRouting = "";
+
+    // as in a checkpoint
+    public MNetwork _network;
+    public MNetwork.PortState _state;
+    public final LinkedHashMap<String, Integer> _converted = new LinkedHashMap<String, Integer>();
+    public final LinkedHashMap<String, String> _completed = new LinkedHashMap<String, String>();
+
+    // called in snapshot order, once the snapshot has been merged into the network
+    public void add_topology(MNetwork mn, long timestamp, String fname) {
+
+      if (_numSnapshots++ == 0) {
+        _firstTime = timestamp;
+        _firstFname = fname;
+      }
+      _lastTime = timestamp;
+      _lastFname = fname;
+
+      // merge_fabric replaces the links whenever the topology changes
+      Topology last = _topologies.isEmpty() ? null : _topologies.get(_topologies.size()-1);
+      if (last != null && last._links == mn._links) {
+        return;
+      }
+      Topology t = new Topology();
+      t._timestamp = timestamp;
+      t._fname = fname;
+      t._fingerprint = mn._fingerprint;
+      t._numNodes = mn._size;
+      t._links = mn._links;
+      _topologies.add(t);
+    }
+
+    // called in snapshot order (between prevState.get() and currState.complete())
+    public synchronized void add_counters(String countName, MNetwork.PortState prev, MNetwork.CounterFrame frame) {
+
+      int file = -1;
+      for (int i = 0; i < frame._size; i++) {
+
+        int o = frame._ordinals[i];
+        if (o < 0 || (o < prev.size() && prev._linkDowned[o] != -1)) {
+          continue;
+        }
+        if (file == -1) {
+          file = _countFiles.size();
+          _countFiles.add(countName);
+        }
+        if (_numFirst == _ordinals.length) {
+          int capacity = 2*_numFirst;
+          _ordinals = Arrays.copyOf(_ordinals, capacity);
+          _files = Arrays.copyOf(_files, capacity);
+          _rows = Arrays.copyOf(_rows, capacity);
+          _rcvData = Arrays.copyOf(_rcvData, capacity);
+          _linkDowned = Arrays.copyOf(_linkDowned, capacity);
+        }
+        _ordinals[_numFirst] = o;
+        _files[_numFirst] = file;
+        _rows[_numFirst] = i;
+        _rcvData[_numFirst] = frame._rcvData[i];
+        _linkDowned[_numFirst] = frame._linkDowned[i];
+        _numFirst++;
+      }
+    }
+
+    public void write(String filename, Conversion conv) throws Exception {
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new StagedOutputStream(filename), 1 << 16));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeBoolean(_delta);
+      out.writeUTF(_encoding == null ? "" : _encoding);
+
+      out.writeInt(_numSnapshots);
+      out.writeLong(_firstTime);
+      out.writeUTF(_firstFname);
+      out.writeLong(_lastTime);
+      out.writeUTF(_lastFname);
+
+      out.writeInt(_topologies.size());
+      for (Topology t : _topologies) {
+        out.writeLong(t._timestamp);
+        out.writeUTF(t._fname);
+        out.writeLong(t._fingerprint);
+        out.writeInt(t._numNodes);
+        out.writeInt(t._links.length);
+        for (long link : t._links) {
+          out.writeLong(link);
+        }
+      }
+
+      out.writeInt(_countFiles.size());
+      for (String name : _countFiles) {
+        out.writeUTF(name);
+      }
+      out.writeInt(_numFirst);
+      for (int i = 0; i < _numFirst; i++) {
+        out.writeInt(_ordinals[i]);
+        out.writeInt(_files[i]);
+        out.writeInt(_rows[i]);
+        out.writeLong(_rcvData[i]);
+        out.writeLong(_linkDowned[i]);
+      }
+
+      out.writeUTF(_firstRouting == null ? "" : _firstRouting.get());
+      out.writeUTF(conv.routingFingerprint.get());
+
+      out.writeInt(conv.converted.size());
+      for (Map.Entry<String, Integer> entry : conv.converted.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue());
+        String signature = conv.completed.get(entry.getKey());
+        out.writeUTF(signature == null ? "" : signature);
+      }
+
+      byte[] network = conv.mn.get_checkpoint();
+      out.writeInt(network.length);
+      out.write(network);
+      conv.portState.get().write(out);
+      out.close();
+    }
+
+    public static Shard read(File dir, String filename) throws IOException {
+
+      File file = new File(dir, filename);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      Shard shard = new Shard();
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          throw new IOException("Not a shard: " + file.getPath());
+        }
+        shard._dir = dir;
+        shard._delta = in.readBoolean();
+        shard._encoding = in.readUTF();
+        if (shard._encoding.isEmpty()) {
+          shard._encoding = null;
+        }
+
+        shard._numSnapshots = in.readInt();
+        shard._firstTime = in.readLong();
+        shard._firstFname = in.readUTF();
+        shard._lastTime = in.readLong();
+        shard._lastFname = in.readUTF();
+
+        int numTopologies = in.readInt();
+        for (int i = 0; i < numTopologies; i++) {
+          Topology t = new Topology();
+          t._timestamp = in.readLong();
+          t._fname = in.readUTF();
+          t._fingerprint = in.readLong();
+          t._numNodes = in.readInt();
+          t._links = new long[in.readInt()];
+          for (int j = 0; j < t._links.length; j++) {
+            t._links[j] = in.readLong();
+          }
+          shard._topologies.add(t);
+        }
+
+        int numFiles = in.readInt();
+        for (int i = 0; i < numFiles; i++) {
+          shard._countFiles.add(in.readUTF());
+        }
+        int numFirst = in.readInt();
+        shard._ordinals = new int[numFirst];
+        shard._files = new int[numFirst];
+        shard._rows = new int[numFirst];
+        shard._rcvData = new long[numFirst];
+        shard._linkDowned = new long[numFirst];
+        for (int i = 0; i < numFirst; i++) {
+          shard._ordinals[i] = in.readInt();
+          shard._files[i] = in.readInt();
+          shard._rows[i] = in.readInt();
+          shard._rcvData[i] = in.readLong();
+          shard._linkDowned[i] = in.readLong();
+        }
+        shard._numFirst = numFirst;
+
+        shard._firstRouting = CompletableFuture.completedFuture(in.readUTF());
+        shard._lastRouting = in.readUTF();
+
+        numFiles = in.readInt();
+        for (int i = 0; i < numFiles; i++) {
+          String path = in.readUTF();
+          shard._converted.put(path, in.readInt());
+          String signature = in.readUTF();
+          if (!signature.isEmpty()) {
+            shard._completed.put(path, signature);
+          }
+        }
+
+        byte[] network = new byte[in.readInt()];
+        in.readFully(network);
+        shard._network = MNetwork.read_checkpoint(network);
+        shard._state = MNetwork.PortState.read(in);
+      } finally {
+        in.close();
+      }
+      return shard;
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // Writes listing.txt, the list of per-snapshot files read by TreeScope
+  //   written to a temporary file and renamed, so a reader never sees a partial list.
+  // -----------------------------------------------------------------------------
+  private static void write_listing(String filename) throws IOException {
+
+      String[] names = new File(".").list(new FilenameFilter() {
+          public boolean accept(File dir, String name) {
+              return name.endsWith(".count") || name.endsWith(".rtable") ||
+                     name.endsWith(".count.gz") || name.endsWith(".rtable.gz") ||
+                     name.endsWith(".rindex") || name.endsWith(".tdelta");
+          }
+      });
+      Arrays.sort(names);
+
+      File tmpfile = new File(".", filename + ".tmp");
+      BufferedWriter bwriter = new BufferedWriter(new FileWriter(tmpfile));
+      for (String name : names) {
+          bwriter.write(name);
+          bwriter.newLine();
+      }
+      bwriter.close();
+      commit_file(tmpfile, filename);
+  }
+
+  // -----------------------------------------------------------------------------
+  // Data server (--serve): answers range queries on the converted directory over http
+  //   GET /api/snapshots                   time-stamps of the counters and routing tables (json)
+  //   GET /api/links?t0=..&t1=..           rcv_data of every port, summed over [t0, t1] (a '.count' file)
+  //   GET /api/switches?t0=..&t1=..        max rcv_data into and out of every node over [t0, t1] (csv)
+  //   GET /api/routing?t=..                the routing table in effect at t (a '.rtable' file)
+  //   GET /api/series?node=..&port=..      rcv_data of one port for every snapshot in [t0, t1] (csv, from links.series)
+  //   GET /<file>                          any other file of the directory (e.g., network.topo), streamed
+  //   times are yyyyMMdd-HHmmss or seconds since the epoch, and t0 and t1 default to the whole run.
+  //
+  //   the sums are those of the per-interval deltas of every port (the first snapshot counts
+  //   as 0, and a reset as the value read after it, as the app does). with --archive, they are
+  //   read from the memory-mapped counters.bin, through the complete buckets of the rollup
+  //   archives where there are some (see Rollups.aggregate), so nothing is parsed and only the
+  //   pages of the snapshots at the ends of a range are touched. otherwise, the '.count' files
+  //   of the range are read for every query. the files are listed again when listing.txt or
+  //   counters.bin change (--follow), and only the last CACHE_SIZE responses are kept in memory.
+  //   requests run on virtual threads when the JVM has them (Java 21+), otherwise on a pool.
+  // -----------------------------------------------------------------------------
+  public static class DataServer {
+
+    private static final int CACHE_SIZE = 64;
+    private static final long REFRESH_INTERVAL = 2;     // seconds
+
+    // the files as of one listing.txt; never modified once published
+    private static class State {
+
+      // requests using the state, and whether a newer state has replaced it
+      final AtomicInteger users = new AtomicInteger();
+      volatile boolean retired = false;
+      final AtomicBoolean released = new AtomicBoolean();
+
+      // the archives it holds (see hold)
+      final ArrayList<Closeable> archives = new ArrayList<Closeable>();
+
+      long listingStamp = -1;
+      long topoStamp = -1;
+      long archiveStamp = -1;
+      long seriesStamp = -1;
+
+      HashMap<String, String> peers = new HashMap<String, String>();    // "node_id,port_idx" -> dest node
+      boolean delta = false;                          // the counters are deltas already
+
+      // counters.bin and the rollup levels (null without --archive), its column of deltas,
+      // and the "node_id,port_idx" of every ordinal
+      CounterArchive counters = null;
+      int column = -1;
+      CounterArchive[] levels = new CounterArchive[0];
+      long[] spans = new long[0];
+      String[] keys = new String[0];
+
+      // links.series (null without --series)
+      LinkSeries series = null;
+
+      // without counters.bin: the deltas of the .count files, loaded into temporary archives in
+      // time order (see load_counters), and the number of files they hold
+      CounterArchive[] segments = new CounterArchive[0];
+      int numLoaded = 0;
+
+      String[] countFiles = new String[0];
+
+      String[] routingFiles = new String[0];
+      long[] routingTimes = new long[0];
+    }
+
+    // the sums of a range, by port
+    private static class Sums {
+      String[] keys;
+      long[] values;
+    }
+
+    private final File _dir;
+    private final HttpServer _server;
+
+    private volatile State _state = new State();
+
+    // the ports of the .count files loaded so far, by ordinal ("node_id,port_idx"), and their
+    // last cumulative values (-1 if not seen yet), for the next files. only used by refresh()
+    private final HashMap<String, Integer> _ordinals = new HashMap<String, Integer>();
+    private final ArrayList<String> _ports = new ArrayList<String>();
+    private long[] _last = new long[0];
+    private int _numLoaded = -1;
+
+    // number of states holding every archive: an archive is closed once no state holds it
+    private final IdentityHashMap<Closeable, int[]> _holders = new IdentityHashMap<Closeable, int[]>();
+    private final ScheduledExecutorService _refresher = Executors.newSingleThreadScheduledExecutor();
+
+    private final LinkedHashMap<String, byte[]> _cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public DataServer(File dir, int port) throws IOException {
+
+      _dir = dir;
+      _server = HttpServer.create(new InetSocketAddress(port), 0);
+      _server.createContext("/", new HttpHandler() {
+          public void handle(HttpExchange exchange) throws IOException {
+              respond(exchange);
+          }
+      });
+      _server.setExecutor(newExecutor());
+    }
+
+    private static ExecutorService newExecutor() {
+      try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        return Executors.newCachedThreadPool();
+      }
+    }
+
+    public void start() throws Exception {
+
+      State state = refresh();
+      _refresher.scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+              try {
+                  refresh();
+              } catch (Exception e) {
+                  System.out.println(" Failed to list " + _dir.getPath() + " again: " + e);
+              }
+          }
+      }, REFRESH_INTERVAL, REFRESH_INTERVAL, TimeUnit.SECONDS);
+      _server.start();
+      System.out.println("\nServing " + _dir.getCanonicalPath() + " on http://localhost:" + _server.getAddress().getPort() + "/" +
+                         " (" + ((state.counters != null) ? "counters.bin with " + state.counters.numSnapshots() + " snapshots and " +
+                                                            state.levels.length + " rollup levels"
+                                                          : state.countFiles.length + " counter files") +
+                         ", " + state.routingFiles.length + " routing tables)");
+    }
+
+    // -------------------------------------------------------------------------
+    private void respond(HttpExchange exchange) throws IOException {
+
+      try {
+        if (!exchange.getRequestMethod().equals("GET")) {
+          send(exchange, 405, "text/plain", "Only GET is supported\n".getBytes("ISO-8859-1"));
+          return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (!path.startsWith("/api/")) {
+          send_file(exchange, path);
+          return;
+        }
+
+        State state = acquire();
+        try {
+          String key = state.listingStamp + " " + state.topoStamp + " " + state.archiveStamp + " " + state.seriesStamp + " " + path + "?" + query;
+          byte[] body;
+          synchronized (_cache) {
+            body = _cache.get(key);
+          }
+          if (body == null) {
+            Map<String, String> params = parse_query(query);
+            if (path.equals("/api/snapshots")) {         body = get_snapshots(state);  }
+            else if (path.equals("/api/links")) {        body = get_links(state, params);  }
+            else if (path.equals("/api/switches")) {     body = get_switches(state, params);  }
+            else if (path.equals("/api/routing")) {      body = get_routing(state, params);  }
+            else if (path.equals("/api/series")) {       body = get_series(state, params);  }
+            else {
+              send(exchange, 404, "text/plain", ("Unknown query " + path + "\n").getBytes("ISO-8859-1"));
+              return;
+            }
+            synchronized (_cache) {
+              _cache.put(key, body);
+            }
+          }
+          send(exchange, 200, path.equals("/api/snapshots") ? "application/json" : "text/csv", body);
+        } finally {
+          release(state);
+        }
+      }
+      catch (IllegalArgumentException e) {
+        send(exchange, 400, "text/plain", (e.getMessage() + "\n").getBytes("ISO-8859-1"));
+      }
+      catch (Exception e) {
+        System.out.println(" Failed to answer " + exchange.getRequestURI() + ": " + e);
+        send(exchange, 500, "text/plain", (e + "\n").getBytes("ISO-8859-1"));
+      }
+      finally {
+        exchange.close();
+      }
+    }
+
+    private static boolean accepts_gzip(HttpExchange exchange, String type, long length) {
+      String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      return length > 1024 && accept != null && accept.contains("gzip") && !type.equals("application/octet-stream");
+    }
+
+    // gzip-encoded if the client accepts it, and it is worth it
+    private static void send(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+
+      if (accepts_gzip(exchange, type, body.length)) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(body);
+        out.close();
+        body = bytes.toByteArray();
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      }
+      exchange.getResponseHeaders().set("Content-Type", type);
+      exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+      exchange.sendResponseHeaders(status, body.length);
+      exchange.getResponseBody().write(body);
+    }
+
+    // streamed from the file, which may be far larger than the heap (counters.bin, links.series):
+    // as it is, with its length, or gzip-encoded in chunks for the text files
+    private void send_file(HttpExchange exchange, String path) throws IOException {
+
+      File file = new File(_dir, path).getCanonicalFile();
+      String root = _dir.getCanonicalPath() + File.separator;
+      if (!file.getPath().startsWith(root) || !file.isFile()) {
+        send(exchange, 404, "text/plain", ("Not found: " + path + "\n").getBytes("ISO-8859-1"));
+        return;
+      }
+      String name = file.getName();
+      String type = name.endsWith(".gz") || name.endsWith(".bin") || name.endsWith(".series") ||
+                    name.endsWith(".rindex") || name.endsWith(".links") ? "application/octet-stream" :
+                    name.endsWith(".topo") || name.endsWith(".json") ? "application/json" : "text/plain";
+
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+        long length = channel.size();
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+
+        if (accepts_gzip(exchange, type, length)) {
+          exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+          exchange.sendResponseHeaders(200, 0);
+          GZIPOutputStream out = new GZIPOutputStream(exchange.getResponseBody(), 1 << 16);
+          Files.copy(file.toPath(), out);
+          out.finish();
+          out.flush();
+          return;
+        }
+
+        exchange.sendResponseHeaders(200, length);
+        WritableByteChannel out = Channels.newChannel(exchange.getResponseBody());
+        for (long position = 0; position < length; ) {
+          position += channel.transferTo(position, length - position, out);
+        }
+      } finally {
+        channel.close();
+      }
+    }
+
+    private static Map<String, String> parse_query(String query) throws IOException {
+
+      HashMap<String, String> params = new HashMap<String, String>();
+      if (query != null) {
+        for (String param : query.split("&")) {
+          int eq = param.indexOf('=');
+          if (eq > 0) {
+            params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                       URLDecoder.decode(param.substring(eq+1), "UTF-8"));
+          }
+        }
+      }
+      return params;
+    }
+
+    private static long get_time(Map<String, String> params, String name, long value) {
+
+      String time = params.get(name);
+      if (time == null) {
+        return value;
+      }
+      // either form, exactly: a date that does not exist (e.g. 20170230) is refused
+      if (time.matches("\\d{1,18}")) {
+        return Long.parseLong(time);
+      }
+      if (time.matches("\\d{8}-\\d{6}")) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        format.setLenient(false);
+        java.util.Date date = format.parse(time, new java.text.ParsePosition(0));
+        if (date != null) {
+          return date.getTime() / 1000;
+        }
+      }
+      throw new IllegalArgumentException("Incorrect time: " + name + "=" + time + " (expected yyyyMMdd-HHmmss or seconds)");
+    }
+
+    // -------------------------------------------------------------------------
+    private static byte[] get_snapshots(State state) throws IOException {
+
+      SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss");
+      StringBuilder json = new StringBuilder();
+      json.append("{ \"counters\": [");
+      if (state.counters != null) {
+        for (int b = 0; b < state.counters.numSnapshots(); b++) {
+          json.append(b == 0 ? "" : ", ").append('"').append(format.format(new java.util.Date(state.counters.timestamp(b) * 1000))).append('"');
+        }
+      } else {
+        for (int i = 0; i < state.countFiles.length; i++) {
+          json.append(i == 0 ? "" : ", ").append('"').append(get_tstamp(state.countFiles[i])).append('"');
+        }
+      }
+      json.append("],\n  \"routing\": [");
+      for (int i = 0; i < state.routingFiles.length; i++) {
+        json.append(i == 0 ? "" : ", ").append('"').append(get_tstamp(state.routingFiles[i])).append('"');
+      }
+      json.append("] }\n");
+      return json.toString().getBytes("ISO-8859-1");
+    }
+
+    // the sums of all ports over the snapshots in [t0, t1] (null if there are none)
+    private Sums get_sums(State state, Map<String, String> params) throws Exception {
+
+      long t0 = get_time(params, "t0", Long.MIN_VALUE);
+      long t1 = get_time(params, "t1", Long.MAX_VALUE);
+
+      if (state.counters != null) {
+        CounterArchive counters = state.counters;
+        int first = counters.find(t0);
+        if (first >= counters.numSnapshots() || counters.timestamp(first) > t1) {
+          return null;
+        }
+        Sums sums = new Sums();
+        sums.keys = state.keys;
+        sums.values = new long[counters.numPorts()];
+        Rollups.aggregate(state.levels, state.spans, counters, state.column, t0, t1, sums.values);
+        return sums;
+      }
+
+      boolean found = false;
+      for (CounterArchive segment : state.segments) {
+        int first = segment.find(t0);
+        found |= first < segment.numSnapshots() && segment.timestamp(first) <= t1;
+      }
+      if (!found) {
+        return null;
+      }
+      Sums sums = new Sums();
+      sums.keys = state.keys;
+      sums.values = new long[state.keys.length];
+      for (CounterArchive segment : state.segments) {
+        Rollups.aggregate(new CounterArchive[0], new long[0], segment, 0, t0, t1, sums.values);
+      }
+      return sums;
+    }
+
+    private byte[] get_links(State state, Map<String, String> params) throws Exception {
+
+      Sums sums = get_sums(state, params);
+      StringBuilder csv = new StringBuilder("node_id,port_idx,rcv_data\n");
+      for (int o = 0; sums != null && o < sums.values.length; o++) {
+        csv.append(sums.keys[o]).append(',').append(sums.values[o]).append('\n');
+      }
+      return csv.toString().getBytes("ISO-8859-1");
+    }
+
+    // as the app: a port is an out link of its node, and an in link of the node it connects to
+    private byte[] get_switches(State state, Map<String, String> params) throws Exception {
+
+      Sums sums = get_sums(state, params);
+      TreeMap<String, long[]> nodes = new TreeMap<String, long[]>();
+      for (int o = 0; sums != null && o < sums.values.length; o++) {
+
+        String key = sums.keys[o];
+        String from = key.substring(0, key.indexOf(','));
+        String to = state.peers.get(key);
+
+        long[] fmax = nodes.get(from);
+        if (fmax == null) {
+          nodes.put(from, fmax = new long[] { Long.MIN_VALUE, Long.MIN_VALUE });
+        }
+        fmax[1] = Math.max(fmax[1], sums.values[o]);
+
+        if (to != null) {
+          long[] tmax = nodes.get(to);
+          if (tmax == null) {
+            nodes.put(to, tmax = new long[] { Long.MIN_VALUE, Long.MIN_VALUE });
+          }
+          tmax[0] = Math.max(tmax[0], sums.values[o]);
+        }
+      }
+
+      StringBuilder csv = new StringBuilder("node_id,in_max,out_max\n");
+      for (Map.Entry<String, long[]> node : nodes.entrySet()) {
+        long[] max = node.getValue();
+        csv.append(node.getKey()).append(',')
+           .append(max[0] == Long.MIN_VALUE ? "" : Long.toString(max[0])).append(',')
+           .append(max[1] == Long.MIN_VALUE ? "" : Long.toString(max[1])).append('\n');
+      }
+      return csv.toString().getBytes("ISO-8859-1");
+    }
+
+    // the last table written at or before t (the first one, before it was written)
+    private byte[] get_routing(State state, Map<String, String> params) throws IOException {
+
+      if (state.routingFiles.length == 0) {
+        throw new IllegalArgumentException("No routing table listed");
+      }
+      long t = get_time(params, "t", Long.MAX_VALUE);
+      int r = Math.max(0, lower_bound(state.routingTimes, t == Long.MAX_VALUE ? t : t+1) - 1);
+      return read_text(state.routingFiles[r]);
+    }
+
+    // the values of one port as written (cumulative, or deltas with --delta), read from its
+    // contiguous series: "yyyyMMdd-HHmmss,rcv_data", empty where the port was not reported
+    private static byte[] get_series(State state, Map<String, String> params) throws IOException {
+
+      if (state.series == null) {
+        throw new IllegalArgumentException("No links.series (written with --series)");
+      }
+      String node = params.get("node");
+      String port = params.get("port");
+      if (node == null || port == null || !node.matches("(0x)?[0-9a-fA-F:]{1,19}") || !port.matches("\\d{1,3}")) {
+        throw new IllegalArgumentException("Expected node=<guid>&port=<number>");
+      }
+      long guid = Long.parseUnsignedLong(node.replace("0x", "").replace(":", ""), 16);
+      int o = state.series.ordinal(guid, Integer.parseInt(port));
+      if (o == -1) {
+        throw new IllegalArgumentException("Unknown port " + node + "," + port);
+      }
+
+      long t0 = get_time(params, "t0", Long.MIN_VALUE);
+      long t1 = get_time(params, "t1", Long.MAX_VALUE);
+      LongBuffer values = state.series.series(o);
+      SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss");
+      StringBuilder csv = new StringBuilder("timestamp,rcv_data\n");
+      for (int t = 0; t < state.series.numSnapshots(); t++) {
+        long time = state.series.timestamp(t);
+        if (time < t0 || time > t1) {
+          continue;
+        }
+        long v = values.get(t);
+        csv.append(format.format(new java.util.Date(time * 1000))).append(',').append(v < 0 ? "" : Long.toString(v)).append('\n');
+      }
+      return csv.toString().getBytes("ISO-8859-1");
+    }
+
+    // -------------------------------------------------------------------------
+    // the current state, which is not released before release() is called
+    //   a request counts itself as a user before checking that the state is current, and
+    //   retire() marks the state before checking its users: either the request sees that
+    //   the state was replaced and tries again, or the last user releases the state.
+    private State acquire() {
+      while (true) {
+        State state = _state;
+        state.users.incrementAndGet();
+        if (!state.retired) {
+          return state;
+        }
+        release(state);
+      }
+    }
+
+    private void release(State state) {
+      if (state.users.decrementAndGet() == 0 && state.retired && state.released.compareAndSet(false, true)) {
+        drop(state);
+      }
+    }
+
+    private void retire(State state) {
+      state.retired = true;
+      if (state.users.get() == 0 && state.released.compareAndSet(false, true)) {
+        drop(state);
+      }
+    }
+
+    // the state holds an archive, until it is released
+    private <T extends Closeable> T hold(State state, T archive) {
+      if (archive != null) {
+        synchronized (_holders) {
+          int[] count = _holders.get(archive);
+          if (count == null) {
+            _holders.put(archive, count = new int[1]);
+          }
+          count[0]++;
+        }
+        state.archives.add(archive);
+      }
+      return archive;
+    }
+
+    // closes the archives of a released state that no other state holds
+    private void drop(State state) {
+      synchronized (_holders) {
+        for (Closeable archive : state.archives) {
+          int[] count = _holders.get(archive);
+          if (--count[0] == 0) {
+            _holders.remove(archive);
+            try {
+              archive.close();
+            } catch (IOException e) {
+              System.out.println(" Failed to close an archive: " + e);
+            }
+          }
+        }
+      }
+    }
+
+    // -------------------------------------------------------------------------
+    // lists the files again when listing.txt, network.ports, counters.bin, or links.series have changed.
+    // called at start and then every REFRESH_INTERVAL from a single thread, so the requests only read
+    // the current state. the archives that are replaced are closed once the requests reading them are done.
+    private State refresh() throws Exception {
+
+      State prev = _state;
+      File listing = new File(_dir, "listing.txt");
+      File topo = new File(_dir, "network.ports");
+      File archive = new File(_dir, "counters.bin");
+      File series = new File(_dir, "links.series");
+      if (listing.lastModified() == prev.listingStamp && topo.lastModified() == prev.topoStamp &&
+          archive.lastModified() == prev.archiveStamp && series.lastModified() == prev.seriesStamp) {
+        return prev;
+      }
+
+      // the archives opened are closed again if the listing fails
+      State state = new State();
+      try {
+        state.listingStamp = listing.lastModified();
+        state.topoStamp = topo.lastModified();
+        state.archiveStamp = archive.lastModified();
+        state.seriesStamp = series.lastModified();
+        if (state.topoStamp == prev.topoStamp) {
+          state.peers = prev.peers;
+          state.delta = prev.delta;
+        } else {
+          read_ports(topo, state);
+        }
+
+        if (state.archiveStamp == prev.archiveStamp) {
+          state.counters = hold(state, prev.counters);
+          state.column = prev.column;
+          state.levels = prev.levels;
+          for (CounterArchive level : state.levels) {
+            hold(state, level);
+          }
+          state.spans = prev.spans;
+          state.keys = prev.keys;
+        } else if (archive.isFile()) {
+          open_archives(archive, state);
+        }
+        if (state.seriesStamp == prev.seriesStamp) {
+          state.series = hold(state, prev.series);
+        } else if (series.isFile()) {
+          state.series = hold(state, LinkSeries.open(series));
+        }
+
+        ArrayList<String> countFiles = new ArrayList<String>();
+        ArrayList<String> routingFiles = new ArrayList<String>();
+        if (listing.isFile()) {
+          for (String name : Files.readAllLines(listing.toPath(), StandardCharsets.ISO_8859_1)) {
+            name = name.trim();
+            if (name.endsWith(".count") || name.endsWith(".count.gz")) {            countFiles.add(name);  }
+            else if (name.endsWith(".rtable") || name.endsWith(".rtable.gz")) {     routingFiles.add(name);  }
+          }
+        }
+        Collections.sort(countFiles);
+        Collections.sort(routingFiles);
+
+        state.countFiles = countFiles.toArray(new String[countFiles.size()]);
+        if (state.counters == null) {
+          load_counters(prev, state);
+        }
+        state.routingFiles = routingFiles.toArray(new String[routingFiles.size()]);
+        state.routingTimes = new long[routingFiles.size()];
+        for (int i = 0; i < routingFiles.size(); i++) {
+          state.routingTimes[i] = get_seconds(routingFiles.get(i));
+        }
+      } catch (Exception e) {
+        drop(state);
+        throw e;
+      }
+
+      _state = state;
+      retire(prev);
+      return state;
+    }
+
+    // the deltas of the .count files, as the parser computes them (get_counterDelta, without link_downed,
+    //   which they do not give), in archives of one column. the files added since the previous state
+    //   (with --follow) are loaded into a new archive, which is merged with the last ones while they
+    //   hold fewer snapshots than twice its own, so a run is held in a logarithmic number of archives.
+    //   any other change of the files, or of --delta, loads them all again.
+    private void load_counters(State prev, State state) throws IOException, ParseException {
+
+      int from = prev.numLoaded;
+      boolean extends_prev = prev.counters == null && prev.delta == state.delta && from == _numLoaded &&
+                             from <= state.countFiles.length;
+      for (int i = 0; extends_prev && i < from; i++) {
+        extends_prev = state.countFiles[i].equals(prev.countFiles[i]);
+      }
+
+      ArrayList<CounterArchive> segments = new ArrayList<CounterArchive>();
+      if (extends_prev) {
+        segments.addAll(Arrays.asList(prev.segments));
+      } else {
+        from = 0;
+        _ordinals.clear();
+        _ports.clear();
+        _last = new long[0];
+      }
+
+      // the archives of the previous state are closed with it, and the new ones merged away at once
+      _numLoaded = -1;
+      if (from < state.countFiles.length) {
+        CounterArchive segment = null;
+        try {
+          segment = load_segment(state, from);
+          while (!segments.isEmpty() && segments.get(segments.size()-1).numSnapshots() <= 2*segment.numSnapshots()) {
+            CounterArchive merged = merge_segments(segments.remove(segments.size()-1), segment);
+            segment.close();
+            segment = merged;
+          }
+        } catch (Exception e) {
+          if (segment != null) {
+            segment.close();
+          }
+          throw e;
+        }
+        segments.add(segment);
+      }
+      _numLoaded = state.countFiles.length;
+
+      for (CounterArchive segment : segments) {
+        hold(state, segment);
+      }
+      state.segments = segments.toArray(new CounterArchive[segments.size()]);
+      state.numLoaded = state.countFiles.length;
+      state.keys = _ports.toArray(new String[_ports.size()]);
+    }
+
+    // the .count files from the given one on
+    private CounterArchive load_segment(State state, int from) throws IOException, ParseException {
+
+      File file = File.createTempFile("counters", ".bin");
+      CounterArchive archive = CounterArchive.create(file, new String[] { "rcv_delta" });
+      try {
+        int[] ordinals = new int[1024];
+        long[] deltas = new long[1024];
+
+        for (int f = from; f < state.countFiles.length; f++) {
+
+          String name = state.countFiles[f];
+          int size = 0;
+          BufferedReader reader = new BufferedReader(new InputStreamReader(open_input(name), "ISO-8859-1"), 1 << 16);
+          try {
+            int column = Arrays.asList(reader.readLine().split(",")).indexOf("rcv_data");
+            if (column < 2) {
+              throw new IOException("No rcv_data column in " + name);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+
+              // "node_id,port_idx" and the value of the column
+              int end = line.indexOf(',', line.indexOf(',') + 1);
+              int start = end;
+              for (int c = 2; c < column && start >= 0; c++) {
+                start = line.indexOf(',', start + 1);
+              }
+              if (end < 0 || start < 0) {
+                continue;
+              }
+              int stop = line.indexOf(',', start + 1);
+              long value = Long.parseLong(line.substring(start + 1, (stop < 0) ? line.length() : stop));
+
+              String key = line.substring(0, end);
+              Integer o = _ordinals.get(key);
+              if (o == null) {
+                _ordinals.put(key, o = _ports.size());
+                _ports.add(key);
+                if (_last.length < _ports.size()) {
+                  int n = _last.length;
+                  _last = Arrays.copyOf(_last, Math.max(1024, 2*n));
+                  Arrays.fill(_last, n, _last.length, -1);
+                }
+              }
+
+              // cumulative values are bytes (4 times the counter), and the first one of a port counts as 0
+              long delta = value;
+              if (!state.delta) {
+                delta = (_last[o] < 0) ? 0 : 4*MNetwork.get_counterDelta(_last[o] >>> 2, value >>> 2, 0, 0);
+                _last[o] = value;
+              }
+              if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, 2*size);
+                deltas = Arrays.copyOf(deltas, 2*size);
               }
+              ordinals[size] = o;
+              deltas[size++] = delta;
             }
+          } finally {
+            reader.close();
+          }
+          archive.append(get_seconds(name), _ports.size(), size, ordinals, new long[][] { deltas });
+        }
+      } catch (Exception e) {
+        archive.close();
+        file.delete();
+        throw e;
+      }
+      return finish_segment(archive, file);
+    }
 
-          bwriter.write("\n");
+    // the snapshots of two consecutive archives
+    private CounterArchive merge_segments(CounterArchive first, CounterArchive second) throws IOException {
+
+      File file = File.createTempFile("counters", ".bin");
+      CounterArchive archive = CounterArchive.create(file, new String[] { "rcv_delta" });
+      try {
+        for (CounterArchive segment : new CounterArchive[] { first, second }) {
+          for (int b = 0; b < segment.numSnapshots(); b++) {
+            int n = segment.numPorts(b);
+            long[] values = new long[n];
+            segment.values(b, 0).get(values);
+            int[] ordinals = new int[n];
+            for (int o = 0; o < n; o++) {
+              ordinals[o] = o;
+            }
+            archive.append(segment.timestamp(b), n, n, ordinals, new long[][] { values });
+          }
         }
-        bwriter.close();
-      } catch (Exception e){
-        System.out.println(" write_routing(): Unable to write to file.");
-        e.printStackTrace();
-        System.exit(1);
+      } catch (IOException e) {
+        archive.close();
+        file.delete();
+        throw e;
       }
-      System.out.println(" Done!");
+      return finish_segment(archive, file);
+    }
+
+    // the archive is deleted as soon as it is open (where the file system allows it), and freed once closed
+    private CounterArchive finish_segment(CounterArchive archive, File file) throws IOException {
+
+      long[] guids = new long[_ports.size()];
+      int[] portNums = new int[_ports.size()];
+      for (int o = 0; o < guids.length; o++) {
+        String key = _ports.get(o);
+        int comma = key.indexOf(',');
+        guids[o] = Long.parseUnsignedLong(key.substring(0, comma).replace(":", ""), 16);
+        portNums[o] = Integer.parseInt(key.substring(comma + 1));
+      }
+      archive.finish(guids, portNums);
+
+      CounterArchive segment = CounterArchive.open(file);
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+      return segment;
+    }
+
+    // counters.bin, its port dictionary, and the rollup levels next to it (rollup_<span>.bin)
+    private void open_archives(File archive, State state) throws IOException {
+
+      state.counters = hold(state, CounterArchive.open(archive));
+      state.column = Rollups.delta_column(state.counters, state.delta);
+      if (state.column < 0) {
+        throw new IOException("counters.bin has no rcv_delta column: convert the history again");
+      }
+      state.keys = new String[state.counters.numPorts()];
+      for (int o = 0; o < state.keys.length; o++) {
+        state.keys[o] = new IB_Guid(state.counters.guid(o)).toColonString() + "," + state.counters.portNum(o);
+      }
+
+      String[] names = _dir.list(new FilenameFilter() {
+          public boolean accept(File dir, String name) {
+              return name.matches("rollup_\\d+\\.bin");
+          }
+      });
+      state.levels = new CounterArchive[names.length];
+      state.spans = new long[names.length];
+      for (int l = 0; l < names.length; l++) {
+        state.levels[l] = hold(state, CounterArchive.open(new File(_dir, names[l])));
+        state.spans[l] = Long.parseLong(names[l].substring(7, names[l].length() - 4));
+      }
+    }
+
+    private InputStream open_input(String name) throws IOException {
+      InputStream in = new FileInputStream(new File(_dir, name));
+      return name.endsWith(".gz") ? new GZIPInputStream(in, 1 << 16) : in;
+    }
+
+    private byte[] read_text(String name) throws IOException {
+
+      InputStream in = open_input(name);
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+          bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+      } finally {
+        in.close();
+      }
+    }
+
+    // network.ports: the node each port connects to, and whether the counters are deltas
+    private static void read_ports(File file, State state) throws IOException {
+
+      if (!file.isFile()) {
+        return;
+      }
+      MNetwork.PortTable table = MNetwork.PortTable.read(file);
+      for (int p = 0; p < table.numPorts; p++) {
+        if (table.peerNode[p] != -1) {
+          state.peers.put(table.guids[table.node[p]] + "," + table.port[p], table.guids[table.peerNode[p]]);
+        }
+      }
+      state.delta = table.delta;
+    }
+
+    // -------------------------------------------------------------------------
+    private static String get_tstamp(String name) {
+      return name.substring(0, name.indexOf('.'));
+    }
+
+    private static long get_seconds(String name) throws ParseException {
+      return new SimpleDateFormat("yyyyMMdd-HHmmss").parse(get_tstamp(name)).getTime() / 1000;
+    }
+
+    // the first index whose time is >= t
+    private static int lower_bound(long[] times, long t) {
+      int lo = 0, hi = times.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (times[mid] < t) {   lo = mid + 1;  }
+        else {                  hi = mid;  }
+      }
+      return lo;
     }
   }
 
+  // -----------------------------------------------------------------------------
+  // Follow mode: converts the snapshots added to the history files of a directory
+  //   new and modified files are reported by a directory watcher, and the directory is
+  //   also polled, since watchers are not reliable on network file systems. a file is
+  //   converted once its size has not changed for one interval (i.e., it is not being
+  //   written), and a file that cannot be read yet is retried at the next change.
+  // -----------------------------------------------------------------------------
+  private static final long FOLLOW_INTERVAL = 5;      // seconds
+
+  private static void followOMSHistory(Conversion conv, File dir) throws Exception {
+
+      System.out.println("\nFollowing " + dir.getPath() + " (Ctrl-C to stop)...");
+
+      WatchService watcher = FileSystems.getDefault().newWatchService();
+      dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+      // size and modification time of every file: when it was last converted, and when last seen
+      HashMap<String, String> convertedState = new HashMap<String, String>();
+      HashMap<String, String> seenState = new HashMap<String, String>();
+      for (File hisFile : listHistory(dir)) {
+          convertedState.put(hisFile.getPath(), hisFile.length() + ":" + hisFile.lastModified());
+      }
+
+      while (true) {
+
+          WatchKey key = watcher.poll(FOLLOW_INTERVAL, TimeUnit.SECONDS);
+          if (key != null) {
+              key.pollEvents();
+              key.reset();
+          }
+
+          ArrayList<File> changed = new ArrayList<File>();
+          for (File hisFile : listHistory(dir)) {
+
+              String state = hisFile.length() + ":" + hisFile.lastModified();
+              String previous = seenState.put(hisFile.getPath(), state);
+              if (state.equals(previous) && !state.equals(convertedState.get(hisFile.getPath()))) {
+                  changed.add(hisFile);
+              }
+          }
+          if (changed.isEmpty()) {
+              continue;
+          }
+
+          int count = 0;
+          for (File hisFile : changed) {
+              try {
+                  count += conv.convert(new File[] { hisFile });
+                  convertedState.put(hisFile.getPath(), seenState.get(hisFile.getPath()));
+              } catch (Exception e) {
+                  System.out.println(" Unable to read " + hisFile.getPath() + " (" + e.getMessage() + "), will retry.");
+              }
+          }
+
+          if (count > 0) {
+              write_topology(conv.mn);
+              System.out.println("   Converted " + count + " new snapshots.");
+          }
+          if (conv.is_full()) {
+              return;
+          }
+      }
+  }
+
+  // writes network.topo, network.ports, listing.txt, and the run report
+  private static void write_topology(MNetwork mn) throws Exception {
+
+      long t0 = report.start();
+      mn.levelize();
+      mn.write_network("network.topo");
+      mn.write_ports("network.ports");
+      write_listing("listing.txt");
+      report.add_bytes(RunReport.TOPOLOGY, "network.topo");
+      report.add_bytes(RunReport.TOPOLOGY, "network.ports");
+      report.stop(RunReport.TOPOLOGY, t0);
+
+      // the sizes of the files are counted once they are committed
+      if (writeStage != null) {
+          writeStage.flush();
+      }
+      report.write("run_report.json");
+  }
+
   private static void processOMSHistory(String arg){
 
       // collect all files to be processed
@@ -587,7 +5706,7 @@ public class OSMHistoryParser {
       }
 
       if(path.isDirectory()){
-          hisFiles = path.listFiles(fnameFilter);
+          hisFiles = listHistory(path);
       }
       else if(path.isFile()){
           hisFiles = new File[1];
@@ -598,59 +5717,330 @@ public class OSMHistoryParser {
           System.exit(1);
       }
 
-      OMS_Collection omsHistory = null;
-      OpenSmMonitorService oms = null;
+      if (followMode && !path.isDirectory()) {
+          System.err.println(" --follow needs a directory: " + arg);
+          System.exit(1);
+      }
+
+      // the shards take consecutive slices, so each covers a range of time
+      if (shardCount > 0) {
+          int from = (int) ((long) (shardIndex-1) * hisFiles.length / shardCount);
+          int to = (int) ((long) shardIndex * hisFiles.length / shardCount);
+          System.out.println("Shard " + shardIndex + "/" + shardCount + ": " + (to-from) + " of " + hisFiles.length + " history files");
+          hisFiles = Arrays.copyOfRange(hisFiles, from, to);
+          shard = new Shard();
+      }
 
       // ---
 
-      MNetwork mn = new MNetwork();
+      Conversion conv = new Conversion();
 
       try {
-          int cntfile = 0;
-          for (File hisFile : hisFiles){
+          // archives are completed at the end of a run, and cannot be continued
+          if (!archiveCounters && !seriesCounters && exportCounters.length == 0 && rollupSpans == null && hotspotCount == 0) {
+              conv.enable_checkpoints();
+              if (resumeRun) {
+                  conv.resume("checkpoint.bin");
+              }
+          }
+
+          if (archiveCounters) {
+              // cumulative counters also keep their deltas, which the edges of a range are summed from
+              String[] columns = new String[1 + exportCounters.length + (deltaCounters ? 0 : 1)];
+              columns[0] = "rcv_data";
+              for (int c = 0; c < exportCounters.length; c++) {
+                  columns[1+c] = exportCounters[c].name();
+              }
+              if (!deltaCounters) {
+                  columns[columns.length-1] = "rcv_delta";
+              }
+              counterArchive = CounterArchive.create("counters.bin", columns);
+          }
+          if (seriesCounters) {
+              linkSeries = new LinkSeries(seriesChunk);
+          }
+          if (exportCounters.length > 0 && !archiveCounters) {
+              counterSeries = new LinkSeries[exportCounters.length];
+              for (int c = 0; c < counterSeries.length; c++) {
+                  counterSeries[c] = new LinkSeries(seriesChunk);
+              }
+          }
+          if (rollupSpans != null) {
+              rollups = new Rollups(rollupSpans);
+          }
+          if (hotspotCount > 0) {
+              hotspots = new Hotspots(hotspotCount, hotspotSpan);
+          }
+
+          conv.convert(hisFiles);
+          MNetwork mn = conv.mn;
+
+          if (shard != null) {
+              shard.write("shard.bin", conv);
+          }
+
+          long t0 = report.start();
+          if (counterArchive != null) {
+              counterArchive.finish(mn);
+              report.add_bytes(RunReport.COUNTERS, "counters.bin");
+          }
+          if (linkSeries != null) {
+              System.out.print("   Writing link series...");
+              linkSeries.finish(mn, "links.series");
+              report.add_bytes(RunReport.COUNTERS, "links.series");
+              System.out.println(" Done!");
+          }
+          if (counterSeries != null) {
+              System.out.print("   Writing counter series...");
+              for (int c = 0; c < counterSeries.length; c++) {
+                  counterSeries[c].finish(mn, exportCounters[c].name() + ".series");
+                  report.add_bytes(RunReport.COUNTERS, exportCounters[c].name() + ".series");
+              }
+              System.out.println(" Done!");
+          }
+          if (rollups != null) {
+              System.out.print("   Writing rollups...");
+              rollups.finish(mn);
+              for (long span : rollupSpans) {
+                  report.add_bytes(RunReport.COUNTERS, Rollups.get_name(span) + ".bin");
+                  report.add_bytes(RunReport.COUNTERS, Rollups.get_name(span) + ".max");
+              }
+              report.add_bytes(RunReport.COUNTERS, Rollups.get_name(0) + ".bin");
+              report.add_bytes(RunReport.COUNTERS, Rollups.get_name(0) + ".max");
+              System.out.println(" Done!");
+          }
+          if (hotspots != null) {
+              System.out.print("   Writing hotspots...");
+              hotspots.finish(mn, "hotspots.json");
+              report.add_bytes(RunReport.COUNTERS, "hotspots.json");
+              System.out.println(" Done!");
+          }
+          report.stop(RunReport.COUNTERS, t0);
 
-              System.out.println("");
-              System.out.println("Processing history file: " + hisFile.getPath());
+          write_topology(mn);
 
-              omsHistory = OMS_Collection.readOMS_Collection(hisFile.getPath());
+          if (servePort > 0) {
+              new DataServer(new File("."), servePort).start();
+          }
+          if (followMode && !conv.is_full()) {
+              followOMSHistory(conv, path);
+          }
 
-              String filePrefix = createPrefix(hisFile.getPath());
+      } catch (Exception e) {
+              System.err.println("Couldn't open the file");
+              e.printStackTrace();
+      } finally {
+          conv.shutdown();
+      }
+      System.out.println("- Complete");
+  }
 
-              System.out.println(" - found " + omsHistory.getSize() + " time-steps");
-              for (int i = 0; i < omsHistory.getSize(); i++){
+  // -----------------------------------------------------------------------------
+  // Merges the outputs of --shard runs into the current directory
+  //   the shards are taken in time order, and their topologies are merged again snapshot
+  //   by snapshot (see MNetwork.merge_shard), which writes the '.tdelta' files as a single
+  //   run would have. the other per-snapshot files are linked into the directory (or
+  //   copied, across file systems), except for:
+  //   - the routing table of the first snapshot of a shard, if it is the same as the
+  //     last one of the previous shard
+  //   - with --delta, the '.count' files where a port first appears in a shard, which are
+  //     rewritten with the increase since its last value in the previous shards.
+  //   a checkpoint is written as well, so the merged run can be continued with --resume.
+  // -----------------------------------------------------------------------------
+  private static void mergeShards(String[] dirs) {
 
-                  oms = omsHistory.getOMS(i);
+      if (dirs.length == 0) {    showUsage();    System.exit(1); }
 
-                  if(oms.getTimeStamp() == null){
-                    System.out.println("\n\n\n\n [[[ Skipping snapshot " + (i+1) + " becuase OMS " + hisFile.getPath() + " gave null timestamp ]]] \n\n\n\n");
-                    continue;
-                  }
+      ArrayList<Shard> shards = new ArrayList<Shard>();
+      try {
+          for (String dir : dirs) {
+              if (new File(dir).getCanonicalFile().equals(new File(".").getCanonicalFile())) {
+                  System.out.println(" Cannot merge a shard into its own directory: " + dir);
+                  System.exit(1);
+              }
+              Shard s = Shard.read(new File(dir), "shard.bin");
+              if (s._numSnapshots == 0) {
+                  System.out.println("Skipping shard " + dir + " (no snapshots)");
+                  continue;
+              }
+              shards.add(s);
+          }
+      } catch (IOException e) {
+          System.out.println(" mergeShards(): Unable to read the shards (" + e.getMessage() + ")");
+          System.exit(1);
+      }
+      if (shards.isEmpty()) {
+          System.out.println(" No snapshots to merge.");
+          System.exit(1);
+      }
+
+      Collections.sort(shards, new java.util.Comparator<Shard>() {
+          public int compare(Shard a, Shard b) {
+              return Long.compare(a._firstTime, b._firstTime);
+          }
+      });
+      for (int k = 1; k < shards.size(); k++) {
+          Shard a = shards.get(k-1);
+          Shard b = shards.get(k);
+          if (b._firstTime <= a._lastTime) {
+              System.out.println(" The shards " + a._dir.getPath() + " and " + b._dir.getPath() + " overlap in time.");
+              System.exit(1);
+          }
+          if (b._delta != a._delta || (b._encoding == null ? a._encoding != null : !b._encoding.equals(a._encoding))) {
+              System.out.println(" The shards " + a._dir.getPath() + " and " + b._dir.getPath() + " were converted with different options.");
+              System.exit(1);
+          }
+      }
+      deltaCounters = shards.get(0)._delta;
+      outputEncoding = shards.get(0)._encoding;
+
+      MNetwork mn = new MNetwork();
+      if (deltaCounters) {
+          mn._params.put("counters", "\"delta\"");
+      }
+      MNetwork.PortState state = new MNetwork.PortState(0);
+      String routing = "";
+      HashMap<String, Integer> converted = new HashMap<String, Integer>();
+      HashMap<String, String> completed = new HashMap<String, String>();
+      long numConverted = 0;
 
-                  long timestamp = oms.getTimeStamp().getTimeInSeconds();
-                  String formattedString = FormatTimeStamp( oms.getTimeStamp().toString() );
+      try {
+          for (Shard s : shards) {
+
+              System.out.println("\nMerging shard " + s._dir.getPath() + ": " + s._numSnapshots + " snapshots, " +
+                                 s._firstFname + " to " + s._lastFname);
 
-                  System.out.println("\n  .snapshot["+(i+1)+"]: " + oms.getTimeStamp().toString() + " (" + formattedString + ").");
+              for (Shard.Topology t : s._topologies) {
+                  System.out.println("  .topology of " + t._fname);
+                  mn.merge_shard(s._network, t._timestamp, t._fname, t._fingerprint, t._numNodes, t._links);
+              }
+              int[] ordinals = mn.get_portOrdinals(s._network);
+
+              // the files of the shard that are not linked as they are
+              HashSet<String> replaced = new HashSet<String>();
+              if (s._firstRouting.get().equals(routing)) {
+                  System.out.println("   Routing table of " + s._firstFname + " unchanged, skipped!");
+                  replaced.add(get_outputName(s._firstFname + ".rtable"));
+                  replaced.add(s._firstFname + ".rindex");
+              }
 
-                  //MNetwork mn = new MNetwork(oms.getFabric());
+              // the first counters of every port, by file (in the order they were read)
+              for (int a = 0, b = 0; deltaCounters && a < s._numFirst; a = b) {
 
-                  mn.add_nodes(oms.getFabric());
-                  mn.add_links(oms.getFabric());
+                  while (b < s._numFirst && s._files[b] == s._files[a]) {
+                      b++;
+                  }
+                  int[] rows = new int[b-a];
+                  long[] values = new long[b-a];
+                  int count = 0;
+                  for (int r = a; r < b; r++) {
+                      int o = ordinals[s._ordinals[r]];
+                      if (o >= 0 && o < state.size() && state._linkDowned[o] != -1) {
+                          rows[count] = s._rows[r];
+                          values[count] = 4*MNetwork.get_counterDelta(state._rcvData[o], s._rcvData[r], state._linkDowned[o], s._linkDowned[r]);
+                          count++;
+                      }
+                  }
+                  if (count > 0) {
+                      String countName = s._countFiles.get(s._files[a]);
+                      System.out.println("   Rewriting " + count + " counters of " + countName);
+                      rewrite_counters(new File(s._dir, countName), countName, rows, values, count);
+                      replaced.add(countName);
+                  }
+              }
 
-                  mn.write_portCounters(oms.getFabric(), formattedString + ".count");
-                  mn.write_routing(oms.getFabric(), formattedString + ".rtable");
+              int numLinked = 0;
+              for (String name : s._dir.list(snapshotFilter)) {
+                  if (!replaced.contains(name)) {
+                      link_output(new File(s._dir, name), name);
+                      numLinked++;
+                  }
+              }
+              System.out.println("   Linked " + numLinked + " files.");
 
-                  //mn.write_network(filePrefix + "." + formattedString + ".topo");
-                  //mn.write_portCounters(filePrefix + "." + formattedString + ".count");
-                  //mn.write_routing(filePrefix + "." + formattedString + ".rtable");
+              // the counters of the ports as last seen
+              int size = state.size();
+              for (int so = 0; so < s._state.size(); so++) {
+                  if (s._state._linkDowned[so] != -1 && ordinals[so] >= 0) {
+                      size = Math.max(size, ordinals[so]+1);
+                  }
+              }
+              state.grow(size);
+              for (int so = 0; so < s._state.size(); so++) {
+                  int o = ordinals[so];
+                  if (s._state._linkDowned[so] != -1 && o >= 0) {
+                      state._rcvData[o] = s._state._rcvData[so];
+                      state._linkDowned[o] = s._state._linkDowned[so];
+                  }
               }
+              routing = s._lastRouting;
+              converted.putAll(s._converted);
+              completed.putAll(s._completed);
+              numConverted += s._numSnapshots;
           }
 
-          mn.write_network("network.topo");
+          Shard last = shards.get(shards.size()-1);
+          Checkpoint checkpoint = new Checkpoint(CompletableFuture.<Void>completedFuture(null), last._lastTime, last._lastFname,
+                                                 numConverted, mn.get_checkpoint(), converted, completed);
+          checkpoint.capture(state);
+          checkpoint.write(routing);
+          write_topology(mn);
 
       } catch (Exception e) {
-              System.err.println("Couldn't open the file");
-              e.printStackTrace();
+          System.out.println(" mergeShards(): failed!");
+          e.printStackTrace();
+          System.exit(1);
       }
       System.out.println("- Complete");
   }
+
+  // the per-snapshot files of a shard (the '.tdelta' files are written again by the merge)
+  private static FilenameFilter snapshotFilter = new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+          return name.endsWith(".count") || name.endsWith(".rtable") ||
+                 name.endsWith(".count.gz") || name.endsWith(".rtable.gz") ||
+                 name.endsWith(".rindex");
+      }
+  };
+
+  // a hard link to the file of the shard if possible, otherwise a copy
+  private static void link_output(File source, String filename) throws IOException {
+
+      Path target = new File(".", filename).toPath();
+      Files.deleteIfExists(target);
+      try {
+          Files.createLink(target, source.toPath());
+      } catch (IOException e) {
+          Files.copy(source.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+      } catch (UnsupportedOperationException e) {
+          Files.copy(source.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+      }
+  }
+
+  // a '.count' file of a shard, with the values of the given rows (sorted) replaced
+  private static void rewrite_counters(File source, String filename, int[] rows, long[] values, int count) throws IOException {
+
+      InputStream in = new FileInputStream(source);
+      if (filename.endsWith(".gz")) {
+          in = new GZIPInputStream(in, 1 << 16);
+      }
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"), 1 << 16);
+      OutputStream out = open_output(filename);
+      AsciiEncoder encoder = AsciiEncoder.get(out);
+
+      encoder.put(reader.readLine()).put('\n');
+      String line;
+      int row = 0, r = 0;
+      while ((line = reader.readLine()) != null) {
+          if (r < count && rows[r] == row) {
+              encoder.put(line, 0, line.lastIndexOf(',')+1).put(values[r++]).put('\n');
+          } else {
+              encoder.put(line).put('\n');
+          }
+          row++;
+      }
+      encoder.flush();
+      reader.close();
+      out.close();
+  }
 }
@@ -0,0 +1,74 @@
+package treescope.bench;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gov.llnl.lc.infiniband.opensm.plugin.data.OSM_Fabric;
+
+// -----------------------------------------------------------------------------
+// Encoding the rows of the '.count' and '.rtable' files, into a sink that drops them
+//   run with the allocation profiler: gc.alloc.rate.norm is the garbage of one
+//   snapshot, which should not grow with the number of ports (rows) or switches.
+//     java -jar target/benchmarks.jar ExportBenchmark -prof gc
+// -----------------------------------------------------------------------------
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+
+  private static final OutputStream SINK = new OutputStream() {
+    public void write(int b) {}
+    public void write(byte[] b, int off, int len) {}
+  };
+
+  @Param({ "1000", "10000" })
+  public int endpoints;
+
+  @Param({ "36" })
+  public int radix;
+
+  private Object frame;
+  private Object tables;
+
+  @Setup(Level.Trial)
+  public void setup() {
+
+    Parser.quiet();
+
+    FatTree tree = FatTree.withEndpoints(endpoints, radix);
+    OSM_Fabric fabric = tree.fabric(1);
+    tree.routing();
+
+    Object network = Parser.newNetwork();
+    Parser.merge_fabric(network, fabric, 0, "bench");
+    frame = Parser.read_portCounters(network, fabric, 0);
+    Parser.advance(Parser.newPortState(0), frame, false);
+    tables = Parser.read_routing(fabric);
+  }
+
+  @Benchmark
+  public void encode_portCounters() {
+    Parser.encode_portCounters(frame, SINK);
+  }
+
+  @Benchmark
+  public void encode_routing() {
+    Parser.encode_routing(tables, SINK);
+  }
+}
@@ -0,0 +1,323 @@
+package treescope.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import gov.llnl.lc.infiniband.core.IB_Address;
+import gov.llnl.lc.infiniband.core.IB_Guid;
+import gov.llnl.lc.infiniband.core.IB_Link;
+import gov.llnl.lc.infiniband.opensm.plugin.data.OMS_Collection;
+import gov.llnl.lc.infiniband.opensm.plugin.data.OSM_Fabric;
+import gov.llnl.lc.infiniband.opensm.plugin.data.OSM_Node;
+import gov.llnl.lc.infiniband.opensm.plugin.data.OSM_Port;
+import gov.llnl.lc.infiniband.opensm.plugin.data.OpenSmMonitorService;
+import gov.llnl.lc.infiniband.opensm.plugin.data.PFM_Port;
+import gov.llnl.lc.infiniband.opensm.plugin.data.RT_Node;
+import gov.llnl.lc.infiniband.opensm.plugin.data.RT_Port;
+import gov.llnl.lc.infiniband.opensm.plugin.data.RT_Table;
+import gov.llnl.lc.infiniband.opensm.plugin.data.SBN_Node;
+import gov.llnl.lc.time.TimeStamp;
+
+// -----------------------------------------------------------------------------
+// Synthetic three-level fat tree, built with the OMSClient stand-in
+//
+//   every pod has radix/2 leaf switches (L1) and radix/2 spine switches (L2).
+//   a leaf connects radix/2 end nodes and every spine of its pod; a spine connects
+//   every leaf of its pod and radix/2 core switches (L3). spine j of every pod uses
+//   the up-links to the cores (j*radix/2 + u) % cores, for u < radix/2.
+//
+//   nodes are numbered cores first, then pod by pod (spines, then leaves with their
+//   end nodes). guids and lids follow this numbering.
+// -----------------------------------------------------------------------------
+public class FatTree {
+
+  public static final long GUID_BASE = 0x0002c90300000000L;
+  public static final int MAX_PORTS = 254;
+
+  public final int pods, cores, radix;
+
+  private final int half;
+  private final int numNodes;
+  private final long[] guids;
+  private final String[] guidNames;
+  private final String[] names;
+  private final boolean[] isSwitch;
+  private final int[] numPorts;
+
+  // links: node and port of both ends
+  private final int numLinks;
+  private final int[] linkNode1, linkPort1, linkNode2, linkPort2;
+
+  // port of core c linked to spine j of pod p
+  private final int[][][] corePort;
+
+  private RT_Table routing = null;
+
+  public FatTree(int pods, int cores, int radix) {
+
+    if (pods < 1 || radix < 2 || radix % 2 != 0 || radix > MAX_PORTS) {
+      throw new IllegalArgumentException("FatTree(): needs pods > 0 and an even radix <= " + MAX_PORTS);
+    }
+    this.half = radix/2;
+    if (cores < 1 || cores > half*half) {
+      throw new IllegalArgumentException("FatTree(): cores must be between 1 and (radix/2)^2 = " + half*half);
+    }
+    int linksPerCore = pods * ((half*half + cores - 1) / cores);
+    if (linksPerCore > MAX_PORTS) {
+      throw new IllegalArgumentException("FatTree(): core switches would need " + linksPerCore + " ports; use more cores or fewer pods");
+    }
+
+    this.pods = pods;
+    this.cores = cores;
+    this.radix = radix;
+
+    numNodes = cores + pods * (2*half + half*half);
+    guids = new long[numNodes];
+    guidNames = new String[numNodes];
+    names = new String[numNodes];
+    isSwitch = new boolean[numNodes];
+    numPorts = new int[numNodes];
+
+    numLinks = pods * (half*half + half*half + half*half);
+    linkNode1 = new int[numLinks];
+    linkPort1 = new int[numLinks];
+    linkNode2 = new int[numLinks];
+    linkPort2 = new int[numLinks];
+
+    for (int n = 0; n < numNodes; n++) {
+      guids[n] = GUID_BASE + n;
+      guidNames[n] = new IB_Guid(guids[n]).toColonString();
+    }
+
+    int[] corePorts = new int[cores];
+    corePort = new int[cores][pods][half];
+
+    for (int c = 0; c < cores; c++) {
+      set_node(c, "ibcore" + c + " L3", true, 0);
+    }
+
+    int l = 0;
+    for (int p = 0; p < pods; p++) {
+      for (int j = 0; j < half; j++) {
+
+        int spine = spine(p, j);
+        set_node(spine, "pod" + p + " spine" + j + " L2", true, radix);
+
+        for (int u = 0; u < half; u++) {
+          int c = (j*half + u) % cores;
+          int port = ++corePorts[c];
+          corePort[c][p][j] = port;
+          l = set_link(l, spine, half+1+u, c, port);
+        }
+      }
+      for (int i = 0; i < half; i++) {
+
+        int leaf = leaf(p, i);
+        set_node(leaf, "pod" + p + " leaf" + i + " L1", true, radix);
+
+        for (int k = 0; k < half; k++) {
+          int node = endpoint(p, i, k);
+          set_node(node, "node" + ((p*half + i)*half + k) + " HCA-1", false, 1);
+          l = set_link(l, leaf, k+1, node, 1);
+        }
+        for (int j = 0; j < half; j++) {
+          l = set_link(l, leaf, half+1+j, spine(p, j), i+1);
+        }
+      }
+    }
+    for (int c = 0; c < cores; c++) {
+      numPorts[c] = corePorts[c];
+    }
+  }
+
+  // the smallest tree (with (radix/2)^2 cores) that has at least the given number of end nodes
+  public static FatTree withEndpoints(int endpoints, int radix) {
+    int half = radix/2;
+    return new FatTree((endpoints + half*half - 1) / (half*half), half*half, radix);
+  }
+
+  private int spine(int p, int j) {              return cores + p*(2*half + half*half) + j;  }
+  private int leaf(int p, int i) {               return cores + p*(2*half + half*half) + half + i*(half+1);  }
+  private int endpoint(int p, int i, int k) {    return leaf(p, i) + 1 + k;  }
+
+  private void set_node(int n, String name, boolean sw, int ports) {
+    names[n] = name;
+    isSwitch[n] = sw;
+    numPorts[n] = ports;
+  }
+
+  private int set_link(int l, int node1, int port1, int node2, int port2) {
+    linkNode1[l] = node1;
+    linkPort1[l] = port1;
+    linkNode2[l] = node2;
+    linkPort2[l] = port2;
+    return l+1;
+  }
+
+  public int numEndpoints() {    return pods * half*half;  }
+  public int numSwitches() {     return numNodes - numEndpoints();  }
+  public int numLinks() {        return numLinks;  }
+
+  private int lid(int n) {       return n+1;  }
+
+  // ---------------------------------------------------------------------------
+  // A snapshot of the fabric
+  //   every call creates new objects, as OMSClient does for every snapshot of a
+  //   history file. the counters of port o of node n grow linearly with the snapshot.
+  // ---------------------------------------------------------------------------
+  public OSM_Fabric fabric(long snapshot) {
+
+    OSM_Fabric fabric = new OSM_Fabric("fattree-" + pods + "x" + cores + "x" + radix);
+
+    OSM_Port[][] ports = new OSM_Port[numNodes][];
+    for (int n = 0; n < numNodes; n++) {
+
+      IB_Guid guid = new IB_Guid(guids[n]);
+      fabric.getOSM_Nodes().put(guidNames[n], new OSM_Node(guid, isSwitch[n], new SBN_Node(numPorts[n], names[n])));
+
+      IB_Address address = new IB_Address(lid(n));
+      ports[n] = new OSM_Port[numPorts[n]+1];
+      for (int p = 1; p <= numPorts[n]; p++) {
+
+        long rate = 1000 + (guids[n] * 31 + p) % 1000;
+
+        PFM_Port pfm = new PFM_Port();
+        pfm.setCounter(PFM_Port.PortCounterName.rcv_data, snapshot * rate);
+        pfm.setCounter(PFM_Port.PortCounterName.xmit_data, snapshot * rate);
+        pfm.setCounter(PFM_Port.PortCounterName.rcv_pkts, snapshot * rate / 64);
+        pfm.setCounter(PFM_Port.PortCounterName.xmit_pkts, snapshot * rate / 64);
+        pfm.setCounter(PFM_Port.PortCounterName.xmit_wait, snapshot * (rate % 7));
+
+        ports[n][p] = new OSM_Port(guid, p, address, pfm);
+        fabric.getOSM_Ports().put(guidNames[n] + ":" + p, ports[n][p]);
+      }
+    }
+
+    for (int l = 0; l < numLinks; l++) {
+      fabric.getIB_Links().put(guidNames[linkNode1[l]] + ":" + linkPort1[l] + "-" + guidNames[linkNode2[l]] + ":" + linkPort2[l],
+                               new IB_Link(ports[linkNode1[l]][linkPort1[l]], ports[linkNode2[l]][linkPort2[l]]));
+    }
+
+    fabric.setRoutingTable(routing());
+    return fabric;
+  }
+
+  // ---------------------------------------------------------------------------
+  // Up/down routing to every end node, shared by all snapshots (built on first use)
+  //   leaves and spines go up by the lid of the destination, until the pod (or leaf)
+  //   of the destination can be reached going down.
+  // ---------------------------------------------------------------------------
+  public synchronized RT_Table routing() {
+
+    if (routing != null) {
+      return routing;
+    }
+    routing = new RT_Table();
+
+    for (int n = 0; n < numNodes; n++) {
+
+      if (!isSwitch[n]) {
+        continue;
+      }
+
+      RT_Node rnode = new RT_Node(new IB_Guid(guids[n]));
+      RT_Port[] rports = new RT_Port[numPorts[n]+1];
+      routing.getSwitchGuidMap().put(guidNames[n], rnode);
+
+      for (int p = 0; p < pods; p++) {
+        for (int i = 0; i < half; i++) {
+          for (int k = 0; k < half; k++) {
+
+            int dest = endpoint(p, i, k);
+            int dlid = lid(dest);
+            int port = route(n, p, i, k, dlid);
+
+            if (rports[port] == null) {
+              rports[port] = new RT_Port(port);
+              rnode.getPortRouteMap().put(Integer.toString(port), rports[port]);
+            }
+            rports[port].getLidGuidMap().put(guidNames[dest], dlid);
+          }
+        }
+      }
+    }
+    return routing;
+  }
+
+  // port of switch n towards end node k of leaf i of pod p
+  private int route(int n, int p, int i, int k, int dlid) {
+
+    if (n < cores) {
+      // the first spine of the destination pod linked to this core
+      for (int j = 0; j < half; j++) {
+        if (corePort[n][p][j] != 0) {
+          return corePort[n][p][j];
+        }
+      }
+      throw new IllegalStateException("core " + n + " is not linked to pod " + p);
+    }
+
+    int pod = (n - cores) / (2*half + half*half);
+    int offset = (n - cores) % (2*half + half*half);
+
+    // spine
+    if (offset < half) {
+      return (pod == p) ? i+1 : half+1 + (dlid/half) % half;
+    }
+
+    // leaf
+    int leaf = (offset - half) / (half+1);
+    return (pod == p && leaf == i) ? k+1 : half+1 + dlid % half;
+  }
+
+  // ---------------------------------------------------------------------------
+  // Writes a history of the fabric readable by OSMHistoryParser built with the stand-in
+  //   FatTree [--pods n] [--cores n] [--radix n] [--files n] [--snapshots n] [--interval s] <outdir>
+  // ---------------------------------------------------------------------------
+  public static void main(String[] args) throws IOException {
+
+    int pods = 4, radix = 36, files = 1, snapshots = 10;
+    int cores = -1;
+    long interval = 300;
+    String outdir = null;
+
+    for (int i = 0; i < args.length; i++) {
+
+      if (args[i].equals("--pods") && i+1 < args.length) {              pods = Integer.parseInt(args[++i]);  }
+      else if (args[i].equals("--cores") && i+1 < args.length) {        cores = Integer.parseInt(args[++i]);  }
+      else if (args[i].equals("--radix") && i+1 < args.length) {        radix = Integer.parseInt(args[++i]);  }
+      else if (args[i].equals("--files") && i+1 < args.length) {        files = Integer.parseInt(args[++i]);  }
+      else if (args[i].equals("--snapshots") && i+1 < args.length) {    snapshots = Integer.parseInt(args[++i]);  }
+      else if (args[i].equals("--interval") && i+1 < args.length) {     interval = Long.parseLong(args[++i]);  }
+      else if (outdir == null) {                                        outdir = args[i];  }
+      else {                                                            outdir = null;  break;  }
+    }
+    if (outdir == null) {
+      System.out.println(" FatTree [--pods n] [--cores n] [--radix n] [--files n] [--snapshots n] [--interval s] <outdir>");
+      System.exit(1);
+    }
+    if (cores == -1) {
+      cores = (radix/2) * (radix/2);
+    }
+
+    FatTree tree = new FatTree(pods, cores, radix);
+    System.out.println(" Fat tree: " + tree.numEndpoints() + " end nodes, " + tree.numSwitches() + " switches, " + tree.numLinks() + " links");
+
+    new File(outdir).mkdirs();
+
+    // 2017-07-14 02:40:00 UTC
+    long t0 = 1500000000L;
+    for (int f = 0; f < files; f++) {
+
+      OMS_Collection collection = new OMS_Collection();
+      for (int s = 0; s < snapshots; s++) {
+        long snapshot = (long) f*snapshots + s;
+        collection.put(new OpenSmMonitorService(new TimeStamp(t0 + snapshot*interval), tree.fabric(snapshot)));
+      }
+
+      String filename = new File(outdir, String.format("fattree.%03d.his", f)).getPath();
+      OMS_Collection.writeOMS_Collection(filename, collection);
+      System.out.println(" Wrote " + filename);
+    }
+  }
+}
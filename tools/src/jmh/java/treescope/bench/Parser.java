@@ -0,0 +1,190 @@
+package treescope.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+
+import gov.llnl.lc.infiniband.opensm.plugin.data.OSM_Fabric;
+
+// -----------------------------------------------------------------------------
+// Access to the internals of OSMHistoryParser
+//   the parser lives in the default package, which cannot be imported (and jmh
+//   needs the benchmarks in a package), so its members are looked up once and
+//   called through method handles.
+// -----------------------------------------------------------------------------
+final class Parser {
+
+  private static final Class<?> PARSER = find("OSMHistoryParser");
+  private static final Class<?> NETWORK = find("OSMHistoryParser$MNetwork");
+  private static final Class<?> FRAME = find("OSMHistoryParser$MNetwork$CounterFrame");
+  private static final Class<?> STATE = find("OSMHistoryParser$MNetwork$PortState");
+  private static final Class<?> TABLES = find("OSMHistoryParser$ForwardingTables");
+
+  private static final MethodHandle NEW_NETWORK = constructor(NETWORK);
+  private static final MethodHandle NEW_STATE = constructor(STATE, int.class);
+
+  private static final MethodHandle ADD_NODES = method(NETWORK, "add_nodes", OSM_Fabric.class);
+  private static final MethodHandle ADD_LINKS = method(NETWORK, "add_links", OSM_Fabric.class);
+  private static final MethodHandle MERGE_FABRIC = method(NETWORK, "merge_fabric", OSM_Fabric.class, long.class, String.class);
+  // the placement itself, which levelize() skips while the network does not change
+  private static final MethodHandle LEVELIZE = method(NETWORK, "place_switches");
+  private static final MethodHandle WRITE_NETWORK = method(NETWORK, "write_network", String.class);
+  private static final MethodHandle READ_COUNTERS = method(NETWORK, "read_portCounters", OSM_Fabric.class, long.class);
+  private static final MethodHandle WRITE_COUNTERS = method(NETWORK, "write_portCounters", FRAME, String.class);
+  private static final MethodHandle WRITE_ROUTING = method(NETWORK, "write_routing", OSM_Fabric.class, String.class,
+                                                           CompletableFuture.class, CompletableFuture.class);
+  private static final MethodHandle ADVANCE = method(STATE, "advance", FRAME, boolean.class);
+  private static final MethodHandle ENCODE_COUNTERS = method(NETWORK, "encode_portCounters", FRAME, OutputStream.class);
+  private static final MethodHandle READ_ROUTING = method(NETWORK, "read_routing", OSM_Fabric.class);
+  private static final MethodHandle ENCODE_ROUTING = method(NETWORK, "encode_routing", TABLES, OutputStream.class);
+  private static final MethodHandle PARSE_COUNTERS = method(PARSER, "parseCounters", String.class);
+
+  private Parser() {
+  }
+
+  private static Class<?> find(String name) {
+    try {
+      return Class.forName(name);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MethodHandle constructor(Class<?> c, Class<?>... args) {
+    try {
+      Constructor<?> m = c.getDeclaredConstructor(args);
+      m.setAccessible(true);
+      return MethodHandles.lookup().unreflectConstructor(m);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MethodHandle method(Class<?> c, String name, Class<?>... args) {
+    try {
+      Method m = c.getDeclaredMethod(name, args);
+      m.setAccessible(true);
+      return MethodHandles.lookup().unreflect(m);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static RuntimeException rethrow(Throwable t) {
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    throw new IllegalStateException(t);
+  }
+
+  // silences the progress messages of the parser (jmh reports through its own channel)
+  static void quiet() {
+    try {
+      Field verbose = PARSER.getDeclaredField("verbose");
+      verbose.setAccessible(true);
+      verbose.setBoolean(null, false);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+    System.setOut(new PrintStream(new OutputStream() {
+      public void write(int b) {}
+      public void write(byte[] b, int off, int len) {}
+    }));
+  }
+
+  // the counters read with rcv_data (--counters): "none", "all", or a list of names
+  static void export_counters(String names) {
+    try {
+      Field counters = PARSER.getDeclaredField("exportCounters");
+      counters.setAccessible(true);
+      counters.set(null, names.equals("none") ? Array.newInstance(counters.getType().getComponentType(), 0)
+                                              : PARSE_COUNTERS.invoke(names));
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  // ---------------------------------------------------------------------------
+
+  static Object newNetwork() {
+    try {    return NEW_NETWORK.invoke();  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static Object newPortState(int size) {
+    try {    return NEW_STATE.invoke(size);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static void add_nodes(Object network, OSM_Fabric fabric) {
+    try {    ADD_NODES.invoke(network, fabric);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static void add_links(Object network, OSM_Fabric fabric) {
+    try {    ADD_LINKS.invoke(network, fabric);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static void merge_fabric(Object network, OSM_Fabric fabric, long timestamp, String fname) {
+    try {    MERGE_FABRIC.invoke(network, fabric, timestamp, fname);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static void levelize(Object network) {
+    try {    LEVELIZE.invoke(network);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static void write_network(Object network, String filename) {
+    try {    WRITE_NETWORK.invoke(network, filename);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static Object read_portCounters(Object network, OSM_Fabric fabric, long timestamp) {
+    try {    return READ_COUNTERS.invoke(network, fabric, timestamp);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static void advance(Object state, Object frame, boolean delta) {
+    try {    ADVANCE.invoke(state, frame, delta);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static void write_portCounters(Object frame, String filename) {
+    try {    WRITE_COUNTERS.invoke(frame, filename);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static void encode_portCounters(Object frame, OutputStream out) {
+    try {    ENCODE_COUNTERS.invoke(frame, out);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static Object read_routing(OSM_Fabric fabric) {
+    try {    return READ_ROUTING.invoke(fabric);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  static void encode_routing(Object tables, OutputStream out) {
+    try {    ENCODE_ROUTING.invoke(tables, out);  }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+
+  // writes the table even if it is identical to the previous one
+  static boolean write_routing(OSM_Fabric fabric, String filename) {
+    try {
+      return (boolean) WRITE_ROUTING.invoke(fabric, filename, CompletableFuture.completedFuture(""), new CompletableFuture<String>());
+    }
+    catch (Throwable t) {    throw rethrow(t);  }
+  }
+}
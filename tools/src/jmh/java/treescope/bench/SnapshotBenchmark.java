@@ -0,0 +1,86 @@
+package treescope.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gov.llnl.lc.infiniband.opensm.plugin.data.OSM_Fabric;
+
+// -----------------------------------------------------------------------------
+// Writing the files of one snapshot: the counters and the routing table
+//   counters=all also reads every other counter of the ports (--counters all).
+//   the routing table holds one entry per switch and end node, which needs a large
+//   heap for big fabrics: the 50k case is not run by default (-p endpoints=50000).
+// -----------------------------------------------------------------------------
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g" })
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+
+  // relative to the current directory (TreeScope/tools, see README.md)
+  private static final String OUTDIR = "target/bench";
+
+  @Param({ "1000", "10000" })
+  public int endpoints;
+
+  @Param({ "36" })
+  public int radix;
+
+  @Param({ "none", "all" })
+  public String counters;
+
+  private OSM_Fabric fabric;
+  private Object network;
+  private Object frame;
+
+  @Setup(Level.Trial)
+  public void setup() {
+
+    Parser.quiet();
+    Parser.export_counters(counters);
+    new File(OUTDIR).mkdirs();
+
+    FatTree tree = FatTree.withEndpoints(endpoints, radix);
+    fabric = tree.fabric(1);
+    tree.routing();
+
+    network = Parser.newNetwork();
+    Parser.merge_fabric(network, fabric, 0, "bench");
+  }
+
+  @Setup(Level.Iteration)
+  public void read() {
+    frame = Parser.read_portCounters(network, fabric, 0);
+    Parser.advance(Parser.newPortState(0), frame, false);
+  }
+
+  @Benchmark
+  public Object read_portCounters() {
+    return Parser.read_portCounters(network, fabric, 0);
+  }
+
+  @Benchmark
+  public void write_portCounters() {
+    Parser.write_portCounters(frame, OUTDIR + "/bench.count");
+  }
+
+  @Benchmark
+  public boolean write_routing() {
+    return Parser.write_routing(fabric, OUTDIR + "/bench.rtable");
+  }
+}
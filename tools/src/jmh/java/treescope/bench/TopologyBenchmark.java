@@ -0,0 +1,99 @@
+package treescope.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gov.llnl.lc.infiniband.opensm.plugin.data.OSM_Fabric;
+
+// -----------------------------------------------------------------------------
+// Merging the topology of a snapshot, levelizing it, and writing network.topo
+// -----------------------------------------------------------------------------
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+@State(Scope.Benchmark)
+public class TopologyBenchmark {
+
+  // relative to the current directory (TreeScope/tools, see README.md)
+  private static final String OUTDIR = "target/bench";
+
+  @Param({ "1000", "10000", "50000" })
+  public int endpoints;
+
+  @Param({ "36" })
+  public int radix;
+
+  private OSM_Fabric fabric;
+  private OSM_Fabric next;          // the same fabric, as decoded from the next snapshot
+
+  // an empty network, one with the nodes of the fabric, and one with the complete fabric
+  private Object empty;
+  private Object withNodes;
+  private Object merged;
+
+  @Setup(Level.Trial)
+  public void setup() {
+
+    Parser.quiet();
+    new File(OUTDIR).mkdirs();
+
+    FatTree tree = FatTree.withEndpoints(endpoints, radix);
+    fabric = tree.fabric(1);
+    next = tree.fabric(2);
+
+    merged = Parser.newNetwork();
+    Parser.merge_fabric(merged, fabric, 0, "bench");
+  }
+
+  @Setup(Level.Invocation)
+  public void reset() {
+    empty = Parser.newNetwork();
+    withNodes = Parser.newNetwork();
+    Parser.add_nodes(withNodes, fabric);
+  }
+
+  @Benchmark
+  public Object add_nodes() {
+    Parser.add_nodes(empty, fabric);
+    return empty;
+  }
+
+  @Benchmark
+  public Object add_links() {
+    Parser.add_links(withNodes, fabric);
+    return withNodes;
+  }
+
+  // the common case: a snapshot whose topology has not changed
+  @Benchmark
+  public Object merge_unchanged() {
+    Parser.merge_fabric(merged, next, 0, "bench");
+    return merged;
+  }
+
+  @Benchmark
+  public Object levelize() {
+    Parser.levelize(merged);
+    return merged;
+  }
+
+  @Benchmark
+  public void write_network() {
+    Parser.write_network(merged, OUTDIR + "/network.topo");
+  }
+}
@@ -0,0 +1,19 @@
+package gov.llnl.lc.infiniband.core;
+
+import java.io.Serializable;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class IB_Address implements Serializable {
+
+  private static final long serialVersionUID = -2989512766222951944L;
+
+  private final int lid;
+
+  public IB_Address(int lid) {
+    this.lid = lid;
+  }
+
+  public int getLocalId() {
+    return lid;
+  }
+}
@@ -0,0 +1,25 @@
+package gov.llnl.lc.infiniband.core;
+
+import java.io.Serializable;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class IB_Guid implements Serializable {
+
+  private static final long serialVersionUID = -1431479968069510587L;
+
+  private final long guid;
+
+  public IB_Guid(long guid) {
+    this.guid = guid;
+  }
+
+  public long getGuid() {
+    return guid;
+  }
+
+  // e.g. 0011:7500:0070:0a8e
+  public String toColonString() {
+    String h = String.format("%016x", guid);
+    return h.substring(0, 4) + ":" + h.substring(4, 8) + ":" + h.substring(8, 12) + ":" + h.substring(12);
+  }
+}
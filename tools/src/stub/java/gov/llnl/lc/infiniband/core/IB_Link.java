@@ -0,0 +1,27 @@
+package gov.llnl.lc.infiniband.core;
+
+import java.io.Serializable;
+
+import gov.llnl.lc.infiniband.opensm.plugin.data.OSM_Port;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class IB_Link implements Serializable {
+
+  private static final long serialVersionUID = 5406039452075363212L;
+
+  private final OSM_Port endpoint1;
+  private final OSM_Port endpoint2;
+
+  public IB_Link(OSM_Port endpoint1, OSM_Port endpoint2) {
+    this.endpoint1 = endpoint1;
+    this.endpoint2 = endpoint2;
+  }
+
+  public OSM_Port getEndpoint1() {
+    return endpoint1;
+  }
+
+  public OSM_Port getEndpoint2() {
+    return endpoint2;
+  }
+}
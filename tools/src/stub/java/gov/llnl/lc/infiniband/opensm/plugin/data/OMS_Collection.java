@@ -0,0 +1,50 @@
+package gov.llnl.lc.infiniband.opensm.plugin.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+//   the history file is a java serialization of the collection
+public class OMS_Collection implements Serializable {
+
+  private static final long serialVersionUID = -4202891462901714291L;
+
+  private final ArrayList<OpenSmMonitorService> snapshots = new ArrayList<OpenSmMonitorService>();
+
+  public static OMS_Collection readOMS_Collection(String fileName) throws IOException, ClassNotFoundException {
+    ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+    try {
+      return (OMS_Collection) in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  public static void writeOMS_Collection(String fileName, OMS_Collection collection) throws IOException {
+    ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+    try {
+      out.writeObject(collection);
+    } finally {
+      out.close();
+    }
+  }
+
+  public void put(OpenSmMonitorService oms) {
+    snapshots.add(oms);
+  }
+
+  public int getSize() {
+    return snapshots.size();
+  }
+
+  public OpenSmMonitorService getOMS(int index) {
+    return snapshots.get(index);
+  }
+}
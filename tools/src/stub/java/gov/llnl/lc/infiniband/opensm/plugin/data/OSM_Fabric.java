@@ -0,0 +1,47 @@
+package gov.llnl.lc.infiniband.opensm.plugin.data;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+
+import gov.llnl.lc.infiniband.core.IB_Link;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class OSM_Fabric implements Serializable {
+
+  private static final long serialVersionUID = -3250862899116261112L;
+
+  private final String name;
+  private final LinkedHashMap<String, OSM_Node> nodes = new LinkedHashMap<String, OSM_Node>();
+  private final LinkedHashMap<String, OSM_Port> ports = new LinkedHashMap<String, OSM_Port>();
+  private final LinkedHashMap<String, IB_Link> links = new LinkedHashMap<String, IB_Link>();
+  private RT_Table routingTable = new RT_Table();
+
+  public OSM_Fabric(String name) {
+    this.name = name;
+  }
+
+  public String getFabricName() {
+    return name;
+  }
+
+  public LinkedHashMap<String, OSM_Node> getOSM_Nodes() {
+    return nodes;
+  }
+
+  // keyed by "<node guid>:<port number>"
+  public LinkedHashMap<String, OSM_Port> getOSM_Ports() {
+    return ports;
+  }
+
+  public LinkedHashMap<String, IB_Link> getIB_Links() {
+    return links;
+  }
+
+  public RT_Table getRoutingTable() {
+    return routingTable;
+  }
+
+  public void setRoutingTable(RT_Table routingTable) {
+    this.routingTable = routingTable;
+  }
+}
@@ -0,0 +1,30 @@
+package gov.llnl.lc.infiniband.opensm.plugin.data;
+
+import java.io.Serializable;
+
+import gov.llnl.lc.infiniband.core.IB_Guid;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class OSM_Node implements Serializable {
+
+  private static final long serialVersionUID = 1333711152016607724L;
+
+  public SBN_Node sbnNode;
+
+  private final IB_Guid guid;
+  private final boolean isSwitch;
+
+  public OSM_Node(IB_Guid guid, boolean isSwitch, SBN_Node sbnNode) {
+    this.guid = guid;
+    this.isSwitch = isSwitch;
+    this.sbnNode = sbnNode;
+  }
+
+  public IB_Guid getNodeGuid() {
+    return guid;
+  }
+
+  public boolean isSwitch() {
+    return isSwitch;
+  }
+}
@@ -0,0 +1,41 @@
+package gov.llnl.lc.infiniband.opensm.plugin.data;
+
+import java.io.Serializable;
+
+import gov.llnl.lc.infiniband.core.IB_Address;
+import gov.llnl.lc.infiniband.core.IB_Guid;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class OSM_Port implements Serializable {
+
+  private static final long serialVersionUID = -1135740588478450656L;
+
+  public PFM_Port pfmPort;
+
+  private final IB_Guid nodeGuid;
+  private final int portNumber;
+  private final IB_Address address;
+
+  public OSM_Port(IB_Guid nodeGuid, int portNumber, IB_Address address, PFM_Port pfmPort) {
+    this.nodeGuid = nodeGuid;
+    this.portNumber = portNumber;
+    this.address = address;
+    this.pfmPort = pfmPort;
+  }
+
+  public IB_Guid getNodeGuid() {
+    return nodeGuid;
+  }
+
+  public int getPortNumber() {
+    return portNumber;
+  }
+
+  public IB_Address getAddress() {
+    return address;
+  }
+
+  public PFM_Port getPfmPort() {
+    return pfmPort;
+  }
+}
@@ -0,0 +1,27 @@
+package gov.llnl.lc.infiniband.opensm.plugin.data;
+
+import java.io.Serializable;
+
+import gov.llnl.lc.time.TimeStamp;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class OpenSmMonitorService implements Serializable {
+
+  private static final long serialVersionUID = 7830608576229913120L;
+
+  private final TimeStamp timeStamp;
+  private final OSM_Fabric fabric;
+
+  public OpenSmMonitorService(TimeStamp timeStamp, OSM_Fabric fabric) {
+    this.timeStamp = timeStamp;
+    this.fabric = fabric;
+  }
+
+  public TimeStamp getTimeStamp() {
+    return timeStamp;
+  }
+
+  public OSM_Fabric getFabric() {
+    return fabric;
+  }
+}
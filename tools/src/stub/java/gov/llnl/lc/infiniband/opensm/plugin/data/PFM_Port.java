@@ -0,0 +1,26 @@
+package gov.llnl.lc.infiniband.opensm.plugin.data;
+
+import java.io.Serializable;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class PFM_Port implements Serializable {
+
+  private static final long serialVersionUID = -6459575893557905937L;
+
+  public enum PortCounterName {
+    xmit_data, rcv_data, xmit_pkts, rcv_pkts, unicast_xmit_pkts, unicast_rcv_pkts,
+    multicast_xmit_pkts, multicast_rcv_pkts, symbol_err_cnt, link_err_recover, link_downed,
+    rcv_err, rcv_rem_phys_err, rcv_switch_relay_err, xmit_discards, xmit_constraint_err,
+    rcv_constraint_err, link_integrity, buffer_overrun, vl15_dropped, xmit_wait
+  }
+
+  private final long[] counters = new long[PortCounterName.values().length];
+
+  public long getCounter(PortCounterName name) {
+    return counters[name.ordinal()];
+  }
+
+  public void setCounter(PortCounterName name, long value) {
+    counters[name.ordinal()] = value;
+  }
+}
@@ -0,0 +1,27 @@
+package gov.llnl.lc.infiniband.opensm.plugin.data;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+
+import gov.llnl.lc.infiniband.core.IB_Guid;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class RT_Node implements Serializable {
+
+  private static final long serialVersionUID = 2635619831289032590L;
+
+  private final IB_Guid guid;
+  private final LinkedHashMap<String, RT_Port> portRouteMap = new LinkedHashMap<String, RT_Port>();
+
+  public RT_Node(IB_Guid guid) {
+    this.guid = guid;
+  }
+
+  public IB_Guid getGuid() {
+    return guid;
+  }
+
+  public LinkedHashMap<String, RT_Port> getPortRouteMap() {
+    return portRouteMap;
+  }
+}
@@ -0,0 +1,27 @@
+package gov.llnl.lc.infiniband.opensm.plugin.data;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class RT_Port implements Serializable {
+
+  private static final long serialVersionUID = 9096937165210156769L;
+
+  private final int portNumber;
+
+  // destination guid -> lid, for the lids routed through this port
+  private final LinkedHashMap<String, Integer> lidGuidMap = new LinkedHashMap<String, Integer>();
+
+  public RT_Port(int portNumber) {
+    this.portNumber = portNumber;
+  }
+
+  public int getPortNumber() {
+    return portNumber;
+  }
+
+  public LinkedHashMap<String, Integer> getLidGuidMap() {
+    return lidGuidMap;
+  }
+}
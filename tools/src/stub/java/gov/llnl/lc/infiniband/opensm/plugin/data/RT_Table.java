@@ -0,0 +1,22 @@
+package gov.llnl.lc.infiniband.opensm.plugin.data;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+//   OMSClient builds the table from the forwarding tables of the fabric; here,
+//   the table is built by the generator and attached to the fabric.
+public class RT_Table implements Serializable {
+
+  private static final long serialVersionUID = 698040591972957823L;
+
+  private final LinkedHashMap<String, RT_Node> switchGuidMap = new LinkedHashMap<String, RT_Node>();
+
+  public static RT_Table buildRT_Table(OSM_Fabric fabric) {
+    return fabric.getRoutingTable();
+  }
+
+  public LinkedHashMap<String, RT_Node> getSwitchGuidMap() {
+    return switchGuidMap;
+  }
+}
@@ -0,0 +1,17 @@
+package gov.llnl.lc.infiniband.opensm.plugin.data;
+
+import java.io.Serializable;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class SBN_Node implements Serializable {
+
+  private static final long serialVersionUID = -4398182884283307924L;
+
+  public int num_ports;
+  public String description;
+
+  public SBN_Node(int num_ports, String description) {
+    this.num_ports = num_ports;
+    this.description = description;
+  }
+}
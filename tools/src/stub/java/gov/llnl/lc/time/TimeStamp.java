@@ -0,0 +1,26 @@
+package gov.llnl.lc.time;
+
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+// stand-in for the OMSClient class (see src/stub/java/README.md)
+public class TimeStamp implements Serializable {
+
+  private static final long serialVersionUID = 3460513747316218982L;
+
+  private final long seconds;
+
+  public TimeStamp(long seconds) {
+    this.seconds = seconds;
+  }
+
+  public long getTimeInSeconds() {
+    return seconds;
+  }
+
+  // e.g. Jul 14 02:40:00 2017, as parsed by OSMHistoryParser.FormatTimeStamp()
+  public String toString() {
+    return new SimpleDateFormat("MMM dd HH:mm:ss yyyy").format(new Date(seconds * 1000));
+  }
+}
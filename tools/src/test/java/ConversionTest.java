@@ -0,0 +1,417 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import gov.llnl.lc.infiniband.opensm.plugin.data.OMS_Collection;
+import gov.llnl.lc.infiniband.opensm.plugin.data.OSM_Fabric;
+import gov.llnl.lc.infiniband.opensm.plugin.data.OSM_Port;
+import gov.llnl.lc.infiniband.opensm.plugin.data.OpenSmMonitorService;
+import gov.llnl.lc.infiniband.opensm.plugin.data.PFM_Port;
+import gov.llnl.lc.time.TimeStamp;
+import treescope.bench.FatTree;
+
+// -----------------------------------------------------------------------------
+// Conversions of a synthetic history, run as the command line would
+//   the parser keeps its options in static fields and exits on errors, so every
+//   conversion runs in its own jvm, with the test classpath, in its own directory.
+//   the files written by one kind of run are checked against those of a plain run:
+//   links.series, counters.bin, and the rollups against the '.count' files, the
+//   '.rindex' files against the '.rtable' files, and the outputs of a resumed run
+//   (checkpoint.bin) and of merged shards (shard.bin) against the whole run.
+// -----------------------------------------------------------------------------
+public class ConversionTest {
+
+  @ClassRule
+  public static TemporaryFolder folder = new TemporaryFolder();
+
+  // 3 files of 8 snapshots, taken in the last and the first second of every 300 s,
+  // so that the bounds of the rollup buckets fall on snapshots
+  private static final int FILES = 3, SNAPSHOTS = 8;
+  private static final long T0 = 1500000299L;
+  private static final long[] SPANS = { 300, 900 };
+
+  private static File history;
+  private static File plain, plainDelta, archive, archiveDelta;
+
+  @BeforeClass
+  public static void convert() throws Exception {
+
+    history = folder.newFolder("history");
+    write_history(history);
+
+    plain = convert("plain");
+    plainDelta = convert("plain-delta", "--delta");
+    archive = convert("archive", "--archive", "--series", "--rollups", "300,900");
+    archiveDelta = convert("archive-delta", "--delta", "--archive", "--series", "--rollups", "300,900");
+  }
+
+  // ---------------------------------------------------------------------------
+  // the history: a small fat tree whose rcv_data counters grow by random steps,
+  // with some ports cleared in the middle of the run
+  // ---------------------------------------------------------------------------
+  private static void write_history(File dir) throws IOException {
+
+    FatTree tree = new FatTree(2, 4, 4);
+    Random random = new Random(14);
+    HashMap<String, Long> counters = new HashMap<String, Long>();
+
+    for (int f = 0; f < FILES; f++) {
+
+      OMS_Collection collection = new OMS_Collection();
+      for (int s = 0; s < SNAPSHOTS; s++) {
+
+        long snapshot = (long) f*SNAPSHOTS + s;
+        OSM_Fabric fabric = tree.fabric(snapshot);
+        for (Map.Entry<String, OSM_Port> entry : fabric.getOSM_Ports().entrySet()) {
+
+          Long previous = counters.get(entry.getKey());
+          long value = (previous == null) ? random.nextInt(1 << 30) : previous + random.nextInt(1 << 20);
+          if (snapshot == 13 && entry.getKey().hashCode() % 7 == 0) {
+            value = random.nextInt(1 << 10);
+          }
+          counters.put(entry.getKey(), value);
+          entry.getValue().getPfmPort().setCounter(PFM_Port.PortCounterName.rcv_data, value);
+        }
+        collection.put(new OpenSmMonitorService(new TimeStamp(timestamp((int) snapshot)), fabric));
+      }
+      OMS_Collection.writeOMS_Collection(new File(dir, String.format("fattree.%03d.his", f)).getPath(), collection);
+    }
+  }
+
+  private static long timestamp(int snapshot) {
+    return T0 + 300*(snapshot/2) + snapshot%2;
+  }
+
+  // ---------------------------------------------------------------------------
+  // runs the parser in a new directory (or the given one), and fails if it does not exit with 0
+  // ---------------------------------------------------------------------------
+  private static File convert(String name, String... args) throws Exception {
+
+    ArrayList<String> command = new ArrayList<String>(Arrays.asList(args));
+    command.add(history.getPath());
+    return run(folder.newFolder(name), command);
+  }
+
+  private static File run(File dir, ArrayList<String> args) throws Exception {
+
+    ArrayList<String> command = new ArrayList<String>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("OSMHistoryParser");
+    command.addAll(args);
+
+    File log = new File(dir.getParentFile(), dir.getName() + ".log");
+    Process process = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).redirectOutput(log).start();
+    int status = process.waitFor();
+    assertEquals(args + " failed:\n" + new String(Files.readAllBytes(log.toPath()), "ISO-8859-1"), 0, status);
+    return dir;
+  }
+
+  // ---------------------------------------------------------------------------
+  // the '.count' files of a directory, in time order: the value of every port ("guid:port")
+  // ---------------------------------------------------------------------------
+  private static ArrayList<HashMap<String, Long>> read_counts(File dir) throws IOException {
+
+    String[] names = dir.list();
+    Arrays.sort(names);
+
+    ArrayList<HashMap<String, Long>> counts = new ArrayList<HashMap<String, Long>>();
+    for (String name : names) {
+      if (!name.endsWith(".count")) {
+        continue;
+      }
+      HashMap<String, Long> values = new HashMap<String, Long>();
+      BufferedReader in = new BufferedReader(new FileReader(new File(dir, name)));
+      in.readLine();
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+        String[] toks = line.split(",");
+        values.put(port(parse_guid(toks[0]), Integer.parseInt(toks[1])), Long.parseLong(toks[2]));
+      }
+      in.close();
+      counts.add(values);
+    }
+    return counts;
+  }
+
+  private static long parse_guid(String guid) {
+    return Long.parseUnsignedLong(guid.replace(":", ""), 16);
+  }
+
+  private static String port(long guid, int portNum) {
+    return Long.toHexString(guid) + ":" + portNum;
+  }
+
+  // ---------------------------------------------------------------------------
+  // links.series and counters.bin hold the values of the '.count' files
+  // ---------------------------------------------------------------------------
+  @Test
+  public void series() throws IOException {
+
+    check_series(plain, archive);
+    check_series(plainDelta, archiveDelta);
+  }
+
+  private static void check_series(File countDir, File seriesDir) throws IOException {
+
+    ArrayList<HashMap<String, Long>> counts = read_counts(countDir);
+    assertEquals(FILES*SNAPSHOTS, counts.size());
+
+    OSMHistoryParser.LinkSeries series = OSMHistoryParser.LinkSeries.open(new File(seriesDir, "links.series"));
+    assertEquals(counts.size(), series.numSnapshots());
+    assertEquals(counts.get(0).size(), series.numPorts());
+
+    for (int o = 0; o < series.numPorts(); o++) {
+      assertEquals(o, series.ordinal(series.guid(o), series.portNum(o)));
+      LongBuffer values = series.series(o);
+      for (int k = 0; k < counts.size(); k++) {
+        assertEquals(timestamp(k), series.timestamp(k));
+        assertEquals(counts.get(k).get(port(series.guid(o), series.portNum(o))).longValue(), values.get(k));
+      }
+    }
+    series.close();
+  }
+
+  @Test
+  public void counterArchive() throws IOException {
+
+    check_archive(plain, archive);
+    check_archive(plainDelta, archiveDelta);
+  }
+
+  private static void check_archive(File countDir, File archiveDir) throws IOException {
+
+    ArrayList<HashMap<String, Long>> counts = read_counts(countDir);
+    OSMHistoryParser.CounterArchive counters = OSMHistoryParser.CounterArchive.open(new File(archiveDir, "counters.bin"));
+    assertEquals(counts.size(), counters.numSnapshots());
+
+    int column = counters.column("rcv_data");
+    for (int k = 0; k < counts.size(); k++) {
+
+      assertEquals(timestamp(k), counters.timestamp(k));
+      LongBuffer values = counters.values(k, column);
+      assertEquals(counts.get(k).size(), values.capacity());
+      for (int o = 0; o < values.capacity(); o++) {
+        assertEquals(counts.get(k).get(port(counters.guid(o), counters.portNum(o))).longValue(), values.get(o));
+      }
+    }
+    counters.close();
+  }
+
+  // ---------------------------------------------------------------------------
+  // the sums of the rollups match the sums of the deltas of the snapshots
+  // ---------------------------------------------------------------------------
+  @Test
+  public void rollups() throws IOException {
+
+    check_rollups(archive, false);
+    check_rollups(archiveDelta, true);
+  }
+
+  private static void check_rollups(File dir, boolean delta) throws IOException {
+
+    OSMHistoryParser.CounterArchive snapshots = OSMHistoryParser.CounterArchive.open(new File(dir, "counters.bin"));
+    int column = OSMHistoryParser.Rollups.delta_column(snapshots, delta);
+    assertTrue(column >= 0);
+    int numPorts = snapshots.numPorts();
+
+    OSMHistoryParser.CounterArchive[] levels = new OSMHistoryParser.CounterArchive[SPANS.length];
+    for (int l = 0; l < SPANS.length; l++) {
+      levels[l] = OSMHistoryParser.CounterArchive.open(new File(dir, OSMHistoryParser.Rollups.get_name(SPANS[l]) + ".bin"));
+
+      // every bucket is the sum over its span
+      for (int b = 0; b < levels[l].numBlocks(); b++) {
+        long start = levels[l].timestamp(b);
+        assertEquals(0, start % SPANS[l]);
+        assertArrayEquals(sum(snapshots, column, start, start + SPANS[l] - 1),
+                          FileFormatsTest.toArray(levels[l].values(b, 0)));
+      }
+    }
+
+    // the whole run is one bucket
+    OSMHistoryParser.CounterArchive all = OSMHistoryParser.CounterArchive.open(new File(dir, OSMHistoryParser.Rollups.get_name(0) + ".bin"));
+    assertEquals(1, all.numBlocks());
+    assertArrayEquals(sum(snapshots, column, Long.MIN_VALUE, Long.MAX_VALUE), FileFormatsTest.toArray(all.values(0, 0)));
+    all.close();
+
+    // random ranges, partly outside of the run, or bounded by snapshots, with all the levels, one, or none
+    int numSnapshots = snapshots.numSnapshots();
+    long first = snapshots.timestamp(0), last = snapshots.timestamp(numSnapshots-1);
+    Random random = new Random(21);
+    for (int i = 0; i < 300; i++) {
+
+      long t0 = first - 200 + random.nextInt((int) (last - first) + 400);
+      long t1 = t0 + random.nextInt(2000);
+      if (i % 2 == 0) {
+        int b = random.nextInt(numSnapshots);
+        t0 = snapshots.timestamp(b) + random.nextInt(3) - 1;
+        t1 = snapshots.timestamp(b + random.nextInt(numSnapshots - b)) + random.nextInt(3) - 1;
+      }
+      long[] expected = sum(snapshots, column, t0, t1);
+
+      long[] sums = new long[numPorts];
+      OSMHistoryParser.Rollups.aggregate(levels, SPANS, snapshots, column, t0, t1, sums);
+      assertArrayEquals("[" + t0 + ", " + t1 + "]", expected, sums);
+
+      int l = random.nextInt(SPANS.length);
+      sums = new long[numPorts];
+      OSMHistoryParser.Rollups.aggregate(new OSMHistoryParser.CounterArchive[] { levels[l] }, new long[] { SPANS[l] },
+                                         snapshots, column, t0, t1, sums);
+      assertArrayEquals("[" + t0 + ", " + t1 + "], span " + SPANS[l], expected, sums);
+
+      sums = new long[numPorts];
+      OSMHistoryParser.Rollups.aggregate(new OSMHistoryParser.CounterArchive[0], new long[0], snapshots, column, t0, t1, sums);
+      assertArrayEquals("[" + t0 + ", " + t1 + "], no level", expected, sums);
+    }
+
+    for (OSMHistoryParser.CounterArchive level : levels) {
+      level.close();
+    }
+    snapshots.close();
+  }
+
+  // the sums of the (positive) deltas of every port over the snapshots in [t0, t1], one by one
+  private static long[] sum(OSMHistoryParser.CounterArchive snapshots, int column, long t0, long t1) throws IOException {
+
+    long[] sums = new long[snapshots.numPorts()];
+    for (int b = 0; b < snapshots.numSnapshots(); b++) {
+      if (snapshots.timestamp(b) < t0 || snapshots.timestamp(b) > t1) {
+        continue;
+      }
+      LongBuffer values = snapshots.values(b, column);
+      for (int o = 0; o < values.capacity(); o++) {
+        sums[o] += Math.max(0, values.get(o));
+      }
+    }
+    return sums;
+  }
+
+  // ---------------------------------------------------------------------------
+  // every '.rindex' file holds the forwarding tables of its '.rtable' file
+  // ---------------------------------------------------------------------------
+  @Test
+  public void routingIndex() throws IOException {
+
+    int numTables = 0;
+    for (String name : plain.list()) {
+      if (name.endsWith(".rtable")) {
+        check_routing(new File(plain, name), new File(plain, name.replace(".rtable", ".rindex")));
+        numTables++;
+      }
+    }
+    assertTrue(numTables > 0);
+  }
+
+  private static void check_routing(File rtable, File rindex) throws IOException {
+
+    // guid -> lid -> port
+    TreeMap<Long, TreeMap<Integer, Integer>> tables = new TreeMap<Long, TreeMap<Integer, Integer>>();
+    BufferedReader in = new BufferedReader(new FileReader(rtable));
+    in.readLine();
+    for (String line = in.readLine(); line != null; line = in.readLine()) {
+      String[] toks = line.split(",");
+      TreeMap<Integer, Integer> table = new TreeMap<Integer, Integer>();
+      for (int i = 1; i < toks.length; i++) {
+        String[] route = toks[i].split(":");
+        table.put(Integer.parseInt(route[0]), Integer.parseInt(route[1]));
+      }
+      tables.put(parse_guid(toks[0]), table);
+    }
+    in.close();
+
+    OSMHistoryParser.RoutingIndex index = OSMHistoryParser.RoutingIndex.open(rindex);
+    assertEquals(tables.size(), index.numSwitches());
+
+    for (Map.Entry<Long, TreeMap<Integer, Integer>> entry : tables.entrySet()) {
+
+      int s = index.find(entry.getKey());
+      assertTrue(s >= 0);
+      assertEquals(entry.getKey().longValue(), index.guid(s));
+
+      TreeMap<Integer, Integer> table = entry.getValue();
+      for (int lid = 0; lid < index.numLids(); lid++) {
+        Integer port = table.get(lid);
+        assertEquals((port == null) ? OSMHistoryParser.RoutingIndex.NO_ROUTE : port.intValue(), index.port(s, lid));
+      }
+      assertTrue(table.isEmpty() || table.lastKey() < index.numLids());
+
+      // the lids of every port, in ascending order
+      int numRoutes = 0;
+      for (int p = 0; p < index.numPorts(); p++) {
+        for (int i = 0; i < index.numDlids(s, p); i++) {
+          int lid = index.dlid(s, p, i);
+          assertTrue(i == 0 || lid > index.dlid(s, p, i-1));
+          assertEquals(p, table.get(lid).intValue());
+          numRoutes++;
+        }
+      }
+      assertEquals(table.size(), numRoutes);
+    }
+    assertEquals(-1, index.find(0));
+    index.close();
+  }
+
+  // ---------------------------------------------------------------------------
+  // a run stopped with --max and continued with --resume (checkpoint.bin) writes
+  // the files of the whole run
+  // ---------------------------------------------------------------------------
+  @Test
+  public void resume() throws Exception {
+
+    File dir = convert("resume", "--delta", "--max", "10");
+    assertTrue(new File(dir, "checkpoint.bin").exists());
+    assertEquals(10, read_counts(dir).size());
+
+    run(dir, new ArrayList<String>(Arrays.asList("--delta", "--resume", history.getPath())));
+    assert_sameFiles(plainDelta, dir);
+  }
+
+  // ---------------------------------------------------------------------------
+  // the merge of shards (shard.bin) writes the files of a single run
+  // ---------------------------------------------------------------------------
+  @Test
+  public void shardMerge() throws Exception {
+
+    ArrayList<String> args = new ArrayList<String>(Arrays.asList("merge"));
+    for (int i = 1; i <= FILES; i++) {
+      args.add(convert("shard" + i, "--delta", "--shard", i + "/" + FILES).getPath());
+    }
+    File dir = run(folder.newFolder("merged"), args);
+    assert_sameFiles(plainDelta, dir);
+  }
+
+  // the same files, with the same contents (but for the timings of the run)
+  private static void assert_sameFiles(File expected, File actual) throws IOException {
+
+    String[] names = expected.list();
+    Arrays.sort(names);
+    String[] actualNames = actual.list();
+    Arrays.sort(actualNames);
+    assertArrayEquals(names, actualNames);
+
+    for (String name : names) {
+      if (name.equals("run_report.json")) {
+        continue;
+      }
+      assertArrayEquals(name, Files.readAllBytes(new File(expected, name).toPath()), Files.readAllBytes(new File(actual, name).toPath()));
+    }
+  }
+}
@@ -0,0 +1,73 @@
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+// -----------------------------------------------------------------------------
+// The increases of the cumulative counters between two snapshots (get_counterDelta)
+// -----------------------------------------------------------------------------
+public class CounterDeltaTest {
+
+  private static long delta(long prev, long curr) {
+    return OSMHistoryParser.MNetwork.get_counterDelta(prev, curr, 0, 0);
+  }
+
+  private static long delta(long prev, long curr, long prevDowned, long currDowned) {
+    return OSMHistoryParser.MNetwork.get_counterDelta(prev, curr, prevDowned, currDowned);
+  }
+
+  @Test
+  public void increase() {
+    assertEquals(0, delta(0, 0));
+    assertEquals(0, delta(12345, 12345));
+    assertEquals(100, delta(1000, 1100));
+    assertEquals(0xFFFFFFFFL, delta(0, 0xFFFFFFFFL));
+  }
+
+  // the values are unsigned: a 64-bit counter past 2^63 is not negative
+  @Test
+  public void unsignedIncrease() {
+    assertEquals(10, delta(0x7FFFFFFFFFFFFFFBL, 0x8000000000000005L));
+    assertEquals(1, delta(0xFFFFFFFFFFFFFFFEL, 0xFFFFFFFFFFFFFFFFL));
+    assertEquals(0x8000000000000000L, delta(0, 0x8000000000000000L));
+  }
+
+  @Test
+  public void wraparound32() {
+    assertEquals(1, delta(0xFFFFFFFFL, 0));
+    assertEquals(0x10 + 5, delta(0xFFFFFFF0L, 5));
+    assertEquals(0x40000000L + 7, delta(0xC0000000L, 7));
+  }
+
+  @Test
+  public void wraparound64() {
+    assertEquals(1, delta(0xFFFFFFFFFFFFFFFFL, 0));
+    assertEquals(0x20 + 3, delta(0xFFFFFFFFFFFFFFE0L, 3));
+    assertEquals(0x4000000000000000L + 2, delta(0xC000000000000000L, 2));
+  }
+
+  // a lower value that was not close to the end of a counter: the counters were cleared
+  @Test
+  public void clear() {
+    assertEquals(5, delta(1000, 5));
+    assertEquals(0, delta(1000, 0));
+    assertEquals(7, delta(0xBFFFFFFFL, 7));                 // below the 32-bit wraparound range
+    assertEquals(7, delta(0x100000000L, 7));                // above it, and far from the 64-bit end
+    assertEquals(7, delta(0xBFFFFFFFFFFFFFFFL, 7));
+  }
+
+  // link_downed increased: the link went down, and the counters restarted from zero
+  @Test
+  public void linkReset() {
+    assertEquals(50, delta(0xFFFFFFF0L, 50, 1, 2));         // not a wraparound
+    assertEquals(50, delta(0xFFFFFFFFFFFFFFF0L, 50, 0, 1));
+    assertEquals(100, delta(1000, 1100, 1, 2));             // still an increase
+  }
+
+  // link_downed decreased: the counters were cleared, whatever their values
+  @Test
+  public void clearedDowned() {
+    assertEquals(1100, delta(1000, 1100, 3, 0));
+    assertEquals(5, delta(0xFFFFFFFFL, 5, 3, 0));
+    assertEquals(0, delta(1000, 0, 1, 0));
+  }
+}
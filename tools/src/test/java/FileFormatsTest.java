@@ -0,0 +1,231 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// -----------------------------------------------------------------------------
+// Writers and readers of the binary files, on random contents
+//   counters.bin (and the rollups, which are counter archives) and jobs.links.
+//   the files written by a conversion are tested in ConversionTest.
+// -----------------------------------------------------------------------------
+public class FileFormatsTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  // ---------------------------------------------------------------------------
+  // counters.bin
+  //   ports appear over the snapshots (nports grows), and every snapshot reports
+  //   a random subset of them, in random order, with frame entries of no port (-1)
+  // ---------------------------------------------------------------------------
+  @Test
+  public void counterArchive() throws IOException {
+
+    Random random = new Random(14);
+    String[] columns = { "rcv_data", "xmit_wait", "rcv_delta" };
+    int numSnapshots = 50, maxPorts = 300;
+
+    long[] timestamps = new long[numSnapshots];
+    int[] numPorts = new int[numSnapshots];
+    long[][][] expected = new long[numSnapshots][columns.length][];
+
+    File file = new File(folder.getRoot(), "counters.bin");
+    OSMHistoryParser.CounterArchive archive = OSMHistoryParser.CounterArchive.create(file, columns);
+
+    int ports = 0;
+    for (int s = 0; s < numSnapshots; s++) {
+
+      timestamps[s] = 1500000000L + 60*s + random.nextInt(30);
+      ports = Math.min(maxPorts, ports + random.nextInt(20));
+      numPorts[s] = ports;
+
+      // frame: the reported ports, shuffled, and a few entries that are not ports
+      int size = (ports == 0) ? 0 : random.nextInt(ports) + 3;
+      int[] ordinals = new int[size];
+      HashSet<Integer> used = new HashSet<Integer>();
+      for (int i = 0; i < size; i++) {
+        int o;
+        do {
+          o = (random.nextInt(10) == 0) ? -1 : random.nextInt(ports);
+        } while (o >= 0 && !used.add(o));
+        ordinals[i] = o;
+      }
+
+      long[][] values = new long[columns.length][size];
+      for (int c = 0; c < columns.length; c++) {
+        expected[s][c] = new long[ports];
+        Arrays.fill(expected[s][c], -1);
+        for (int i = 0; i < size; i++) {
+          values[c][i] = random.nextLong() >>> random.nextInt(64);
+          if (ordinals[i] >= 0) {
+            expected[s][c][ordinals[i]] = values[c][i];
+          }
+        }
+      }
+      archive.append(timestamps[s], ports, size, ordinals, values);
+    }
+
+    long[] guids = new long[ports];
+    int[] portNums = new int[ports];
+    for (int o = 0; o < ports; o++) {
+      guids[o] = random.nextLong();
+      portNums[o] = 1 + random.nextInt(36);
+    }
+    archive.finish(guids, portNums);
+
+    archive = OSMHistoryParser.CounterArchive.open(file);
+    assertArrayEquals(columns, archive.columns());
+    assertEquals(1, archive.column("xmit_wait"));
+    assertEquals(-1, archive.column("symbol_err_cnt"));
+    assertEquals(numSnapshots, archive.numSnapshots());
+    assertEquals(ports, archive.numPorts());
+    for (int o = 0; o < ports; o++) {
+      assertEquals(guids[o], archive.guid(o));
+      assertEquals(portNums[o], archive.portNum(o));
+    }
+    for (int s = 0; s < numSnapshots; s++) {
+      assertEquals(timestamps[s], archive.timestamp(s));
+      assertEquals(numPorts[s], archive.numPorts(s));
+      assertEquals(s, archive.find(timestamps[s]));
+      assertEquals(s, archive.find((s == 0) ? Long.MIN_VALUE : timestamps[s-1] + 1));
+      for (int c = 0; c < columns.length; c++) {
+        assertArrayEquals("snapshot " + s + ", column " + c, expected[s][c], toArray(archive.values(s, c)));
+      }
+    }
+    assertEquals(numSnapshots, archive.find(timestamps[numSnapshots-1] + 1));
+    archive.close();
+  }
+
+  // an archive with no snapshots and no ports is still readable
+  @Test
+  public void emptyCounterArchive() throws IOException {
+
+    File file = new File(folder.getRoot(), "empty.bin");
+    OSMHistoryParser.CounterArchive.create(file, new String[] { "rcv_data" }).finish(new long[0], new int[0]);
+
+    OSMHistoryParser.CounterArchive archive = OSMHistoryParser.CounterArchive.open(file);
+    assertEquals(0, archive.numSnapshots());
+    assertEquals(0, archive.numPorts());
+    assertEquals(0, archive.find(0));
+    archive.close();
+  }
+
+  // ---------------------------------------------------------------------------
+  // jobs.links
+  //   every (job, link, routes) entry is read back from both sides of the index,
+  //   the links of a job and the jobs of a link both in ascending order
+  // ---------------------------------------------------------------------------
+  @Test
+  public void jobLinkIndex() throws IOException {
+
+    Random random = new Random(18);
+    int numJobs = 500, numLinks = 2000;
+
+    long[] linkGuids = new long[numLinks];
+    int[] linkPorts = new int[numLinks];
+    HashSet<String> usedLinks = new HashSet<String>();
+    for (int k = 0; k < numLinks; k++) {
+      do {
+        linkGuids[k] = 0x0002c90300000000L + random.nextInt(400) + ((random.nextInt(4) == 0) ? 0x8000000000000000L : 0);
+        linkPorts[k] = 1 + random.nextInt(36);
+      } while (!usedLinks.add(linkGuids[k] + ":" + linkPorts[k]));
+    }
+
+    long[] jobIds = new long[numJobs];
+    long[] starts = new long[numJobs];
+    long[] ends = new long[numJobs];
+    int[][] links = new int[numJobs][];
+    int[][] routes = new int[numJobs][];
+    HashSet<Long> usedJobs = new HashSet<Long>();
+    TreeSet<String> model = new TreeSet<String>();
+    for (int j = 0; j < numJobs; j++) {
+
+      do {
+        jobIds[j] = random.nextInt(1000000);
+      } while (!usedJobs.add(jobIds[j]));
+      starts[j] = 1500000000L + random.nextInt(1000000);
+      ends[j] = starts[j] + random.nextInt(100000);
+
+      TreeSet<Integer> crossed = new TreeSet<Integer>();
+      int n = (j % 50 == 0) ? 0 : random.nextInt(100);
+      while (crossed.size() < n) {
+        crossed.add(random.nextInt(numLinks));
+      }
+      links[j] = new int[n];
+      routes[j] = new int[n];
+      int i = 0;
+      for (int k : crossed) {
+        links[j][i] = k;
+        routes[j][i] = 1 + random.nextInt(9);
+        model.add(entry(jobIds[j], linkGuids[k], linkPorts[k], routes[j][i]));
+        i++;
+      }
+    }
+
+    File file = new File(folder.getRoot(), "jobs.links");
+    JobLinkLoad.JobLinkIndex.write(file, linkGuids, linkPorts, jobIds, starts, ends, links, routes);
+    JobLinkLoad.JobLinkIndex index = JobLinkLoad.JobLinkIndex.open(file);
+    assertEquals(numJobs, index.numJobs());
+    assertEquals(numLinks, index.numLinks());
+
+    TreeSet<String> byJob = new TreeSet<String>();
+    for (int j = 0; j < numJobs; j++) {
+
+      int q = index.find(jobIds[j]);
+      assertTrue(q >= 0);
+      assertEquals(jobIds[j], index.jobId(q));
+      assertEquals(starts[j], index.jobStart(q));
+      assertEquals(ends[j], index.jobEnd(q));
+      assertEquals(links[j].length, index.numJobLinks(q));
+
+      for (int i = 0; i < index.numJobLinks(q); i++) {
+        int k = index.jobLink(q, i);
+        assertTrue(i == 0 || k > index.jobLink(q, i-1));
+        byJob.add(entry(jobIds[j], index.linkGuid(k), index.linkPort(k), index.jobRoutes(q, i)));
+      }
+    }
+
+    TreeSet<String> byLink = new TreeSet<String>();
+    for (int k = 0; k < numLinks; k++) {
+
+      int q = index.findLink(linkGuids[k], linkPorts[k]);
+      assertTrue(q >= 0);
+      assertTrue(q == 0 || Long.compareUnsigned(index.linkGuid(q-1), index.linkGuid(q)) <= 0);
+      assertEquals(linkGuids[k], index.linkGuid(q));
+      assertEquals(linkPorts[k], index.linkPort(q));
+
+      for (int i = 0; i < index.numLinkJobs(q); i++) {
+        int j = index.linkJob(q, i);
+        assertTrue(i == 0 || j > index.linkJob(q, i-1));
+        byLink.add(entry(index.jobId(j), linkGuids[k], linkPorts[k], index.linkRoutes(q, i)));
+      }
+    }
+    assertEquals(model, byJob);
+    assertEquals(model, byLink);
+
+    assertEquals(-1, index.find(-1));
+    assertEquals(-1, index.findLink(0x0002c90300000000L + 400, 1));
+    index.close();
+  }
+
+  private static String entry(long jobId, long guid, int port, int routes) {
+    return jobId + " " + Long.toHexString(guid) + ":" + port + " " + routes;
+  }
+
+  static long[] toArray(LongBuffer buffer) {
+    long[] values = new long[buffer.capacity()];
+    buffer.get(values);
+    return values;
+  }
+}